@@ -155,6 +155,8 @@ public class ChanConfiguration implements ChanManager.Linked {
     @Public
     public static final String OPTION_READ_POSTS_COUNT = "read_posts_count";
     @Public
+    public static final String OPTION_READ_POSTS_COUNTS = "read_posts_counts";
+    @Public
     public static final String OPTION_READ_USER_BOARDS = "read_user_boards";
     @Public
     public static final String OPTION_ALLOW_CAPTCHA_PASS = "allow_captcha_pass";
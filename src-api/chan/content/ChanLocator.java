@@ -122,16 +122,19 @@ public class ChanLocator implements ChanManager.Linked {
     @Public
     public final void addChanHost(String host) {
         hosts.put(host, HOST_TYPE_CONFIGURABLE);
+        ChanManager.invalidateHostIndex();
     }
 
     @Public
     public final void addConvertableChanHost(String host) {
         hosts.put(host, HOST_TYPE_CONVERTABLE);
+        ChanManager.invalidateHostIndex();
     }
 
     @Public
     public final void addSpecialChanHost(String host) {
         hosts.put(host, HOST_TYPE_SPECIAL);
+        ChanManager.invalidateHostIndex();
     }
 
     @Public
@@ -254,6 +257,19 @@ public class ChanLocator implements ChanManager.Linked {
         return null;
     }
 
+    final boolean hasHostTransition() {
+        for (Class<?> locatorClass = getClass(); locatorClass != ChanLocator.class;
+                locatorClass = locatorClass.getSuperclass()) {
+            try {
+                locatorClass.getDeclaredMethod("getHostTransition", String.class, String.class);
+                return true;
+            } catch (NoSuchMethodException e) {
+                // Check superclass
+            }
+        }
+        return false;
+    }
+
     @Extendable
     protected boolean isBoardUri(Uri uri) {
         throw new UnsupportedOperationException();
@@ -394,6 +410,7 @@ public class ChanLocator implements ChanManager.Linked {
             host = "";
         }
         Preferences.setDomainUnhandled(chanName, host);
+        ChanManager.invalidateHostIndex();
     }
 
     private static String getPreferredScheme(boolean useHttps) {
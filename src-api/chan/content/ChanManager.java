@@ -20,6 +20,7 @@ import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.FeatureInfo;
 import android.content.pm.PackageInfo;
@@ -40,6 +41,7 @@ import com.mishiranu.dashchan.preference.Preferences;
 import com.mishiranu.dashchan.util.AndroidUtils;
 import com.mishiranu.dashchan.util.IOUtils;
 import com.mishiranu.dashchan.util.Log;
+import com.mishiranu.dashchan.util.LruCache;
 import com.mishiranu.dashchan.util.WeakObservable;
 
 import java.io.File;
@@ -56,6 +58,8 @@ import java.util.regex.Pattern;
 
 import dalvik.system.PathClassLoader;
 
+import chan.util.StringUtils;
+
 public class ChanManager {
     public static final int MAX_VERSION = 1;
     public static final int MIN_VERSION = 1;
@@ -84,12 +88,25 @@ public class ChanManager {
     private final HashMap<String, ChanHolder> chanHolders = new HashMap<>();
     private final HashMap<String, ArrayList<String>> archiveMap = new HashMap<>();
 
+    private static volatile int hostIndexVersion;
+    private volatile HostIndex hostIndex;
+
+    // Domain preference can be changed from preferences or restored from backup
+    private final SharedPreferences.OnSharedPreferenceChangeListener domainListener = (preferences, key) -> {
+        if (Preferences.KEY_DOMAIN.isBound(key)) {
+            invalidateHostIndex();
+        }
+    };
+
     private final LinkedHashMap<String, ExtensionItem> extensionItems;
     private final LinkedHashMap<String, ExtensionItem> chanItems;
     private final LinkedHashMap<String, ExtensionItem> libItems;
 
     private final Set<String> applicationFingerprints;
 
+    private static final String HOST_NOT_FOUND = "";
+    private static final int MAX_TRANSITION_CACHE_ENTRIES = 200;
+
     private static final Pattern VALID_EXTENSION_NAME = Pattern.compile("[a-z][a-z0-9]{3,14}");
 
     private static class ChanHolder {
@@ -109,6 +126,17 @@ public class ChanManager {
         }
     }
 
+    private static class HostIndex {
+        public final int version;
+        public final HashMap<String, String> chanNames = new HashMap<>();
+        public final ArrayList<HashMap.Entry<String, ChanHolder>> transitionHolders = new ArrayList<>();
+        public final LruCache<String, String> transitionCache = new LruCache<>(MAX_TRANSITION_CACHE_ENTRIES);
+
+        public HostIndex(int version) {
+            this.version = version;
+        }
+    }
+
     private static final ChanManager INSTANCE;
 
     static {
@@ -202,6 +230,7 @@ public class ChanManager {
 
     @SuppressLint("PackageManagerGetSignatures")
     private ChanManager() {
+        Preferences.registerOnChangeListener(domainListener);
         ArrayList<String> busyExtensionNames = new ArrayList<>();
         busyExtensionNames.add(EXTENSION_NAME_CLIENT);
         Collections.addAll(busyExtensionNames, Preferences.SPECIAL_EXTENSION_NAMES);
@@ -431,6 +460,7 @@ public class ChanManager {
                 if (holder != null) {
                     chanHolders.put(extensionItem.extensionName, holder);
                     availableChanNames.add(extensionItem.extensionName);
+                    invalidateHostIndex();
                     invalidateChansOrder();
                 }
             }
@@ -613,15 +643,62 @@ public class ChanManager {
         Preferences.setChansOrder(chanNames);
     }
 
-    public String getChanNameByHost(String host) {
-        if (host != null) {
+    static void invalidateHostIndex() {
+        hostIndexVersion++;
+    }
+
+    private HostIndex obtainHostIndex() {
+        int version = hostIndexVersion;
+        HostIndex hostIndex = this.hostIndex;
+        if (hostIndex == null || hostIndex.version != version) {
+            hostIndex = new HostIndex(version);
             for (HashMap.Entry<String, ChanHolder> entry : chanHolders.entrySet()) {
+                String chanName = entry.getKey();
+                ChanLocator locator = entry.getValue().locator;
+                for (String host : locator.getChanHosts(false)) {
+                    if (!hostIndex.chanNames.containsKey(host)) {
+                        hostIndex.chanNames.put(host, chanName);
+                    }
+                }
+                String domain = Preferences.getDomainUnhandled(chanName);
+                if (!StringUtils.isEmpty(domain) && !hostIndex.chanNames.containsKey(domain)) {
+                    hostIndex.chanNames.put(domain, chanName);
+                }
+                if (locator.hasHostTransition()) {
+                    hostIndex.transitionHolders.add(entry);
+                }
+            }
+            this.hostIndex = hostIndex;
+        }
+        return hostIndex;
+    }
+
+    public String getChanNameByHost(String host) {
+        if (StringUtils.isEmpty(host)) {
+            return null;
+        }
+        HostIndex hostIndex = obtainHostIndex();
+        String chanName = hostIndex.chanNames.get(host);
+        if (chanName != null || hostIndex.transitionHolders.isEmpty()) {
+            return chanName;
+        }
+        // Host transitions can't be indexed, so resolve them lazily and remember the result
+        synchronized (hostIndex.transitionCache) {
+            chanName = hostIndex.transitionCache.get(host);
+        }
+        if (chanName == null) {
+            chanName = HOST_NOT_FOUND;
+            for (HashMap.Entry<String, ChanHolder> entry : hostIndex.transitionHolders) {
                 if (entry.getValue().locator.isChanHost(host)) {
-                    return entry.getKey();
+                    chanName = entry.getKey();
+                    break;
                 }
             }
+            synchronized (hostIndex.transitionCache) {
+                hostIndex.transitionCache.put(host, chanName);
+            }
         }
-        return null;
+        return chanName.isEmpty() ? null : chanName;
     }
 
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
@@ -133,6 +133,12 @@ public class ChanPerformer implements ChanManager.Linked {
         throw new UnsupportedOperationException();
     }
 
+    @Extendable
+    protected ReadPostsCountsResult onReadPostsCounts(ReadPostsCountsData data) throws HttpException,
+            InvalidResponseException {
+        throw new UnsupportedOperationException();
+    }
+
     @Extendable
     protected ReadContentResult onReadContent(ReadContentData data) throws HttpException, InvalidResponseException {
         return new ReadContentResult(new HttpRequest(data.uri, data.holder, data).read());
@@ -558,9 +564,66 @@ public class ChanPerformer implements ChanManager.Linked {
         }
     }
 
+    @Public
+    public static class ReadPostsCountsData implements HttpRequest.HolderPreset, HttpRequest.TimeoutsPreset {
+        @Public
+        public final String boardName;
+        @Public
+        public final String[] threadNumbers;
+        public final int connectTimeout;
+        public final int readTimeout;
+        @Public
+        public final HttpHolder holder;
+        @Public
+        public final HttpValidator validator;
+
+        public ReadPostsCountsData(String boardName, String[] threadNumbers, int connectTimeout, int readTimeout,
+                                   HttpHolder holder, HttpValidator validator) {
+            this.boardName = boardName;
+            this.threadNumbers = threadNumbers;
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+            this.holder = holder;
+            this.validator = validator;
+        }
+
+        @Override
+        public HttpHolder getHolder() {
+            return holder;
+        }
+
+        @Override
+        public int getConnectTimeout() {
+            return connectTimeout;
+        }
+
+        @Override
+        public int getReadTimeout() {
+            return readTimeout;
+        }
+    }
+
+    @Public
+    public static final class ReadPostsCountsResult {
+        // Counts are ordered as thread numbers in data, negative count means thread must be checked separately
+        public final int[] postsCounts;
+        public HttpValidator validator;
+
+        @Public
+        public ReadPostsCountsResult(int... postsCounts) {
+            this.postsCounts = postsCounts;
+        }
+
+        @Public
+        public ReadPostsCountsResult setValidator(HttpValidator validator) {
+            this.validator = validator;
+            return this;
+        }
+    }
+
     @Public
     public static class ReadContentData implements HttpRequest.HolderPreset, HttpRequest.TimeoutsPreset,
-            HttpRequest.InputListenerPreset, HttpRequest.OutputStreamPreset {
+            HttpRequest.InputListenerPreset, HttpRequest.OutputStreamPreset, HttpRequest.RangePreset {
         @Public
         public final Uri uri;
         public final int connectTimeout;
@@ -569,15 +632,33 @@ public class ChanPerformer implements ChanManager.Linked {
         public final HttpHolder holder;
         public final HttpHolder.InputListener listener;
         public final OutputStream outputStream;
+        public final long rangeStart;
+        public final long rangeEnd;
+        public final String rangeValidator;
 
         public ReadContentData(Uri uri, int connectTimeout, int readTimeout, HttpHolder holder,
                                HttpHolder.InputListener listener, OutputStream outputStream) {
+            this(uri, connectTimeout, readTimeout, holder, listener, outputStream, 0L, -1L);
+        }
+
+        public ReadContentData(Uri uri, int connectTimeout, int readTimeout, HttpHolder holder,
+                               HttpHolder.InputListener listener, OutputStream outputStream,
+                               long rangeStart, long rangeEnd) {
+            this(uri, connectTimeout, readTimeout, holder, listener, outputStream, rangeStart, rangeEnd, null);
+        }
+
+        public ReadContentData(Uri uri, int connectTimeout, int readTimeout, HttpHolder holder,
+                               HttpHolder.InputListener listener, OutputStream outputStream,
+                               long rangeStart, long rangeEnd, String rangeValidator) {
             this.uri = uri;
             this.connectTimeout = connectTimeout;
             this.readTimeout = readTimeout;
             this.holder = holder;
             this.listener = listener;
             this.outputStream = outputStream;
+            this.rangeStart = rangeStart;
+            this.rangeEnd = rangeEnd;
+            this.rangeValidator = rangeValidator;
         }
 
         @Override
@@ -604,6 +685,21 @@ public class ChanPerformer implements ChanManager.Linked {
         public OutputStream getOutputStream() {
             return outputStream;
         }
+
+        @Override
+        public long getRangeStart() {
+            return rangeStart;
+        }
+
+        @Override
+        public long getRangeEnd() {
+            return rangeEnd;
+        }
+
+        @Override
+        public String getRangeValidator() {
+            return rangeValidator;
+        }
     }
 
     @Public
@@ -1308,6 +1404,15 @@ public class ChanPerformer implements ChanManager.Linked {
             }
         }
 
+        public ReadPostsCountsResult onReadPostsCounts(ReadPostsCountsData data) throws ExtensionException,
+                HttpException, InvalidResponseException {
+            try {
+                return performer.onReadPostsCounts(data);
+            } catch (LinkageError | RuntimeException e) {
+                throw new ExtensionException(e);
+            }
+        }
+
         public ReadContentResult onReadContent(ReadContentData data) throws ExtensionException, HttpException,
                 InvalidResponseException {
             try {
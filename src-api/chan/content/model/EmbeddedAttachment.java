@@ -18,6 +18,8 @@ package chan.content.model;
 
 import android.net.Uri;
 
+import java.io.IOException;
+
 import com.mishiranu.dashchan.content.net.EmbeddedManager;
 
 import chan.annotation.Public;
@@ -62,6 +64,16 @@ public final class EmbeddedAttachment implements Attachment {
         mForcedName = forcedName;
     }
 
+    private EmbeddedAttachment(String fileUriString, String thumbnailUriString, String embeddedType,
+                               ContentType contentType, boolean canDownload, String forcedName) {
+        mFileUriString = fileUriString;
+        mThumbnailUriString = thumbnailUriString;
+        mEmbeddedType = embeddedType;
+        mContentType = contentType;
+        mCanDownload = canDownload;
+        mForcedName = forcedName;
+    }
+
     @Public
     public Uri getFileUri() {
         return mFileUriString != null ? Uri.parse(mFileUriString) : null;
@@ -122,4 +134,31 @@ public final class EmbeddedAttachment implements Attachment {
                 mCanDownload == o.mCanDownload &&
                 StringUtils.equals(mForcedName, o.mForcedName);
     }
+
+    void write(PostsCodec.Writer writer) throws IOException {
+        writer.writeString(mFileUriString);
+        writer.writeString(mThumbnailUriString);
+        writer.writeString(mEmbeddedType);
+        writer.writeInt(mContentType.ordinal());
+        writer.writeBoolean(mCanDownload);
+        writer.writeString(mForcedName);
+        writer.writeString(mTitle);
+    }
+
+    static EmbeddedAttachment read(PostsCodec.Reader reader) throws IOException {
+        String fileUriString = reader.readString();
+        String thumbnailUriString = reader.readString();
+        String embeddedType = reader.readString();
+        int contentType = reader.readInt();
+        ContentType[] contentTypes = ContentType.values();
+        if (contentType < 0 || contentType >= contentTypes.length) {
+            throw new IOException("Invalid content type");
+        }
+        boolean canDownload = reader.readBoolean();
+        String forcedName = reader.readString();
+        EmbeddedAttachment attachment = new EmbeddedAttachment(fileUriString, thumbnailUriString, embeddedType,
+                contentTypes[contentType], canDownload, forcedName);
+        attachment.mTitle = reader.readString();
+        return attachment;
+    }
 }
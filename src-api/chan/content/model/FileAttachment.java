@@ -18,6 +18,8 @@ package chan.content.model;
 
 import android.net.Uri;
 
+import java.io.IOException;
+
 import com.mishiranu.dashchan.C;
 
 import chan.annotation.Public;
@@ -189,4 +191,26 @@ public final class FileAttachment implements Attachment {
                 mHeight == o.mHeight &&
                 mSpoiler == o.mSpoiler;
     }
+
+    void write(PostsCodec.Writer writer) throws IOException {
+        writer.writeString(mFileUriString);
+        writer.writeString(mThumbnailUriString);
+        writer.writeString(mOriginalName);
+        writer.writeInt(mSize);
+        writer.writeInt(mWidth);
+        writer.writeInt(mHeight);
+        writer.writeBoolean(mSpoiler);
+    }
+
+    static FileAttachment read(PostsCodec.Reader reader) throws IOException {
+        FileAttachment attachment = new FileAttachment();
+        attachment.mFileUriString = reader.readString();
+        attachment.mThumbnailUriString = reader.readString();
+        attachment.mOriginalName = reader.readString();
+        attachment.mSize = reader.readInt();
+        attachment.mWidth = reader.readInt();
+        attachment.mHeight = reader.readInt();
+        attachment.mSpoiler = reader.readBoolean();
+        return attachment;
+    }
 }
@@ -18,6 +18,7 @@ package chan.content.model;
 
 import android.net.Uri;
 
+import java.io.IOException;
 import java.io.Serializable;
 
 import chan.annotation.Public;
@@ -37,6 +38,11 @@ public final class Icon implements Serializable {
         mTitle = StringUtils.nullIfEmpty(title);
     }
 
+    private Icon(String uriString, String title) {
+        mUriString = uriString;
+        mTitle = title;
+    }
+
     public Uri getRelativeUri() {
         return mUriString != null ? Uri.parse(mUriString) : null;
     }
@@ -54,4 +60,13 @@ public final class Icon implements Serializable {
     public boolean contentEquals(Icon o) {
         return StringUtils.equals(mUriString, o.mUriString) && StringUtils.equals(mTitle, o.mTitle);
     }
+
+    void write(PostsCodec.Writer writer) throws IOException {
+        writer.writeString(mUriString);
+        writer.writeString(mTitle);
+    }
+
+    static Icon read(PostsCodec.Reader reader) throws IOException {
+        return new Icon(reader.readString(), reader.readString());
+    }
 }
@@ -18,6 +18,7 @@ package chan.content.model;
 
 import com.mishiranu.dashchan.util.FlagUtils;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Collection;
 
@@ -47,6 +48,9 @@ public final class Post implements Serializable, Comparable<Post> {
     private static final int FLAG_DELETED = 0x00040000;
     private static final int FLAG_USER_POST = 0x00080000;
 
+    private static final int ATTACHMENT_FILE = 0;
+    private static final int ATTACHMENT_EMBEDDED = 1;
+
     private int mFlags;
 
     private String mThreadNumber;
@@ -118,8 +122,7 @@ public final class Post implements Serializable, Comparable<Post> {
     }
 
     private static void validatePostNumber(String postNumber, boolean throwOnNull) throws IllegalArgumentException {
-        NumbersPair pair = obtainNumbersPair(postNumber);
-        if (pair == null && (postNumber != null || throwOnNull)) {
+        if (!parseNumbers(postNumber, null, null) && (postNumber != null || throwOnNull)) {
             throw new IllegalArgumentException("Post number is not valid: " + postNumber + ". Post number must be " +
                     "a positive number or a pair of positive numbers separated by dot.");
         }
@@ -152,7 +155,9 @@ public final class Post implements Serializable, Comparable<Post> {
 
     @Public
     public Post setPostNumber(String postNumber) {
-        validatePostNumber(postNumber, true);
+        if (!parseNumbers(postNumber, this, null)) {
+            validatePostNumber(postNumber, true);
+        }
         mPostNumber = postNumber;
         return this;
     }
@@ -469,62 +474,89 @@ public final class Post implements Serializable, Comparable<Post> {
         return this;
     }
 
-    private static class NumbersPair {
-        public final int postNumber;
-        public final int variation;
+    private static final int MAX_NUMBER_DIGITS = 18;
+    private static final int MAX_VARIATION_DIGITS = 9;
 
-        public NumbersPair(String postNumber, String variation) throws NumberFormatException {
-            this.postNumber = Integer.parseInt(postNumber);
-            this.variation = variation != null ? Integer.parseInt(variation) : 0;
-        }
+    // Post number and variation are parsed once and compared as primitives
+    private transient int mVariationKey;
+    private transient long mNumberKey;
+    private transient volatile boolean mNumbersParsed;
+
+    /**
+     * Parse post number to number and variation keys which are stored to {@code keys} array.
+     *
+     * @return False if post number is not valid.
+     */
+    public static boolean parseNumberKeys(String postNumber, long[] keys) {
+        return parseNumbers(postNumber, null, keys);
     }
 
-    private static NumbersPair obtainNumbersPair(String postNumber) {
+    private static boolean parseNumbers(String postNumber, Post post, long[] keys) {
         if (postNumber == null) {
-            return null;
+            return false;
         }
-        String variation = null;
-        int index = -1;
-        for (int i = 0; i < postNumber.length(); i++) {
+        long number = 0;
+        int variation = 0;
+        int numberDigits = 0;
+        int variationDigits = -1;
+        for (int i = 0, length = postNumber.length(); i < length; i++) {
             char c = postNumber.charAt(i);
-            if (c < '0' || c > '9') {
-                if (c == '.' && index == -1) {
-                    index = i;
+            if (c >= '0' && c <= '9') {
+                if (variationDigits >= 0) {
+                    if (++variationDigits > MAX_VARIATION_DIGITS) {
+                        return false;
+                    }
+                    variation = variation * 10 + c - '0';
                 } else {
-                    return null;
+                    if (++numberDigits > MAX_NUMBER_DIGITS) {
+                        return false;
+                    }
+                    number = number * 10 + c - '0';
                 }
+            } else if (c == '.' && variationDigits == -1) {
+                variationDigits = 0;
+            } else {
+                return false;
             }
         }
-        if (index >= 0) {
-            variation = postNumber.substring(index + 1);
-            postNumber = postNumber.substring(0, index);
+        if (numberDigits == 0 || variationDigits == 0) {
+            return false;
+        }
+        if (post != null) {
+            post.mNumberKey = number;
+            post.mVariationKey = variation;
+            post.mNumbersParsed = true;
         }
-        try {
-            return new NumbersPair(postNumber, variation);
-        } catch (NumberFormatException e) {
-            return null;
+        if (keys != null) {
+            keys[0] = number;
+            keys[1] = variation;
         }
+        return true;
     }
 
-    private transient volatile NumbersPair mNumbersPair;
+    public long getNumberKey() {
+        if (!mNumbersParsed) {
+            parseNumbers(getPostNumber(), this, null);
+        }
+        return mNumberKey;
+    }
 
-    private NumbersPair getNumbersPair() {
-        if (mNumbersPair == null) {
-            mNumbersPair = obtainNumbersPair(getPostNumber());
+    public int getVariationKey() {
+        if (!mNumbersParsed) {
+            parseNumbers(getPostNumber(), this, null);
         }
-        return mNumbersPair;
+        return mVariationKey;
     }
 
     @Public
     @Override
     public int compareTo(Post another) throws NumberFormatException {
-        NumbersPair thisPair = getNumbersPair();
-        NumbersPair anotherPair = another.getNumbersPair();
-        int difference = thisPair.postNumber - anotherPair.postNumber;
-        if (difference != 0) {
-            return difference;
+        long thisNumber = getNumberKey();
+        long anotherNumber = another.getNumberKey();
+        if (thisNumber != anotherNumber) {
+            return thisNumber > anotherNumber ? 1 : -1;
         }
-        return thisPair.variation - anotherPair.variation;
+        return mVariationKey - another.mVariationKey;
     }
 
     public boolean contentEquals(Post o) {
@@ -591,4 +623,104 @@ public final class Post implements Serializable, Comparable<Post> {
         result.mIcons = mIcons;
         return result;
     }
+
+    int getFlags() {
+        return mFlags;
+    }
+
+    void setFlags(int flags) {
+        mFlags = flags;
+    }
+
+    void write(PostsCodec.Writer writer) throws IOException {
+        writer.writeInt(mFlags);
+        writeContent(writer);
+    }
+
+    // Writes everything except flags, so content can be compared separately from flags.
+    void writeContent(PostsCodec.Writer writer) throws IOException {
+        writer.writeString(mThreadNumber);
+        writer.writeString(mParentPostNumber);
+        writer.writeString(mPostNumber);
+        writer.writeLong(mTimestamp);
+        writer.writeString(mSubject);
+        writer.writeString(mComment);
+        writer.writeString(mEditedComment);
+        writer.writeString(mCommentMarkup);
+        writer.writeString(mName);
+        writer.writeString(mIdentifier);
+        writer.writeString(mTripcode);
+        writer.writeString(mCapcode);
+        writer.writeString(mEmail);
+        writer.writeInt(likes);
+        writer.writeInt(dislikes);
+        writer.writeInt(mAttachments != null ? mAttachments.length : -1);
+        if (mAttachments != null) {
+            for (Attachment attachment : mAttachments) {
+                if (attachment instanceof FileAttachment) {
+                    writer.writeInt(ATTACHMENT_FILE);
+                    ((FileAttachment) attachment).write(writer);
+                } else if (attachment instanceof EmbeddedAttachment) {
+                    writer.writeInt(ATTACHMENT_EMBEDDED);
+                    ((EmbeddedAttachment) attachment).write(writer);
+                } else {
+                    throw new IOException("Unknown attachment " + attachment.getClass().getName());
+                }
+            }
+        }
+        writer.writeInt(mIcons != null ? mIcons.length : -1);
+        if (mIcons != null) {
+            for (Icon icon : mIcons) {
+                icon.write(writer);
+            }
+        }
+    }
+
+    static Post read(PostsCodec.Reader reader) throws IOException {
+        Post post = new Post();
+        post.mFlags = reader.readInt();
+        post.mThreadNumber = reader.readString();
+        post.mParentPostNumber = reader.readString();
+        post.mPostNumber = reader.readString();
+        post.mTimestamp = reader.readLong();
+        post.mSubject = reader.readString();
+        post.mComment = reader.readString();
+        post.mEditedComment = reader.readString();
+        post.mCommentMarkup = reader.readString();
+        post.mName = reader.readString();
+        post.mIdentifier = reader.readString();
+        post.mTripcode = reader.readString();
+        post.mCapcode = reader.readString();
+        post.mEmail = reader.readString();
+        post.likes = reader.readInt();
+        post.dislikes = reader.readInt();
+        int attachmentsCount = reader.readInt();
+        if (attachmentsCount >= 0) {
+            post.mAttachments = new Attachment[attachmentsCount];
+            for (int i = 0; i < attachmentsCount; i++) {
+                int type = reader.readInt();
+                switch (type) {
+                    case ATTACHMENT_FILE: {
+                        post.mAttachments[i] = FileAttachment.read(reader);
+                        break;
+                    }
+                    case ATTACHMENT_EMBEDDED: {
+                        post.mAttachments[i] = EmbeddedAttachment.read(reader);
+                        break;
+                    }
+                    default: {
+                        throw new IOException("Invalid attachment type " + type);
+                    }
+                }
+            }
+        }
+        int iconsCount = reader.readInt();
+        if (iconsCount >= 0) {
+            post.mIcons = new Icon[iconsCount];
+            for (int i = 0; i < iconsCount; i++) {
+                post.mIcons[i] = Icon.read(reader);
+            }
+        }
+        return post;
+    }
 }
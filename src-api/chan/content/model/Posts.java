@@ -19,6 +19,7 @@ package chan.content.model;
 import android.net.Uri;
 import android.util.Pair;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -226,4 +227,54 @@ public final class Posts implements Serializable {
     public Posts(Collection<? extends Post> posts) {
         setPosts(posts);
     }
+
+    void writeHeader(PostsCodec.Writer writer) throws IOException {
+        writer.writeString(mHttpValidator != null ? mHttpValidator.toString() : null);
+        writer.writeString(mArchivedThreadUriString);
+        writer.writeInt(mUniquePosters);
+        writer.writeInt(mPostsCount);
+        writer.writeInt(mFilesCount);
+        writer.writeInt(mPostsWithFilesCount);
+        writer.writeInt(mLocalAutohide != null ? mLocalAutohide.length : -1);
+        if (mLocalAutohide != null) {
+            for (String[] item : mLocalAutohide) {
+                writer.writeInt(item != null ? item.length : -1);
+                if (item != null) {
+                    for (String value : item) {
+                        writer.writeString(value);
+                    }
+                }
+            }
+        }
+        writer.writeBoolean(mAutoRefreshEnabled);
+        writer.writeInt(mAutoRefreshInterval);
+    }
+
+    void readHeader(PostsCodec.Reader reader) throws IOException {
+        String validator = reader.readString();
+        mHttpValidator = validator != null ? HttpValidator.fromString(validator) : null;
+        mArchivedThreadUriString = reader.readString();
+        mUniquePosters = reader.readInt();
+        mPostsCount = reader.readInt();
+        mFilesCount = reader.readInt();
+        mPostsWithFilesCount = reader.readInt();
+        int localAutohideCount = reader.readInt();
+        if (localAutohideCount >= 0) {
+            mLocalAutohide = new String[localAutohideCount][];
+            for (int i = 0; i < localAutohideCount; i++) {
+                int length = reader.readInt();
+                if (length >= 0) {
+                    String[] item = new String[length];
+                    for (int j = 0; j < length; j++) {
+                        item[j] = reader.readString();
+                    }
+                    mLocalAutohide[i] = item;
+                }
+            }
+        } else {
+            mLocalAutohide = null;
+        }
+        mAutoRefreshEnabled = reader.readBoolean();
+        mAutoRefreshInterval = reader.readInt();
+    }
 }
@@ -0,0 +1,732 @@
+/*
+ * Copyright 2014-2017 Fukurou Mishiranu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package chan.content.model;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact binary format for {@link Posts}. Format starts with magic number, version and flags, followed by frames.
+ * First frame is a full snapshot of posts, following frames are deltas with new, edited and removed posts, which
+ * are appended to the end of the file instead of rewriting it. Every frame has length and checksum, so partially
+ * written frame at the end of the file is ignored.
+ *
+ * <p>Snapshot is split into chunks of posts with an index of chunk offsets, so any range of posts can be read
+ * without decoding the whole thread.</p>
+ *
+ * <p>Numbers are written as variable length integers and every string is written once per block,
+ * repeated strings refer to the first occurrence.</p>
+ */
+public final class PostsCodec {
+    private static final int MAGIC = 0x44435053;
+    private static final int VERSION = 3;
+
+    private static final int FLAG_DEFLATE = 0x01;
+
+    private static final int FRAME_SNAPSHOT = 1;
+    private static final int FRAME_DELTA = 2;
+
+    private static final int HEADER_SIZE = 6;
+    private static final int FRAME_HEADER_SIZE = 9;
+    private static final int MAX_FRAME_SIZE = 32 * 1024 * 1024;
+
+    private static final int CHUNK_SIZE = 50;
+
+    private static final int MAX_DELTAS_COUNT = 64;
+    private static final int MIN_COMPACT_DELTAS_SIZE = 64 * 1024;
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private PostsCodec() {}
+
+    public static boolean isEncoded(BufferedInputStream input) throws IOException {
+        input.mark(4);
+        try {
+            return new DataInputStream(input).readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            input.reset();
+        }
+    }
+
+    /**
+     * Write header and full snapshot of posts.
+     *
+     * @param state State which will be updated to match written data, may be null.
+     */
+    public static void encode(Posts posts, OutputStream output, boolean deflate, State state) throws IOException {
+        DataOutputStream dataOutput = new DataOutputStream(output);
+        dataOutput.writeInt(MAGIC);
+        dataOutput.writeByte(VERSION);
+        dataOutput.writeByte(deflate ? FLAG_DEFLATE : 0);
+        byte[] frame = encodeFrame(FRAME_SNAPSHOT, encodeSnapshot(posts, deflate));
+        dataOutput.write(frame);
+        dataOutput.flush();
+        if (state != null) {
+            state.reset(posts, deflate, frame.length);
+        }
+    }
+
+    /**
+     * Encode changes made since {@code state} was updated last time. Posts with changed content
+     * are written completely, posts with changed flags are written as flags only.
+     *
+     * @return Delta frame which should be appended to the end of the file or null if nothing has changed.
+     */
+    public static Delta encodeDelta(Posts posts, State state) throws IOException {
+        Post[] postsArray = posts.getPosts();
+        HashMap<String, State.Entry> entries = new HashMap<>();
+        ArrayList<Post> changedPosts = new ArrayList<>();
+        ArrayList<Post> changedFlagsPosts = new ArrayList<>();
+        if (postsArray != null) {
+            for (Post post : postsArray) {
+                String postNumber = post.getPostNumber();
+                State.Entry entry = state.entries.get(postNumber);
+                State.Entry newEntry = new State.Entry(post);
+                if (entry == null || entry.hash != newEntry.hash) {
+                    changedPosts.add(post);
+                } else if (entry.flags != newEntry.flags) {
+                    changedFlagsPosts.add(post);
+                }
+                entries.put(postNumber, newEntry);
+            }
+        }
+        ArrayList<String> removedPostNumbers = new ArrayList<>();
+        for (String postNumber : state.entries.keySet()) {
+            if (!entries.containsKey(postNumber)) {
+                removedPostNumbers.add(postNumber);
+            }
+        }
+        byte[] header = encodeHeader(posts);
+        boolean headerChanged = !Arrays.equals(header, state.header);
+        if (!headerChanged && changedPosts.isEmpty() && changedFlagsPosts.isEmpty()
+                && removedPostNumbers.isEmpty()) {
+            return null;
+        }
+        byte[] frame = encodeFrame(FRAME_DELTA, encodeBlock(state.deflate, writer -> {
+            writer.writeBoolean(headerChanged);
+            if (headerChanged) {
+                posts.writeHeader(writer);
+            }
+            writer.writeInt(removedPostNumbers.size());
+            for (String postNumber : removedPostNumbers) {
+                writer.writeString(postNumber);
+            }
+            writer.writeInt(changedFlagsPosts.size());
+            for (Post post : changedFlagsPosts) {
+                writer.writeString(post.getPostNumber());
+                writer.writeInt(post.getFlags());
+            }
+            writer.writeInt(changedPosts.size());
+            for (Post post : changedPosts) {
+                post.write(writer);
+            }
+        }));
+        return new Delta(frame, header, entries);
+    }
+
+    /**
+     * Read snapshot and apply all deltas following it.
+     *
+     * @param state State which will be updated to match read data, may be null.
+     */
+    public static Posts decode(InputStream input, State state) throws IOException {
+        FramesReader framesReader = new FramesReader(input);
+        Snapshot snapshot = framesReader.readSnapshot();
+        Posts posts = snapshot.readHeader();
+        ArrayList<Post> postsList = new ArrayList<>(snapshot.postsCount);
+        for (int i = 0; i < snapshot.chunksCount; i++) {
+            snapshot.readChunk(i, snapshot.chunkSize, postsList);
+        }
+        posts.setPosts(postsList);
+        int snapshotSize = framesReader.size - HEADER_SIZE;
+        int validSize = framesReader.size;
+        int deltasCount = 0;
+        while (framesReader.next() && framesReader.type == FRAME_DELTA) {
+            decodeBlock(framesReader.data, 0, framesReader.data.length, framesReader.deflate, reader -> {
+                applyDelta(posts, reader, true, null);
+                return null;
+            });
+            validSize = framesReader.size;
+            deltasCount++;
+        }
+        if (state != null) {
+            state.reset(posts, framesReader.deflate, snapshotSize);
+            state.length = validSize;
+            state.deltasSize = validSize - HEADER_SIZE - snapshotSize;
+            state.deltasCount = deltasCount;
+        }
+        return posts;
+    }
+
+    /**
+     * Read original post and posts in range from {@code start} to {@code start + count}. Only chunks containing
+     * requested posts are decoded. Deltas are applied to posts in range, new posts are added only when range
+     * includes the last post.
+     *
+     * @return Posts in range or null if range includes all posts.
+     */
+    public static Posts decodeRange(InputStream input, int start, int count) throws IOException {
+        FramesReader framesReader = new FramesReader(input);
+        Snapshot snapshot = framesReader.readSnapshot();
+        start = Math.max(Math.min(start, snapshot.postsCount - 1), 0);
+        int end = Math.min(start + count, snapshot.postsCount);
+        if (start <= 1 && end >= snapshot.postsCount) {
+            return null;
+        }
+        Posts posts = snapshot.readHeader();
+        ArrayList<Post> postsList = new ArrayList<>();
+        int startChunk = start / snapshot.chunkSize;
+        int endChunk = (end - 1) / snapshot.chunkSize;
+        if (startChunk > 0) {
+            // Original post
+            snapshot.readChunk(0, 1, postsList);
+        }
+        ArrayList<Post> chunksPosts = new ArrayList<>();
+        for (int i = startChunk; i <= endChunk; i++) {
+            snapshot.readChunk(i, snapshot.chunkSize, chunksPosts);
+        }
+        int chunksStart = startChunk * snapshot.chunkSize;
+        if (startChunk == 0 && start > 0) {
+            postsList.add(chunksPosts.get(0));
+        }
+        postsList.addAll(chunksPosts.subList(start - chunksStart, end - chunksStart));
+        posts.setPosts(postsList);
+        boolean includesEnd = end >= snapshot.postsCount;
+        Post firstPost = chunksPosts.get(start - chunksStart);
+        while (framesReader.next() && framesReader.type == FRAME_DELTA) {
+            decodeBlock(framesReader.data, 0, framesReader.data.length, framesReader.deflate, reader -> {
+                applyDelta(posts, reader, includesEnd, firstPost);
+                return null;
+            });
+        }
+        return posts;
+    }
+
+    /**
+     * @param insertNew True if new posts should be added.
+     * @param lowerBound If not null, only new posts following this post will be added.
+     */
+    private static void applyDelta(Posts posts, Reader reader, boolean insertNew, Post lowerBound)
+            throws IOException {
+        if (reader.readBoolean()) {
+            posts.readHeader(reader);
+        }
+        Post[] postsArray = posts.getPosts();
+        ArrayList<Post> postsList = new ArrayList<>();
+        if (postsArray != null) {
+            Collections.addAll(postsList, postsArray);
+        }
+        int removedCount = reader.readInt();
+        if (removedCount > 0) {
+            HashSet<String> removedPostNumbers = new HashSet<>();
+            for (int i = 0; i < removedCount; i++) {
+                removedPostNumbers.add(reader.readString());
+            }
+            for (int i = postsList.size() - 1; i >= 0; i--) {
+                if (removedPostNumbers.contains(postsList.get(i).getPostNumber())) {
+                    postsList.remove(i);
+                }
+            }
+        }
+        HashMap<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < postsList.size(); i++) {
+            positions.put(postsList.get(i).getPostNumber(), i);
+        }
+        int changedFlagsCount = reader.readInt();
+        for (int i = 0; i < changedFlagsCount; i++) {
+            String postNumber = reader.readString();
+            int flags = reader.readInt();
+            Integer position = positions.get(postNumber);
+            if (position != null) {
+                postsList.get(position).setFlags(flags);
+            }
+        }
+        int changedCount = reader.readInt();
+        ArrayList<Post> newPosts = null;
+        for (int i = 0; i < changedCount; i++) {
+            Post post = Post.read(reader);
+            Integer position = positions.get(post.getPostNumber());
+            if (position != null) {
+                postsList.set(position, post);
+            } else if (insertNew && (lowerBound == null || isAfter(post, lowerBound))) {
+                if (newPosts == null) {
+                    newPosts = new ArrayList<>();
+                }
+                newPosts.add(post);
+            }
+        }
+        if (newPosts != null) {
+            for (Post post : newPosts) {
+                insertPost(postsList, post);
+            }
+        }
+        posts.setPosts(postsList);
+    }
+
+    private static boolean isAfter(Post post, Post lowerBound) {
+        try {
+            return post.compareTo(lowerBound) > 0;
+        } catch (RuntimeException e) {
+            return true;
+        }
+    }
+
+    private static void insertPost(ArrayList<Post> postsList, Post post) {
+        try {
+            // New posts are usually added to the end
+            int start = 0;
+            int end = postsList.size();
+            if (end > 0 && postsList.get(end - 1).compareTo(post) < 0) {
+                start = end;
+            }
+            while (start < end) {
+                int middle = (start + end) >>> 1;
+                if (postsList.get(middle).compareTo(post) < 0) {
+                    start = middle + 1;
+                } else {
+                    end = middle;
+                }
+            }
+            postsList.add(start, post);
+        } catch (RuntimeException e) {
+            // Post numbers can't be compared
+            postsList.add(post);
+        }
+    }
+
+    private static byte[] encodeHeader(Posts posts) throws IOException {
+        return encodeBlock(false, posts::writeHeader);
+    }
+
+    private static byte[] encodeSnapshot(Posts posts, boolean deflate) throws IOException {
+        Post[] postsArray = posts.getPosts();
+        int postsCount = postsArray != null ? postsArray.length : 0;
+        byte[] header = encodeBlock(deflate, posts::writeHeader);
+        ArrayList<byte[]> chunks = new ArrayList<>();
+        for (int i = 0; i < postsCount; i += CHUNK_SIZE) {
+            int start = i;
+            int end = Math.min(i + CHUNK_SIZE, postsCount);
+            chunks.add(encodeBlock(deflate, writer -> {
+                for (int j = start; j < end; j++) {
+                    postsArray[j].write(writer);
+                }
+            }));
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        DataOutputStream dataOutput = new DataOutputStream(output);
+        dataOutput.writeInt(postsCount);
+        dataOutput.writeInt(CHUNK_SIZE);
+        dataOutput.writeInt(header.length);
+        for (byte[] chunk : chunks) {
+            dataOutput.writeInt(chunk.length);
+        }
+        dataOutput.write(header);
+        for (byte[] chunk : chunks) {
+            dataOutput.write(chunk);
+        }
+        dataOutput.flush();
+        return output.toByteArray();
+    }
+
+    private static byte[] encodeBlock(boolean deflate, BlockWriter blockWriter) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        if (deflate) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(output, deflater, 8192);
+                DataOutputStream dataOutput = new DataOutputStream(deflaterOutput);
+                blockWriter.write(new Writer(dataOutput));
+                dataOutput.flush();
+                deflaterOutput.finish();
+            } finally {
+                deflater.end();
+            }
+        } else {
+            DataOutputStream dataOutput = new DataOutputStream(output);
+            blockWriter.write(new Writer(dataOutput));
+            dataOutput.flush();
+        }
+        return output.toByteArray();
+    }
+
+    private static <T> T decodeBlock(byte[] data, int offset, int length, boolean deflate,
+                                     BlockReader<T> blockReader) throws IOException {
+        InputStream input = new ByteArrayInputStream(data, offset, length);
+        if (deflate) {
+            Inflater inflater = new Inflater();
+            try {
+                return blockReader.read(new Reader(new DataInputStream(new InflaterInputStream(input,
+                        inflater, 8192))));
+            } finally {
+                inflater.end();
+            }
+        } else {
+            return blockReader.read(new Reader(new DataInputStream(input)));
+        }
+    }
+
+    private static byte[] encodeFrame(int type, byte[] data) throws IOException {
+        CRC32 crc32 = new CRC32();
+        crc32.update(data);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(FRAME_HEADER_SIZE + data.length);
+        DataOutputStream frameOutput = new DataOutputStream(frame);
+        frameOutput.writeByte(type);
+        frameOutput.writeInt(data.length);
+        frameOutput.writeInt((int) crc32.getValue());
+        frameOutput.write(data);
+        frameOutput.flush();
+        return frame.toByteArray();
+    }
+
+    private interface BlockWriter {
+        public void write(Writer writer) throws IOException;
+    }
+
+    private interface BlockReader<T> {
+        public T read(Reader reader) throws IOException;
+    }
+
+    private static class FramesReader {
+        private final DataInputStream input;
+        public final boolean deflate;
+
+        public int size = HEADER_SIZE;
+        public int type;
+        public byte[] data;
+
+        public FramesReader(InputStream input) throws IOException {
+            this.input = new DataInputStream(input);
+            if (this.input.readInt() != MAGIC) {
+                throw new IOException("Invalid magic number");
+            }
+            int version = this.input.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version " + version);
+            }
+            deflate = (this.input.readUnsignedByte() & FLAG_DEFLATE) != 0;
+        }
+
+        public boolean next() throws IOException {
+            try {
+                int type = input.readUnsignedByte();
+                int length = input.readInt();
+                int checksum = input.readInt();
+                if (length < 0 || length > MAX_FRAME_SIZE) {
+                    return false;
+                }
+                byte[] data = new byte[length];
+                input.readFully(data);
+                CRC32 crc32 = new CRC32();
+                crc32.update(data);
+                if ((int) crc32.getValue() != checksum) {
+                    return false;
+                }
+                this.type = type;
+                this.data = data;
+                size += FRAME_HEADER_SIZE + length;
+                return true;
+            } catch (EOFException e) {
+                // End of file or partially written frame
+                return false;
+            }
+        }
+
+        public Snapshot readSnapshot() throws IOException {
+            if (!next() || type != FRAME_SNAPSHOT) {
+                throw new IOException("Snapshot expected");
+            }
+            return new Snapshot(data, deflate);
+        }
+    }
+
+    private static class Snapshot {
+        private final byte[] data;
+        private final boolean deflate;
+
+        public final int postsCount;
+        public final int chunkSize;
+        public final int chunksCount;
+
+        private final int headerOffset;
+        private final int headerLength;
+        private final int[] chunkOffsets;
+        private final int[] chunkLengths;
+
+        public Snapshot(byte[] data, boolean deflate) throws IOException {
+            this.data = data;
+            this.deflate = deflate;
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+            postsCount = input.readInt();
+            chunkSize = input.readInt();
+            if (postsCount < 0 || chunkSize <= 0) {
+                throw new IOException("Invalid snapshot");
+            }
+            chunksCount = (postsCount + chunkSize - 1) / chunkSize;
+            headerLength = input.readInt();
+            chunkLengths = new int[chunksCount];
+            for (int i = 0; i < chunksCount; i++) {
+                chunkLengths[i] = input.readInt();
+            }
+            headerOffset = 12 + 4 * chunksCount;
+            chunkOffsets = new int[chunksCount];
+            int offset = headerOffset + headerLength;
+            for (int i = 0; i < chunksCount; i++) {
+                chunkOffsets[i] = offset;
+                offset += chunkLengths[i];
+            }
+            if (offset != data.length) {
+                throw new IOException("Invalid snapshot");
+            }
+        }
+
+        public Posts readHeader() throws IOException {
+            return decodeBlock(data, headerOffset, headerLength, deflate, reader -> {
+                Posts posts = new Posts();
+                posts.readHeader(reader);
+                return posts;
+            });
+        }
+
+        public void readChunk(int index, int maxCount, ArrayList<Post> posts) throws IOException {
+            int count = Math.min(Math.min(chunkSize, postsCount - index * chunkSize), maxCount);
+            decodeBlock(data, chunkOffsets[index], chunkLengths[index], deflate, reader -> {
+                for (int i = 0; i < count; i++) {
+                    posts.add(Post.read(reader));
+                }
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Describes posts as they were written to file last time, used to find changes for delta frames.
+     * Only post content hashes and flags are kept, so posts can be changed in place and garbage collected.
+     */
+    public static final class State {
+        private final HashMap<String, Entry> entries = new HashMap<>();
+        private byte[] header;
+        private boolean deflate;
+
+        private long length;
+        private long snapshotSize;
+        private long deltasSize;
+        private int deltasCount;
+
+        private static class Entry {
+            public final long hash;
+            public final int flags;
+
+            public Entry(Post post) throws IOException {
+                HashOutputStream output = new HashOutputStream();
+                DataOutputStream dataOutput = new DataOutputStream(output);
+                post.writeContent(new Writer(dataOutput));
+                dataOutput.flush();
+                hash = output.hash;
+                flags = post.getFlags();
+            }
+        }
+
+        private void reset(Posts posts, boolean deflate, int snapshotSize) throws IOException {
+            entries.clear();
+            Post[] postsArray = posts.getPosts();
+            if (postsArray != null) {
+                for (Post post : postsArray) {
+                    entries.put(post.getPostNumber(), new Entry(post));
+                }
+            }
+            header = encodeHeader(posts);
+            this.deflate = deflate;
+            length = HEADER_SIZE + snapshotSize;
+            this.snapshotSize = snapshotSize;
+            deltasSize = 0;
+            deltasCount = 0;
+        }
+
+        /**
+         * Return length of valid data in file. Appended deltas must be written from this position.
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * Return true if file should be rewritten with a new snapshot instead of appending deltas.
+         */
+        public boolean isCompactionRequired() {
+            return deltasCount >= MAX_DELTAS_COUNT || deltasSize >= Math.max(snapshotSize, MIN_COMPACT_DELTAS_SIZE);
+        }
+
+        /**
+         * Update state after delta was successfully written.
+         */
+        public void commit(Delta delta) {
+            entries.clear();
+            entries.putAll(delta.entries);
+            header = delta.header;
+            length += delta.data.length;
+            deltasSize += delta.data.length;
+            deltasCount++;
+        }
+    }
+
+    public static final class Delta {
+        private final byte[] data;
+        private final byte[] header;
+        private final HashMap<String, State.Entry> entries;
+
+        private Delta(byte[] data, byte[] header, HashMap<String, State.Entry> entries) {
+            this.data = data;
+            this.header = header;
+            this.entries = entries;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    // 64-bit FNV-1a hash of written data.
+    private static class HashOutputStream extends OutputStream {
+        public long hash = 0xcbf29ce484222325L;
+
+        @Override
+        public void write(int oneByte) {
+            hash = (hash ^ (oneByte & 0xff)) * 0x100000001b3L;
+        }
+    }
+
+    static final class Writer {
+        private final DataOutputStream output;
+        private final HashMap<String, Integer> strings = new HashMap<>();
+
+        private Writer(DataOutputStream output) {
+            this.output = output;
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7fL) != 0) {
+                output.writeByte((int) (value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            output.writeByte((int) value);
+        }
+
+        public void writeInt(int value) throws IOException {
+            writeVarLong(((value << 1) ^ (value >> 31)) & 0xffffffffL);
+        }
+
+        public void writeLong(long value) throws IOException {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        public void writeBoolean(boolean value) throws IOException {
+            output.writeByte(value ? 1 : 0);
+        }
+
+        public void writeString(String value) throws IOException {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            Integer index = strings.get(value);
+            if (index != null) {
+                writeVarLong(index + 2);
+            } else {
+                strings.put(value, strings.size());
+                byte[] bytes = value.getBytes(CHARSET);
+                writeVarLong(1);
+                writeVarLong(bytes.length);
+                output.write(bytes);
+            }
+        }
+    }
+
+    static final class Reader {
+        private final DataInputStream input;
+        private final ArrayList<String> strings = new ArrayList<>();
+
+        private Reader(DataInputStream input) {
+            this.input = input;
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = input.readUnsignedByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Invalid number");
+        }
+
+        public int readInt() throws IOException {
+            int value = (int) readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        public long readLong() throws IOException {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        public boolean readBoolean() throws IOException {
+            return input.readUnsignedByte() != 0;
+        }
+
+        public String readString() throws IOException {
+            long code = readVarLong();
+            if (code == 0) {
+                return null;
+            } else if (code == 1) {
+                int length = (int) readVarLong();
+                byte[] bytes = new byte[length];
+                input.readFully(bytes);
+                String value = new String(bytes, CHARSET);
+                strings.add(value);
+                return value;
+            } else {
+                long index = code - 2;
+                if (index >= strings.size()) {
+                    throw new IOException("Invalid string reference");
+                }
+                return strings.get((int) index);
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2014-2017 Fukurou Mishiranu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package chan.http;
+
+import android.net.Uri;
+
+import com.mishiranu.dashchan.util.Log;
+
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+
+import chan.util.StringUtils;
+
+/**
+ * Tracks hosts which fail to respond, so requests to these hosts fail immediately instead of waiting
+ * for timeouts. Host becomes open after a few consecutive failures. When backoff delay expires,
+ * a single request is allowed to probe the host, delay grows exponentially while probes fail.
+ */
+public class HostHealth {
+    static final int REQUEST_REJECTED = 0;
+    static final int REQUEST_ALLOWED = 1;
+    static final int REQUEST_PROBE = 2;
+
+    private static final int FAILURES_THRESHOLD = 3;
+    private static final int MIN_OPEN_DELAY = 5000;
+    private static final int MAX_OPEN_DELAY = 120000;
+    private static final int MIN_RETRY_DELAY = 250;
+    private static final int MAX_RETRY_DELAY = 2000;
+    private static final float JITTER = 0.2f;
+
+    private static final HostHealth INSTANCE = new HostHealth();
+
+    private HostHealth() {
+    }
+
+    public static HostHealth getInstance() {
+        return INSTANCE;
+    }
+
+    private final HashMap<String, Entry> entries = new HashMap<>();
+    private final Random random = new Random();
+
+    private static class Entry {
+        public int failures;
+        public int opens;
+        public long retryTime;
+        public boolean probing;
+    }
+
+    static String getKey(Uri uri) {
+        return StringUtils.emptyIfNull(uri.getAuthority()).toLowerCase(Locale.US);
+    }
+
+    int onRequestStart(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null || entry.opens == 0) {
+                return REQUEST_ALLOWED;
+            }
+            if (entry.probing || System.currentTimeMillis() < entry.retryTime) {
+                return REQUEST_REJECTED;
+            }
+            entry.probing = true;
+            return REQUEST_PROBE;
+        }
+    }
+
+    void onRequestFinish(String key, boolean probe) {
+        if (probe) {
+            synchronized (entries) {
+                Entry entry = entries.get(key);
+                if (entry != null) {
+                    entry.probing = false;
+                }
+            }
+        }
+    }
+
+    void onResponse(String key, int responseCode, boolean cloudFlare) {
+        // Only gateway errors mean the host is down, other errors may be caused by a single endpoint.
+        // CloudFlare serves its challenge with 503 as well.
+        boolean failure = responseCode == HttpURLConnection.HTTP_BAD_GATEWAY
+                || responseCode == HttpURLConnection.HTTP_GATEWAY_TIMEOUT
+                || responseCode == HttpURLConnection.HTTP_UNAVAILABLE && !cloudFlare;
+        if (failure) {
+            onFailure(key);
+        } else {
+            synchronized (entries) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    void onFailure(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(key, entry);
+            }
+            long time = System.currentTimeMillis();
+            if (entry.opens > 0) {
+                // Requests started before host was opened don't extend the delay
+                if (time >= entry.retryTime) {
+                    entry.opens++;
+                    entry.retryTime = time + getOpenDelay(entry.opens);
+                }
+            } else if (++entry.failures >= FAILURES_THRESHOLD) {
+                entry.opens = 1;
+                entry.retryTime = time + getOpenDelay(entry.opens);
+                Log.persistent().write(Log.TYPE_WARNING, "host is not responding", key);
+            }
+        }
+    }
+
+    private long getOpenDelay(int opens) {
+        return applyJitter(Math.min((long) MIN_OPEN_DELAY << Math.min(opens - 1, 16), MAX_OPEN_DELAY));
+    }
+
+    // Returns delay before retrying failed request, the first retry is done immediately.
+    long getRetryDelay(int retry) {
+        if (retry <= 0) {
+            return 0L;
+        }
+        return applyJitter(Math.min((long) MIN_RETRY_DELAY << Math.min(retry - 1, 16), MAX_RETRY_DELAY));
+    }
+
+    private long applyJitter(long delay) {
+        return delay + (long) (delay * JITTER * (2f * random.nextFloat() - 1f));
+    }
+
+    // Returns time in milliseconds until requests to host are allowed again.
+    long getRemainingTime(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            return entry != null && entry.opens > 0 ? Math.max(entry.retryTime - System.currentTimeMillis(), 0L) : 0L;
+        }
+    }
+
+    // Allows the next request to probe the host immediately, used when user explicitly refreshes the page.
+    public void allowProbe(String host) {
+        synchronized (entries) {
+            Entry entry = entries.get(StringUtils.emptyIfNull(host).toLowerCase(Locale.US));
+            if (entry != null && entry.opens > 0) {
+                entry.retryTime = Math.min(entry.retryTime, System.currentTimeMillis());
+            }
+        }
+    }
+}
@@ -37,6 +37,7 @@ import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -83,6 +84,7 @@ import chan.util.StringUtils;
 
 public class HttpClient {
     private static final int MAX_ATTEMPS_COUNT = 10;
+    private static final int MAX_RETRIES_COUNT = 4;
 
     private static final HashMap<String, String> SHORT_RESPONSE_MESSAGES = new HashMap<>();
 
@@ -94,6 +96,25 @@ public class HttpClient {
 
     static final int HTTP_TEMPORARY_REDIRECT = 307;
 
+    private static final ThreadLocal<int[]> INTERNAL_REQUEST_DEPTH = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    private static boolean isInternalRequest() {
+        return INTERNAL_REQUEST_DEPTH.get()[0] > 0;
+    }
+
+    private static void enterInternalRequest() {
+        INTERNAL_REQUEST_DEPTH.get()[0]++;
+    }
+
+    private static void exitInternalRequest() {
+        INTERNAL_REQUEST_DEPTH.get()[0]--;
+    }
+
     static {
         int poolSize = (ChanManager.getInstance().getAllChanNames().size() + 1) * 2;
         System.setProperty("http.maxConnections", Integer.toString(poolSize));
@@ -155,20 +176,12 @@ public class HttpClient {
          * This cause some bugs in application work.
          *
          * This CookieHandler doesn't allow app to store cookies when chan HttpClient used.
+         * HttpClient marks the thread while it works with connection, so the check doesn't require
+         * walking the stack trace on every request.
          */
         CookieHandler.setDefault(new CookieHandler() {
             private final CookieManager cookieManager = new CookieManager();
 
-            private boolean isInternalRequest() {
-                StackTraceElement[] elements = Thread.currentThread().getStackTrace();
-                for (StackTraceElement element : elements) {
-                    if (HttpClient.class.getName().equals(element.getClassName())) {
-                        return true;
-                    }
-                }
-                return false;
-            }
-
             @Override
             public void put(URI uri, Map<String, List<String>> responseHeaders) throws IOException {
                 if (isInternalRequest()) {
@@ -261,7 +274,22 @@ public class HttpClient {
         boolean verifyCertificate = locator.isUseHttps() && Preferences.isVerifyCertificate();
         request.holder.initRequest(request.uri, proxies.get(chanName), chanName, verifyCertificate, request.delay,
                 MAX_ATTEMPS_COUNT);
-        executeInternal(request);
+        // Don't wait for timeouts if host is known to be down
+        String hostKey = HostHealth.getKey(request.uri);
+        int requestType = HostHealth.getInstance().onRequestStart(hostKey);
+        if (requestType == HostHealth.REQUEST_REJECTED) {
+            // Seconds until the next retry are displayed in error message
+            long remainingTime = HostHealth.getInstance().getRemainingTime(hostKey);
+            throw new HttpException(ErrorItem.TYPE_HOST_UNAVAILABLE, (int) ((remainingTime + 999) / 1000),
+                    false, true);
+        }
+        enterInternalRequest();
+        try {
+            executeInternal(request);
+        } finally {
+            exitInternalRequest();
+            HostHealth.getInstance().onRequestFinish(hostKey, requestType == HostHealth.REQUEST_PROBE);
+        }
     }
 
     private void encodeUriBufferPart(StringBuilder uriStringBuilder, char[] chars, int i, int start, boolean ascii) {
@@ -366,8 +394,17 @@ public class HttpClient {
             if (!userAgentSet) {
                 connection.setRequestProperty("User-Agent", AdvancedPreferences.getUserAgent(chanName));
             }
+            boolean hasRange = request.hasRange();
+            if (hasRange) {
+                connection.setRequestProperty("Range", "bytes=" + request.rangeStart + "-"
+                        + (request.rangeEnd >= 0 ? Long.toString(request.rangeEnd) : ""));
+                if (request.rangeValidator != null) {
+                    connection.setRequestProperty("If-Range", request.rangeValidator);
+                }
+            }
             if (!acceptEncodingSet) {
-                connection.setRequestProperty("Accept-Encoding", "gzip");
+                // Byte ranges must address the original entity, so don't ask for gzip when requesting a range
+                connection.setRequestProperty("Accept-Encoding", hasRange ? "identity" : "gzip");
             }
             CookieBuilder cookieBuilder = obtainModifiedCookieBuilder(request.cookieBuilder, chanName);
             if (cookieBuilder != null) {
@@ -442,6 +479,9 @@ public class HttpClient {
                 }
             }
 
+            HostHealth.getInstance().onResponse(HostHealth.getKey(requestedUri), responseCode,
+                    connection.getHeaderField("CF-RAY") != null);
+
             HttpRequest.RedirectHandler redirectHandler = request.redirectHandler;
             switch (responseCode) {
                 case HttpURLConnection.HTTP_MOVED_PERM:
@@ -507,8 +547,19 @@ public class HttpClient {
         } catch (IOException e) {
             if (isConnectionReset(e)) {
                 // Sometimes server closes the socket, but client is still trying to use it
-                if (holder.nextAttempt()) {
+                if (holder.retries < MAX_RETRIES_COUNT && holder.nextAttempt()) {
                     Log.persistent().stack(e);
+                    // Stale connection is retried immediately, next retries are delayed to not overload server
+                    long delay = HostHealth.getInstance().getRetryDelay(holder.retries++);
+                    if (delay > 0) {
+                        try {
+                            Thread.sleep(delay);
+                        } catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                            holder.disconnectAndClear();
+                            throw new HttpException(0, false, false, ie);
+                        }
+                    }
                     executeInternal(request);
                     return;
                 }
@@ -531,31 +582,57 @@ public class HttpClient {
                 }
             }
             holder.disconnectAndClear();
+            if (isHostFailure(e)) {
+                HostHealth.getInstance().onFailure(HostHealth.getKey(holder.requestedUri));
+            }
             checkExceptionAndThrow(e);
             throw new HttpException(ErrorItem.TYPE_DOWNLOAD, false, true, e);
         }
     }
 
+    private ClientInputStream openInputStream(HttpHolder holder, HttpURLConnection connection) throws IOException {
+        holder.checkDisconnected();
+        InputStream commonInput;
+        try {
+            commonInput = connection.getInputStream();
+        } catch (FileNotFoundException e) {
+            commonInput = connection.getErrorStream();
+        }
+        commonInput = new BufferedInputStream(commonInput, 4096);
+        String encoding = connection.getContentEncoding();
+        int contentLength = connection.getContentLength();
+        if ("gzip".equals(encoding)) {
+            commonInput = new GZIPInputStream(commonInput);
+            contentLength = -1;
+        }
+        return new ClientInputStream(commonInput, holder, holder.inputListener, contentLength);
+    }
+
+    private String obtainCharsetName(HttpURLConnection connection) {
+        String contentType = connection.getHeaderField("Content-Type");
+        if (contentType != null) {
+            int index = contentType.indexOf("charset=");
+            if (index >= 0) {
+                int end = contentType.indexOf(';', index);
+                String charsetName = contentType.substring(index + 8, end >= 0 ? end : contentType.length());
+                try {
+                    Charset.forName(charsetName);
+                    return charsetName;
+                } catch (UnsupportedCharsetException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
     HttpResponse read(HttpHolder holder) throws HttpException {
+        enterInternalRequest();
         try {
             HttpURLConnection connection = holder.getConnection();
-            holder.checkDisconnected();
-            InputStream commonInput;
-            try {
-                commonInput = connection.getInputStream();
-            } catch (FileNotFoundException e) {
-                commonInput = connection.getErrorStream();
-            }
-            commonInput = new BufferedInputStream(commonInput, 4096);
-            String encoding = connection.getContentEncoding();
-            int contentLength = connection.getContentLength();
-            if ("gzip".equals(encoding)) {
-                commonInput = new GZIPInputStream(commonInput);
-                contentLength = -1;
-            }
+            ClientInputStream input = openInputStream(holder, connection);
             OutputStream output = holder.outputStream;
-            ClientInputStream input = new ClientInputStream(commonInput, holder, holder.inputListener, contentLength);
-            ByteArrayOutputStream writeTo = output == null ? new ByteArrayOutputStream() : null;
+            ResponseOutputStream writeTo = output == null ? new ResponseOutputStream(input.contentLength) : null;
             if (output == null) {
                 output = writeTo;
             }
@@ -565,23 +642,10 @@ public class HttpClient {
                 IOUtils.close(input);
                 IOUtils.close(output);
             }
-            String contentType = connection.getHeaderField("Content-Type");
-            String charsetName = null;
-            if (contentType != null) {
-                int index = contentType.indexOf("charset=");
-                if (index >= 0) {
-                    int end = contentType.indexOf(';', index);
-                    charsetName = contentType.substring(index + 8, end >= 0 ? end : contentType.length());
-                    try {
-                        Charset.forName(charsetName);
-                    } catch (UnsupportedCharsetException e) {
-                        charsetName = null;
-                    }
-                }
-            }
+            String charsetName = obtainCharsetName(connection);
             holder.checkDisconnectedAndSetHasUnreadBody(false);
             if (writeTo != null) {
-                HttpResponse httpResponse = new HttpResponse(writeTo.toByteArray());
+                HttpResponse httpResponse = new HttpResponse(writeTo.getBytes());
                 if (charsetName != null) {
                     httpResponse.setEncoding(charsetName);
                 }
@@ -596,9 +660,32 @@ public class HttpClient {
             throw new HttpException(ErrorItem.TYPE_DOWNLOAD, false, true, e);
         } finally {
             holder.disconnectAndClear();
+            exitInternalRequest();
+        }
+    }
+
+    InputStream readStream(HttpHolder holder) throws HttpException {
+        enterInternalRequest();
+        try {
+            HttpURLConnection connection = holder.getConnection();
+            return new ResponseInputStream(openInputStream(holder, connection), holder);
+        } catch (DisconnectedIOException e) {
+            holder.disconnectAndClear();
+            throw new HttpException(0, false, false, e);
+        } catch (IOException e) {
+            holder.disconnectAndClear();
+            checkExceptionAndThrow(e);
+            throw new HttpException(ErrorItem.TYPE_DOWNLOAD, false, true, e);
+        } finally {
+            exitInternalRequest();
         }
     }
 
+    String getCharsetName(HttpHolder holder) {
+        HttpURLConnection connection = holder.getConnectionForHeaders();
+        return connection != null ? obtainCharsetName(connection) : null;
+    }
+
     CookieBuilder obtainModifiedCookieBuilder(CookieBuilder cookieBuilder, String chanName) {
         String cloudFlareCookie = CloudFlarePasser.getCookie(chanName);
         if (cloudFlareCookie != null) {
@@ -695,6 +782,13 @@ public class HttpClient {
         return 0;
     }
 
+    private boolean isHostFailure(IOException exception) {
+        // Other errors may be caused by network state or certificates, not by host itself
+        int errorType = getErrorTypeForException(exception);
+        return errorType == ErrorItem.TYPE_CONNECT_TIMEOUT || errorType == ErrorItem.TYPE_READ_TIMEOUT
+                || errorType == ErrorItem.TYPE_CONNECTION_RESET;
+    }
+
     private boolean isConnectionReset(IOException exception) {
         if (exception instanceof EOFException) {
             return true;
@@ -793,6 +887,43 @@ public class HttpClient {
         }
     }
 
+    private static class ResponseInputStream extends FilterInputStream {
+        private final HttpHolder holder;
+
+        private boolean closed = false;
+
+        public ResponseInputStream(InputStream input, HttpHolder holder) {
+            super(input);
+            this.holder = holder;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                try {
+                    super.close();
+                } finally {
+                    holder.onStreamClosed();
+                }
+            }
+        }
+    }
+
+    private static class ResponseOutputStream extends ByteArrayOutputStream {
+        private static final int MAX_INITIAL_CAPACITY = 1024 * 1024;
+
+        public ResponseOutputStream(long contentLength) {
+            // Allocate exact buffer when content length is known to avoid growing and copying,
+            // but don't trust huge lengths from server, buffer will grow if necessary
+            super(contentLength > 0 ? (int) Math.min(contentLength, MAX_INITIAL_CAPACITY) : 32);
+        }
+
+        public byte[] getBytes() {
+            return count == buf.length ? buf : toByteArray();
+        }
+    }
+
     private static class ClientOutputStream extends OutputStream {
         private final OutputStream output;
         private final HttpHolder holder;
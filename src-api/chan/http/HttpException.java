@@ -30,13 +30,20 @@ public final class HttpException extends Exception implements ErrorItem.Holder {
     private final int responseCode;
     private final String responseText;
     private final int errorItemType;
+    private final int errorItemSpecialType;
 
     private final boolean httpException;
     private final boolean socketException;
 
     public HttpException(int errorItemType, boolean httpException, boolean socketException) {
+        this(errorItemType, 0, httpException, socketException);
+    }
+
+    public HttpException(int errorItemType, int errorItemSpecialType, boolean httpException,
+            boolean socketException) {
         this.responseCode = 0;
         this.errorItemType = errorItemType;
+        this.errorItemSpecialType = errorItemSpecialType;
         this.responseText = null;
         this.httpException = httpException;
         this.socketException = socketException;
@@ -46,6 +53,7 @@ public final class HttpException extends Exception implements ErrorItem.Holder {
         super(throwable);
         this.responseCode = 0;
         this.errorItemType = errorItemType;
+        this.errorItemSpecialType = 0;
         this.responseText = null;
         this.httpException = httpException;
         this.socketException = socketException;
@@ -55,6 +63,7 @@ public final class HttpException extends Exception implements ErrorItem.Holder {
     public HttpException(int responseCode, String responseText) {
         this.responseCode = responseCode;
         this.errorItemType = 0;
+        this.errorItemSpecialType = 0;
         this.responseText = responseText;
         this.httpException = true;
         this.socketException = false;
@@ -80,7 +89,7 @@ public final class HttpException extends Exception implements ErrorItem.Holder {
         if (!StringUtils.isEmpty(responseText)) {
             return new ErrorItem(responseCode, responseText);
         }
-        return new ErrorItem(errorItemType);
+        return new ErrorItem(errorItemType, errorItemSpecialType);
     }
 
     @Public
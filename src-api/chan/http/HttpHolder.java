@@ -20,8 +20,10 @@ import android.net.Uri;
 
 import com.mishiranu.dashchan.util.IOUtils;
 
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.Proxy;
@@ -39,6 +41,7 @@ public final class HttpHolder {
     int delay;
 
     private int attempt;
+    int retries;
     boolean forceGet = false;
 
     @Public
@@ -52,6 +55,7 @@ public final class HttpHolder {
         this.verifyCertificate = verifyCertificate;
         this.delay = delay;
         attempt = maxAttempts;
+        retries = 0;
         forceGet = false;
     }
 
@@ -189,12 +193,34 @@ public final class HttpHolder {
         return response;
     }
 
+    @Public
+    public InputStream readStream() throws HttpException {
+        HttpResponse response = this.response;
+        if (response != null) {
+            byte[] bytes = response.getBytes();
+            return new ByteArrayInputStream(bytes != null ? bytes : new byte[0]);
+        }
+        return HttpClient.getInstance().readStream(this);
+    }
+
+    void onStreamClosed() {
+        if (requestThread == Thread.currentThread()) {
+            hasUnreadBody = false;
+        }
+        disconnectAndClear();
+    }
+
+    @Public
+    public String getCharsetName() {
+        return HttpClient.getInstance().getCharsetName(this);
+    }
+
     @Public
     public void checkResponseCode() throws HttpException {
         HttpClient.getInstance().checkResponseCode(this);
     }
 
-    private HttpURLConnection getConnectionForHeaders() {
+    HttpURLConnection getConnectionForHeaders() {
         HttpURLConnection connection = this.connection;
         if (connection == null) {
             connection = deadConnection;
@@ -239,6 +265,19 @@ public final class HttpHolder {
         return connection != null ? connection.getHeaderFields() : null;
     }
 
+    public String getHeaderValue(String name) {
+        Map<String, List<String>> headers = getHeaderFields();
+        if (headers != null) {
+            for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+                List<String> values = entry.getValue();
+                if (name.equalsIgnoreCase(entry.getKey()) && values != null && !values.isEmpty()) {
+                    return values.get(0);
+                }
+            }
+        }
+        return null;
+    }
+
     @Public
     public String getCookieValue(String name) {
         Map<String, List<String>> headers = getHeaderFields();
@@ -19,6 +19,7 @@ package chan.http;
 import android.net.Uri;
 import android.util.Pair;
 
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
@@ -53,6 +54,14 @@ public final class HttpRequest {
         public OutputStream getOutputStream();
     }
 
+    public interface RangePreset extends Preset {
+        public long getRangeStart();
+
+        public long getRangeEnd();
+
+        public String getRangeValidator();
+    }
+
     public interface OutputListener {
         public void onOutputProgressChange(long progress, long progressMax);
     }
@@ -136,6 +145,9 @@ public final class HttpRequest {
     int connectTimeout = 15000;
     int readTimeout = 15000;
     int delay = 0;
+    long rangeStart = 0L;
+    long rangeEnd = -1L;
+    String rangeValidator;
 
     ArrayList<Pair<String, String>> headers;
     CookieBuilder cookieBuilder;
@@ -164,6 +176,10 @@ public final class HttpRequest {
         if (preset instanceof OutputStreamPreset) {
             setOutputStream(((OutputStreamPreset) preset).getOutputStream());
         }
+        if (preset instanceof RangePreset) {
+            setRange(((RangePreset) preset).getRangeStart(), ((RangePreset) preset).getRangeEnd());
+            setRangeValidator(((RangePreset) preset).getRangeValidator());
+        }
     }
 
     @Public
@@ -267,6 +283,26 @@ public final class HttpRequest {
         return this;
     }
 
+    public HttpRequest setRangeStart(long rangeStart) {
+        return setRange(rangeStart, -1L);
+    }
+
+    public HttpRequest setRange(long rangeStart, long rangeEnd) {
+        this.rangeStart = Math.max(rangeStart, 0L);
+        this.rangeEnd = rangeEnd >= this.rangeStart ? rangeEnd : -1L;
+        return this;
+    }
+
+    // Range is ignored by server if entity doesn't match the validator (ETag or Last-Modified).
+    public HttpRequest setRangeValidator(String rangeValidator) {
+        this.rangeValidator = rangeValidator;
+        return this;
+    }
+
+    boolean hasRange() {
+        return rangeStart > 0 || rangeEnd >= 0;
+    }
+
     private HttpRequest addHeader(Pair<String, String> header) {
         if (header != null && header.first != null && header.second != null) {
             if (headers == null) {
@@ -345,6 +381,8 @@ public final class HttpRequest {
         request.setOutputStream(outputStream);
         request.setTimeouts(connectTimeout, readTimeout);
         request.setDelay(delay);
+        request.setRange(rangeStart, rangeEnd);
+        request.setRangeValidator(rangeValidator);
         if (headers != null) {
             request.headers = new ArrayList<>(headers);
         }
@@ -377,4 +415,18 @@ public final class HttpRequest {
             throw e;
         }
     }
+
+    @Public
+    public InputStream readStream() throws HttpException {
+        execute();
+        try {
+            if (requestMethod == REQUEST_METHOD_HEAD) {
+                return null;
+            }
+            return holder.readStream();
+        } catch (HttpException e) {
+            holder.disconnect();
+            throw e;
+        }
+    }
 }
@@ -16,16 +16,20 @@
 
 package com.mishiranu.dashchan.content;
 
+import android.content.ComponentCallbacks2;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Environment;
 import android.util.Pair;
 
+import com.mishiranu.dashchan.C;
 import com.mishiranu.dashchan.content.storage.FavoritesStorage;
+import com.mishiranu.dashchan.graphics.BitmapMemoryCache;
+import com.mishiranu.dashchan.graphics.BitmapPool;
+import com.mishiranu.dashchan.preference.AdvancedPreferences;
 import com.mishiranu.dashchan.preference.Preferences;
 import com.mishiranu.dashchan.util.AndroidUtils;
 import com.mishiranu.dashchan.util.ConcurrentUtils;
@@ -34,7 +38,9 @@ import com.mishiranu.dashchan.util.Log;
 import com.mishiranu.dashchan.util.LruCache;
 import com.mishiranu.dashchan.util.MimeTypes;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
@@ -43,7 +49,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -58,6 +64,7 @@ import java.util.concurrent.LinkedBlockingQueue;
 import chan.content.ChanConfiguration;
 import chan.content.ChanManager;
 import chan.content.model.Posts;
+import chan.content.model.PostsCodec;
 import chan.util.StringUtils;
 
 public class CacheManager implements Runnable {
@@ -65,11 +72,18 @@ public class CacheManager implements Runnable {
     private static final int MAX_MEDIA_PART = 60;
     private static final int MAX_PAGES_PART = 30;
 
+    private static final int MAX_ORIGINAL_THUMBNAIL_SIZE = 32 * 1024;
+
     private static final long OLD_THREADS_THRESHOLD = 7 * 24 * 60 * 60 * 1000; // One week
 
     private static final float TRIM_FACTOR = 0.3f;
 
     private static final String TEMP_PAGE_FILE_PREFIX = "temp_";
+    private static final String PARTIAL_MEDIA_FILE_SUFFIX = ".part";
+    private static final String SEGMENTS_MEDIA_FILE_SUFFIX = ".segments";
+    private static final String VALIDATOR_MEDIA_FILE_SUFFIX = ".validator";
+
+    private static final int MAX_PAGE_STATES = 20;
 
     private static final CacheManager INSTANCE = new CacheManager();
 
@@ -100,10 +114,6 @@ public class CacheManager implements Runnable {
             }
             File file = null;
             switch (cacheItem.type) {
-                case CacheItem.TYPE_THUMBNAILS: {
-                    file = new File(getThumbnailsDirectory(), cacheItem.name);
-                    break;
-                }
                 case CacheItem.TYPE_MEDIA: {
                     file = new File(getMediaDirectory(), cacheItem.name);
                     break;
@@ -120,7 +130,6 @@ public class CacheManager implements Runnable {
     private volatile CountDownLatch cacheBuildingLatch;
 
     private class CacheItem {
-        public static final int TYPE_THUMBNAILS = 0;
         public static final int TYPE_MEDIA = 1;
         public static final int TYPE_PAGES = 2;
 
@@ -168,11 +177,10 @@ public class CacheManager implements Runnable {
     private static final Comparator<CacheItem> SORT_BY_DATE_COMPARATOR =
             (lhs, rhs) -> ((Long) lhs.lastModified).compareTo(rhs.lastModified);
 
-    private final LinkedHashMap<String, CacheItem> thumbnailsCache = new LinkedHashMap<>();
+    private final ThumbnailStore thumbnailStore = new ThumbnailStore();
     private final LinkedHashMap<String, CacheItem> mediaCache = new LinkedHashMap<>();
     private final LinkedHashMap<String, CacheItem> pagesCache = new LinkedHashMap<>();
 
-    private long thumbnailsCacheSize;
     private long mediaCacheSize;
     private long pagesCacheSize;
 
@@ -209,10 +217,7 @@ public class CacheManager implements Runnable {
         cacheBuildingLatch = latch;
         new Thread(() -> {
             try {
-                synchronized (thumbnailsCache) {
-                    thumbnailsCacheSize = fillCache(thumbnailsCache, getThumbnailsDirectory(),
-                            CacheItem.TYPE_THUMBNAILS);
-                }
+                thumbnailStore.open(getThumbnailsDirectory());
                 synchronized (mediaCache) {
                     mediaCacheSize = fillCache(mediaCache, getMediaDirectory(), CacheItem.TYPE_MEDIA);
                 }
@@ -231,16 +236,9 @@ public class CacheManager implements Runnable {
         int maxCacheSizeMb = Preferences.getCacheSize();
         ArrayList<CacheItem> cleanupCacheItems = null;
         if (thumbnails) {
-            synchronized (thumbnailsCache) {
-                long maxSize = MAX_THUMBNAILS_PART * maxCacheSizeMb * 1024L * 1024L / maxCache;
-                if (thumbnailsCacheSize > maxSize) {
-                    if (cleanupCacheItems == null) {
-                        cleanupCacheItems = new ArrayList<>();
-                    }
-                    thumbnailsCacheSize = obtainCacheItemsToCleanup(cleanupCacheItems, thumbnailsCache,
-                            thumbnailsCacheSize, maxSize, null);
-                }
-            }
+            long maxSize = MAX_THUMBNAILS_PART * maxCacheSizeMb * 1024L * 1024L / maxCache;
+            long trimAmount = (long) (TRIM_FACTOR * maxSize);
+            thumbnailStore.trim(thumbnailStore.getSize() > maxSize ? maxSize - trimAmount : maxSize, trimAmount);
         }
         if (media) {
             synchronized (mediaCache) {
@@ -314,6 +312,11 @@ public class CacheManager implements Runnable {
         }
     }
 
+    public boolean isCacheSynced() {
+        CountDownLatch latch = cacheBuildingLatch;
+        return latch == null || latch.getCount() == 0;
+    }
+
     private boolean waitCacheSync() {
         CountDownLatch latch = cacheBuildingLatch;
         if (latch != null) {
@@ -329,9 +332,6 @@ public class CacheManager implements Runnable {
 
     private LinkedHashMap<String, CacheItem> getCacheItems(int type) {
         switch (type) {
-            case CacheItem.TYPE_THUMBNAILS: {
-                return thumbnailsCache;
-            }
             case CacheItem.TYPE_MEDIA: {
                 return mediaCache;
             }
@@ -344,10 +344,6 @@ public class CacheManager implements Runnable {
 
     private void modifyCacheSize(int type, long lengthDelta) {
         switch (type) {
-            case CacheItem.TYPE_THUMBNAILS: {
-                thumbnailsCacheSize += lengthDelta;
-                break;
-            }
             case CacheItem.TYPE_MEDIA: {
                 mediaCacheSize += lengthDelta;
                 break;
@@ -359,22 +355,6 @@ public class CacheManager implements Runnable {
         }
     }
 
-    private boolean isFileExistsInCache(File file, String fileName, int type) {
-        if (waitCacheSync()) {
-            return false;
-        }
-        LinkedHashMap<String, CacheItem> cacheItems = getCacheItems(type);
-        synchronized (cacheItems) {
-            CacheItem cacheItem = cacheItems.get(fileName.toLowerCase(Locale.US));
-            if (cacheItem != null && !file.exists()) {
-                cacheItems.remove(cacheItem.nameLc);
-                modifyCacheSize(type, -cacheItem.length);
-                cacheItem = null;
-            }
-            return cacheItem != null;
-        }
-    }
-
     private void updateCachedFileLastModified(File file, String fileName, int type) {
         if (waitCacheSync()) {
             return;
@@ -414,8 +394,7 @@ public class CacheManager implements Runnable {
             }
             modifyCacheSize(type, lengthDelta);
             if (success) {
-                cleanupAsync(type == CacheItem.TYPE_THUMBNAILS, type == CacheItem.TYPE_MEDIA,
-                        type == CacheItem.TYPE_PAGES);
+                cleanupAsync(false, type == CacheItem.TYPE_MEDIA, type == CacheItem.TYPE_PAGES);
             }
         }
     }
@@ -428,7 +407,7 @@ public class CacheManager implements Runnable {
         if (waitCacheSync()) {
             return 0L;
         }
-        return thumbnailsCacheSize + mediaCacheSize + pagesCacheSize;
+        return thumbnailStore.getSize() + mediaCacheSize + pagesCacheSize;
     }
 
     private File getThumbnailsDirectory() {
@@ -471,6 +450,39 @@ public class CacheManager implements Runnable {
         return getMediaFile(getCachedFileKey(uri), touch);
     }
 
+    public File getPartialMediaFile(Uri uri) {
+        if (!isCacheAvailable()) {
+            return null;
+        }
+        File directory = getMediaDirectory();
+        if (directory == null) {
+            return null;
+        }
+        return new File(directory, getCachedFileKey(uri) + PARTIAL_MEDIA_FILE_SUFFIX);
+    }
+
+    public File getSegmentsMediaFile(Uri uri) {
+        if (!isCacheAvailable()) {
+            return null;
+        }
+        File directory = getMediaDirectory();
+        if (directory == null) {
+            return null;
+        }
+        return new File(directory, getCachedFileKey(uri) + SEGMENTS_MEDIA_FILE_SUFFIX);
+    }
+
+    public File getValidatorMediaFile(Uri uri) {
+        if (!isCacheAvailable()) {
+            return null;
+        }
+        File directory = getMediaDirectory();
+        if (directory == null) {
+            return null;
+        }
+        return new File(directory, getCachedFileKey(uri) + VALIDATOR_MEDIA_FILE_SUFFIX);
+    }
+
     private long eraseCache(LinkedHashMap<String, CacheItem> cacheItems, File directory,
                             DeleteCondition deleteCondition) throws InterruptedException {
         if (directory == null) {
@@ -493,10 +505,7 @@ public class CacheManager implements Runnable {
     }
 
     public void eraseThumbnailsCache() throws InterruptedException {
-        synchronized (thumbnailsCache) {
-            eraseCache(thumbnailsCache, getThumbnailsDirectory(), null);
-            thumbnailsCacheSize = 0L;
-        }
+        thumbnailStore.clear();
     }
 
     public void eraseMediaCache() throws InterruptedException {
@@ -576,9 +585,7 @@ public class CacheManager implements Runnable {
         File directory = file.getParentFile();
         if (directory != null) {
             int type = -1;
-            if (directory.equals(getThumbnailsDirectory())) {
-                type = CacheItem.TYPE_THUMBNAILS;
-            } else if (directory.equals(getMediaDirectory())) {
+            if (directory.equals(getMediaDirectory())) {
                 type = CacheItem.TYPE_MEDIA;
             } else if (directory.equals(getPagesDirectory())) {
                 type = CacheItem.TYPE_PAGES;
@@ -589,88 +596,78 @@ public class CacheManager implements Runnable {
         }
     }
 
-    private final LruCache<String, Bitmap> bitmapCache = new LruCache<>(MainApplication.getInstance().isLowRam()
-            ? 50 : 200);
+    private final BitmapMemoryCache bitmapCache = new BitmapMemoryCache(obtainBitmapCacheSize(), null);
+
+    private static long obtainBitmapCacheSize() {
+        MainApplication application = MainApplication.getInstance();
+        // Use 1/8 of application memory for thumbnails or 1/16 on low-RAM devices
+        return application.getMemoryClass() * 1024L * 1024L / (application.isLowRam() ? 16 : 8);
+    }
 
     public boolean isThumbnailCachedMemory(String thumbnailKey) {
-        synchronized (bitmapCache) {
-            return bitmapCache.get(thumbnailKey) != null;
-        }
+        return bitmapCache.contains(thumbnailKey);
     }
 
     public Bitmap loadThumbnailMemory(String thumbnailKey) {
-        synchronized (bitmapCache) {
-            return bitmapCache.get(thumbnailKey);
-        }
+        return bitmapCache.get(thumbnailKey);
     }
 
     public void storeThumbnailMemory(String thumbnailKey, Bitmap data) {
-        synchronized (bitmapCache) {
-            if (isThumbnailCachedMemory(thumbnailKey)) {
-                return;
-            }
-            bitmapCache.put(thumbnailKey, data);
-        }
+        bitmapCache.putIfAbsent(thumbnailKey, data);
     }
 
-    public File getThumbnailFile(String thumbnailKey) {
-        File directory = getThumbnailsDirectory();
-        if (directory == null) {
-            return null;
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            bitmapCache.clear();
+            BitmapPool.getInstance().trim(0f);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            bitmapCache.trim(0.5f);
+            BitmapPool.getInstance().trim(0.5f);
         }
-        return new File(directory, thumbnailKey);
     }
 
     public Bitmap loadThumbnailExternal(String thumbnailKey) {
-        if (!isCacheAvailable()) {
-            return null;
-        }
-        File file = getThumbnailFile(thumbnailKey);
-        if (file == null) {
+        if (!isCacheAvailable() || waitCacheSync()) {
             return null;
         }
-        if (!isFileExistsInCache(file, thumbnailKey, CacheItem.TYPE_THUMBNAILS)) {
+        byte[] bytes = thumbnailStore.read(thumbnailKey);
+        if (bytes == null) {
             return null;
         }
-        Bitmap bitmap;
-        FileInputStream fis = null;
-        try {
-            fis = new FileInputStream(file);
-            bitmap = BitmapFactory.decodeStream(fis);
-            if (bitmap == null) {
-                file.delete();
-                return null;
-            }
-            updateCachedFileLastModified(file, thumbnailKey, CacheItem.TYPE_THUMBNAILS);
-            return bitmap;
-        } catch (IOException e) {
-            return null;
-        } finally {
-            IOUtils.close(fis);
+        Bitmap bitmap = BitmapPool.getInstance().decodeByteArray(bytes, 0, bytes.length);
+        if (bitmap == null) {
+            thumbnailStore.remove(thumbnailKey);
         }
+        return bitmap;
     }
 
-    public void storeThumbnailExternal(String thumbnailKey, Bitmap data) {
-        if (!isCacheAvailable()) {
+    /**
+     * Store thumbnail in cache. Original image bytes are written as is when they are small enough,
+     * otherwise thumbnail is encoded with lossy format unless it has alpha channel.
+     */
+    public void storeThumbnailExternal(String thumbnailKey, Bitmap data, byte[] originalBytes) {
+        if (!isCacheAvailable() || waitCacheSync()) {
             return;
         }
-        File directory = getThumbnailsDirectory();
-        if (directory == null) {
-            return;
-        }
-        boolean success = false;
-        OutputStream outputStream = null;
-        File file = new File(directory, thumbnailKey);
-        try {
-            outputStream = new FileOutputStream(file);
-            data.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
-            success = true;
-        } catch (IOException e) {
-            // Ignore exception
-        } finally {
-            IOUtils.close(outputStream);
-            validateNewCachedFile(file, thumbnailKey, CacheItem.TYPE_THUMBNAILS, success);
+        byte[] bytes;
+        if (originalBytes != null && originalBytes.length <= MAX_ORIGINAL_THUMBNAIL_SIZE) {
+            bytes = originalBytes;
+        } else {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            if (!data.hasAlpha()) {
+                data.compress(Bitmap.CompressFormat.JPEG, AdvancedPreferences.getThumbnailsQuality(), outputStream);
+            } else if (C.API_JELLY_BEAN_MR2) {
+                // Decoding WebP with alpha channel is supported since 4.3
+                data.compress(Bitmap.CompressFormat.WEBP, AdvancedPreferences.getThumbnailsQuality(), outputStream);
+            } else {
+                data.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
+            }
+            bytes = outputStream.toByteArray();
         }
+        thumbnailStore.write(thumbnailKey, bytes);
+        cleanupAsync(true, false, false);
     }
 
     private final Object serializationQueueLock = new Object();
@@ -717,6 +714,8 @@ public class CacheManager implements Runnable {
     }
 
     private final HashMap<String, SerializePageCallback> serializePageCallbacks = new HashMap<>();
+    // States keep only post hashes and flags, not posts themselves
+    private final LruCache<String, PostsCodec.State> pageStates = new LruCache<>(MAX_PAGE_STATES);
 
     private void serializePage(String fileName, Object object) {
         if (!isCacheAvailable()) {
@@ -766,12 +765,20 @@ public class CacheManager implements Runnable {
                     validateNewCachedFile(file, fileName, CacheItem.TYPE_PAGES, true);
                 }
             }
-            ObjectInputStream objectInputStream = null;
+            BufferedInputStream inputStream = null;
             try {
                 FileInputStream fileInputStream = new FileInputStream(file);
                 holder.setCloseable(fileInputStream);
-                objectInputStream = new ObjectInputStream(fileInputStream);
-                Object result = objectInputStream.readObject();
+                inputStream = new BufferedInputStream(fileInputStream);
+                Object result;
+                if (PostsCodec.isEncoded(inputStream)) {
+                    PostsCodec.State state = new PostsCodec.State();
+                    result = PostsCodec.decode(inputStream, state);
+                    setPageState(fileName, state);
+                } else {
+                    // Pages serialized before binary format was introduced
+                    result = new ObjectInputStream(inputStream).readObject();
+                }
                 updateCachedFileLastModified(file, fileName, CacheItem.TYPE_PAGES);
                 return result;
             } catch (FileNotFoundException e) {
@@ -781,12 +788,64 @@ public class CacheManager implements Runnable {
                     Log.persistent().stack(e);
                 }
             } finally {
-                IOUtils.close(objectInputStream);
+                IOUtils.close(inputStream);
             }
             return null;
         }
     }
 
+    private void setPageState(String fileName, PostsCodec.State state) {
+        synchronized (pageStates) {
+            if (state != null) {
+                pageStates.put(fileName, state);
+            } else {
+                pageStates.remove(fileName);
+            }
+        }
+    }
+
+    private boolean appendPageDelta(File file, String fileName, Posts posts) {
+        PostsCodec.State state;
+        synchronized (pageStates) {
+            state = pageStates.get(fileName);
+        }
+        if (state == null || state.isCompactionRequired() || file.length() < state.getLength()) {
+            return false;
+        }
+        PostsCodec.Delta delta;
+        try {
+            delta = PostsCodec.encodeDelta(posts, state);
+        } catch (IOException e) {
+            Log.persistent().write(e);
+            return false;
+        }
+        if (delta == null) {
+            return true;
+        }
+        boolean success = false;
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            // Drop partially written deltas if previous append failed
+            randomAccessFile.setLength(state.getLength());
+            randomAccessFile.seek(state.getLength());
+            randomAccessFile.write(delta.getData());
+            randomAccessFile.getFD().sync();
+            success = true;
+        } catch (IOException e) {
+            Log.persistent().write(e);
+        } finally {
+            success &= IOUtils.close(randomAccessFile);
+        }
+        if (success) {
+            state.commit(delta);
+            validateNewCachedFile(file, fileName, CacheItem.TYPE_PAGES, true);
+        } else {
+            setPageState(fileName, null);
+        }
+        return success;
+    }
+
     private final HashMap<String, Object> pageFileLocks = new HashMap<>();
 
     private Object obtainPageFileLock(String fileName) {
@@ -820,26 +879,41 @@ public class CacheManager implements Runnable {
                 if (holder.cancelled) {
                     return;
                 }
+                if (object instanceof Posts && appendPageDelta(file, fileName, (Posts) object)) {
+                    synchronized (serializePageCallbacks) {
+                        serializePageCallbacks.remove(fileName);
+                    }
+                    handleSerializationQueue(true);
+                    return;
+                }
                 if (file.exists() && (!tempFile.exists() || !tempFile.delete()) && !file.renameTo(tempFile)) {
                     Log.persistent().write(Log.TYPE_ERROR, Log.DISABLE_QUOTES,
                             "Can't create backup of", file.getName());
                     return;
                 }
                 boolean success = false;
+                PostsCodec.State state = null;
                 FileOutputStream outputStream = null;
                 try {
                     outputStream = new FileOutputStream(file);
-                    ObjectOutputStream objectOutputStream = new ObjectOutputStream
-                            (new BufferedOutputStream(outputStream));
-                    holder.setCloseable(objectOutputStream);
-                    objectOutputStream.writeObject(object);
-                    objectOutputStream.flush();
+                    BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(outputStream);
+                    holder.setCloseable(bufferedOutputStream);
+                    if (object instanceof Posts) {
+                        state = new PostsCodec.State();
+                        PostsCodec.encode((Posts) object, bufferedOutputStream, true, state);
+                    } else {
+                        ObjectOutputStream objectOutputStream = new ObjectOutputStream(bufferedOutputStream);
+                        objectOutputStream.writeObject(object);
+                        objectOutputStream.flush();
+                    }
+                    bufferedOutputStream.flush();
                     outputStream.getFD().sync();
                     success = true;
                 } catch (IOException e) {
                     Log.persistent().write(e);
                 } finally {
                     success &= IOUtils.close(outputStream);
+                    setPageState(fileName, success ? state : null);
                     if (success) {
                         if (tempFile.exists() && !tempFile.delete()) {
                             Log.persistent().write(Log.TYPE_ERROR, Log.DISABLE_QUOTES,
@@ -879,6 +953,8 @@ public class CacheManager implements Runnable {
         }
         synchronized (obtainPageFileLock(fromFile.getName())) {
             synchronized (obtainPageFileLock(toFile.getName())) {
+                setPageState(fromFileName, null);
+                setPageState(toFileName, null);
                 if (fromFile.exists() && !toFile.exists()) {
                     toTempFile.delete();
                     fromFile.renameTo(toFile);
@@ -912,6 +988,52 @@ public class CacheManager implements Runnable {
         }
     }
 
+    /**
+     * Read original post and posts in range without decoding the whole thread.
+     *
+     * @return Posts in range or null if range can't be read separately or includes all posts.
+     */
+    public Posts deserializePostsRange(String chanName, String boardName, String threadNumber, int start, int count,
+                                       SerializationHolder holder) {
+        if (!allowPagesCache(chanName) || !isCacheAvailable()) {
+            return null;
+        }
+        String fileName = getPostsFileName(chanName, boardName, threadNumber);
+        File file = getPagesFile(fileName);
+        if (file == null) {
+            return null;
+        }
+        synchronized (serializePageCallbacks) {
+            if (serializePageCallbacks.containsKey(fileName)) {
+                return null;
+            }
+        }
+        synchronized (obtainPageFileLock(fileName)) {
+            if (getPagesFile(TEMP_PAGE_FILE_PREFIX + fileName).exists()) {
+                // Backup will be restored by deserializePage
+                return null;
+            }
+            BufferedInputStream inputStream = null;
+            try {
+                FileInputStream fileInputStream = new FileInputStream(file);
+                holder.setCloseable(fileInputStream);
+                inputStream = new BufferedInputStream(fileInputStream);
+                if (PostsCodec.isEncoded(inputStream)) {
+                    return PostsCodec.decodeRange(inputStream, start, count);
+                }
+            } catch (FileNotFoundException e) {
+                // File not exist, ignore exception
+            } catch (Exception e) {
+                if (!holder.cancelled) {
+                    Log.persistent().stack(e);
+                }
+            } finally {
+                IOUtils.close(inputStream);
+            }
+            return null;
+        }
+    }
+
     private String getPostsFileName(String chanName, String boardName, String threadNumber) {
         return "posts_" + chanName + "_" + boardName + "_" + threadNumber;
     }
@@ -18,12 +18,13 @@ package com.mishiranu.dashchan.content;
 
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Process;
 import android.util.Base64;
 
 import com.mishiranu.dashchan.content.async.HttpHolderTask;
+import com.mishiranu.dashchan.content.net.DownloadCoalescer;
+import com.mishiranu.dashchan.graphics.BitmapPool;
 import com.mishiranu.dashchan.util.ConcurrentUtils;
 import com.mishiranu.dashchan.util.GraphicsUtils;
 import com.mishiranu.dashchan.util.IOUtils;
@@ -31,6 +32,9 @@ import com.mishiranu.dashchan.util.Log;
 import com.mishiranu.dashchan.util.WeakObservable;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.util.HashMap;
@@ -48,6 +52,8 @@ import chan.http.HttpRequest;
 import chan.util.StringUtils;
 
 public class ImageLoader {
+    private static final int MAX_CACHED_MEDIA_SIZE = 10 * 1024 * 1024;
+
     private static final ImageLoader INSTANCE = new ImageLoader();
 
     public static ImageLoader getInstance() {
@@ -127,8 +133,11 @@ public class ImageLoader {
                     return null;
                 }
                 if (bitmap != null) {
+                    // Original images can be stored in cache, so they must be reduced here
+                    bitmap = GraphicsUtils.reduceThumbnailSize(MainApplication.getInstance().getResources(), bitmap);
                     cacheManager.storeThumbnailMemory(key, bitmap);
                 } else if (!fromCacheOnly) {
+                    byte[] originalBytes = null;
                     if (chanScheme) {
                         String chanName = uri.getAuthority();
                         if (StringUtils.isEmpty(chanName)) {
@@ -160,7 +169,7 @@ public class ImageLoader {
                                             IOUtils.close(input);
                                         }
                                         byte[] bytes = output.toByteArray();
-                                        bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+                                        bitmap = BitmapPool.getInstance().decodeByteArray(bytes, 0, bytes.length);
                                     }
                                 }
                             }
@@ -172,7 +181,7 @@ public class ImageLoader {
                             data = data.substring(index + 7);
                             byte[] bytes = Base64.decode(data, Base64.DEFAULT);
                             if (bytes != null) {
-                                bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+                                bitmap = BitmapPool.getInstance().decodeByteArray(bytes, 0, bytes.length);
                             }
                         }
                     } else {
@@ -182,20 +191,32 @@ public class ImageLoader {
                         }
                         int connectTimeout = 10000;
                         int readTimeout = 5000;
-                        if (chanName != null) {
+                        byte[] cachedBytes = readCachedMedia(uri);
+                        if (cachedBytes != null) {
+                            bitmap = BitmapPool.getInstance().decodeByteArray(cachedBytes, 0, cachedBytes.length);
+                            originalBytes = cachedBytes;
+                        } else if (isCancelled()) {
+                            return null;
+                        } else if (chanName != null) {
                             ChanPerformer performer = ChanPerformer.get(chanName);
                             try {
                                 ChanPerformer.ReadContentResult result = performer.safe()
                                         .onReadContent(new ChanPerformer.ReadContentData(uri, connectTimeout,
                                                 readTimeout, holder, null, null));
-                                bitmap = result != null && result.response != null ? result.response.getBitmap() : null;
+                                byte[] bytes = result != null && result.response != null
+                                        ? result.response.getBytes() : null;
+                                bitmap = bytes != null ? BitmapPool.getInstance()
+                                        .decodeByteArray(bytes, 0, bytes.length) : null;
+                                originalBytes = bytes;
                             } catch (ExtensionException e) {
                                 e.getErrorItemAndHandle();
                                 return null;
                             }
                         } else {
-                            bitmap = new HttpRequest(uri, holder).setTimeouts(connectTimeout, readTimeout)
-                                    .read().getBitmap();
+                            byte[] bytes = new HttpRequest(uri, holder).setTimeouts(connectTimeout, readTimeout)
+                                    .read().getBytes();
+                            bitmap = BitmapPool.getInstance().decodeByteArray(bytes, 0, bytes.length);
+                            originalBytes = bytes;
                         }
                     }
                     if (isCancelled()) {
@@ -204,7 +225,7 @@ public class ImageLoader {
                     bitmap = GraphicsUtils.reduceThumbnailSize(MainApplication.getInstance().getResources(), bitmap);
                     cacheManager.storeThumbnailMemory(key, bitmap);
                     if (storeExternal) {
-                        cacheManager.storeThumbnailExternal(key, bitmap);
+                        cacheManager.storeThumbnailExternal(key, bitmap, originalBytes);
                     }
                 }
             } catch (HttpException e) {
@@ -219,6 +240,30 @@ public class ImageLoader {
             return bitmap;
         }
 
+        private byte[] readCachedMedia(Uri uri) throws IOException {
+            // The same file can be downloaded by gallery or download service, so wait for it to avoid second request.
+            // Don't wait for files of unknown length or files which are too large to be read anyway.
+            String key = cacheManager.getCachedFileKey(uri);
+            DownloadCoalescer coalescer = DownloadCoalescer.getInstance();
+            long length = coalescer.getTransferLength(key);
+            if (length > 0 && length <= MAX_CACHED_MEDIA_SIZE && !coalescer.await(key, null)) {
+                return null;
+            }
+            File file = cacheManager.getMediaFile(uri, false);
+            if (file == null || !file.exists() || file.length() > MAX_CACHED_MEDIA_SIZE) {
+                return null;
+            }
+            ByteArrayOutputStream output = new ByteArrayOutputStream((int) file.length());
+            InputStream input = null;
+            try {
+                input = new FileInputStream(file);
+                IOUtils.copyStream(input, output);
+            } finally {
+                IOUtils.close(input);
+            }
+            return output.toByteArray();
+        }
+
         @Override
         protected void onPostExecute(Bitmap result) {
             loaderTasks.remove(key);
@@ -56,6 +56,18 @@ public class MainApplication extends Application {
         LocaleManager.getInstance().apply(this, true);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        CacheManager.getInstance().trimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        CacheManager.getInstance().trimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
     public static MainApplication getInstance() {
         return instance;
     }
@@ -69,4 +81,10 @@ public class MainApplication extends Application {
             return Runtime.getRuntime().maxMemory() <= 64 * 1024 * 1024;
         }
     }
+
+    public int getMemoryClass() {
+        ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+        return activityManager != null ? activityManager.getMemoryClass()
+                : (int) (Runtime.getRuntime().maxMemory() / 1024 / 1024);
+    }
 }
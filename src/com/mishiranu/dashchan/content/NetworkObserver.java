@@ -37,7 +37,10 @@ public class NetworkObserver {
 
     private final ConnectivityManager connectivityManager;
 
-    private int networkState = NETWORK_UNDEFINED;
+    private final Object networkChangeLock = new Object();
+
+    private volatile int networkState = NETWORK_UNDEFINED;
+    private volatile boolean connected = false;
     private long last3GChecked;
     private boolean last3GAvailable;
 
@@ -49,6 +52,16 @@ public class NetworkObserver {
                 new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
     }
 
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public void waitNetworkChange(long timeout) throws InterruptedException {
+        synchronized (networkChangeLock) {
+            networkChangeLock.wait(timeout);
+        }
+    }
+
     public boolean isWifiConnected() {
         return networkState == NETWORK_WIFI;
     }
@@ -97,7 +110,8 @@ public class NetworkObserver {
     private void onActiveNetworkChange() {
         int networkState = NETWORK_UNDEFINED;
         NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
-        if (networkInfo != null && networkInfo.isConnected()) {
+        boolean connected = networkInfo != null && networkInfo.isConnected();
+        if (connected) {
             int type = networkInfo.getType();
             switch (type) {
                 case ConnectivityManager.TYPE_WIFI:
@@ -113,6 +127,10 @@ public class NetworkObserver {
             }
         }
         this.networkState = networkState;
+        this.connected = connected;
         last3GChecked = 0L;
+        synchronized (networkChangeLock) {
+            networkChangeLock.notifyAll();
+        }
     }
 }
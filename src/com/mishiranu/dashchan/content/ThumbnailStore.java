@@ -0,0 +1,495 @@
+/*
+ * Copyright 2014-2017 Fukurou Mishiranu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.content;
+
+import android.os.Process;
+
+import com.mishiranu.dashchan.util.ConcurrentUtils;
+import com.mishiranu.dashchan.util.IOUtils;
+import com.mishiranu.dashchan.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+/**
+ * Stores thumbnails in a single append-only pack file. Pack file location of every thumbnail is written to
+ * index file as fixed size records: SHA-256 key, offset, length and last access time. Removed records are
+ * marked with zero length, and unused space is reclaimed by compaction in background.
+ *
+ * <p>Both files start with the same random pack ID, so index is discarded if compaction was interrupted
+ * between files replacement.</p>
+ */
+class ThumbnailStore {
+    private static final String PACK_FILE_NAME = "thumbnails.pack";
+    private static final String INDEX_FILE_NAME = "thumbnails.index";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private static final int INDEX_MAGIC = 0x44435449;
+    private static final int INDEX_VERSION = 1;
+
+    private static final int PACK_HEADER_SIZE = 8;
+    private static final int INDEX_HEADER_SIZE = 16;
+
+    private static final int KEY_SIZE = 32;
+    private static final int RECORD_OFFSET = KEY_SIZE;
+    private static final int RECORD_LENGTH = RECORD_OFFSET + 8;
+    private static final int RECORD_LAST_ACCESS = RECORD_LENGTH + 4;
+    private static final int RECORD_SIZE = RECORD_LAST_ACCESS + 8;
+
+    private static final Executor EXECUTOR = ConcurrentUtils.newSingleThreadPool(20000, "ThumbnailStore", null,
+            Process.THREAD_PRIORITY_BACKGROUND);
+    private static final Random RANDOM = new Random();
+
+    private static class Entry {
+        public final byte[] key;
+        public final int length;
+        public long offset;
+        public long lastAccess;
+        public int record;
+
+        public Entry(byte[] key, long offset, int length, long lastAccess, int record) {
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+            this.lastAccess = lastAccess;
+            this.record = record;
+        }
+    }
+
+    // Access-ordered, so iteration starts from least recently used thumbnails
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private File directory;
+    private RandomAccessFile packFile;
+    private RandomAccessFile indexFile;
+    private int generation;
+
+    private long packLength;
+    private int recordsCount;
+    private long size;
+    private long garbageSize;
+    private boolean compactionQueued;
+
+    public synchronized void open(File directory) {
+        close();
+        generation++;
+        this.directory = directory;
+        if (directory == null) {
+            return;
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            // Delete thumbnails stored as separate files and temporary files of interrupted compaction
+            for (File file : files) {
+                String name = file.getName();
+                if (!PACK_FILE_NAME.equals(name) && !INDEX_FILE_NAME.equals(name)) {
+                    file.delete();
+                }
+            }
+        }
+        try {
+            packFile = new RandomAccessFile(new File(directory, PACK_FILE_NAME), "rw");
+            indexFile = new RandomAccessFile(new File(directory, INDEX_FILE_NAME), "rw");
+            if (!readIndex()) {
+                reset();
+            }
+        } catch (IOException e) {
+            Log.persistent().stack(e);
+            close();
+        }
+    }
+
+    private boolean readIndex() throws IOException {
+        packLength = packFile.length();
+        long indexLength = indexFile.length();
+        if (packLength < PACK_HEADER_SIZE || indexLength < INDEX_HEADER_SIZE) {
+            return false;
+        }
+        long packId = packFile.readLong();
+        FileChannel indexChannel = indexFile.getChannel();
+        MappedByteBuffer buffer = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexLength);
+        if (buffer.getInt() != INDEX_MAGIC || buffer.getInt() != INDEX_VERSION || buffer.getLong() != packId) {
+            return false;
+        }
+        int count = (int) ((indexLength - INDEX_HEADER_SIZE) / RECORD_SIZE);
+        HashMap<String, Entry> entries = new HashMap<>(count);
+        long size = 0;
+        for (int i = 0; i < count; i++) {
+            byte[] key = new byte[KEY_SIZE];
+            buffer.get(key);
+            long offset = buffer.getLong();
+            int length = buffer.getInt();
+            long lastAccess = buffer.getLong();
+            if (length > 0 && offset >= PACK_HEADER_SIZE && offset + length <= packLength) {
+                Entry entry = new Entry(key, offset, length, lastAccess, i);
+                Entry oldEntry = entries.put(keyToString(key), entry);
+                size += length;
+                if (oldEntry != null) {
+                    size -= oldEntry.length;
+                }
+            }
+        }
+        ArrayList<Entry> sortedEntries = new ArrayList<>(entries.values());
+        Collections.sort(sortedEntries, (lhs, rhs) -> ((Long) lhs.lastAccess).compareTo(rhs.lastAccess));
+        for (Entry entry : sortedEntries) {
+            this.entries.put(keyToString(entry.key), entry);
+        }
+        // Drop incomplete record if writing was interrupted
+        indexFile.setLength(INDEX_HEADER_SIZE + (long) count * RECORD_SIZE);
+        recordsCount = count;
+        this.size = size;
+        garbageSize = packLength - PACK_HEADER_SIZE - size;
+        return true;
+    }
+
+    private void reset() throws IOException {
+        entries.clear();
+        long packId = RANDOM.nextLong();
+        packFile.setLength(0);
+        packFile.seek(0);
+        packFile.writeLong(packId);
+        indexFile.setLength(0);
+        indexFile.seek(0);
+        writeIndexHeader(indexFile, packId);
+        packLength = PACK_HEADER_SIZE;
+        recordsCount = 0;
+        size = 0;
+        garbageSize = 0;
+    }
+
+    private static void writeIndexHeader(RandomAccessFile indexFile, long packId) throws IOException {
+        indexFile.writeInt(INDEX_MAGIC);
+        indexFile.writeInt(INDEX_VERSION);
+        indexFile.writeLong(packId);
+    }
+
+    private void close() {
+        IOUtils.close(packFile);
+        IOUtils.close(indexFile);
+        packFile = null;
+        indexFile = null;
+        entries.clear();
+        packLength = 0;
+        recordsCount = 0;
+        size = 0;
+        garbageSize = 0;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public byte[] read(String key) {
+        long offset;
+        int length;
+        int record;
+        FileChannel packChannel;
+        FileChannel indexChannel;
+        long lastAccess = System.currentTimeMillis();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            entry.lastAccess = lastAccess;
+            offset = entry.offset;
+            length = entry.length;
+            record = entry.record;
+            packChannel = packFile.getChannel();
+            indexChannel = indexFile.getChannel();
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                int count = packChannel.read(buffer, offset + buffer.position());
+                if (count < 0) {
+                    throw new IOException("Unexpected end of pack file");
+                }
+            }
+            ByteBuffer lastAccessBuffer = ByteBuffer.allocate(8).putLong(0, lastAccess);
+            indexChannel.write(lastAccessBuffer, getRecordPosition(record) + RECORD_LAST_ACCESS);
+            return buffer.array();
+        } catch (IOException e) {
+            // Pack file was replaced by compaction or storage was unmounted
+            return null;
+        }
+    }
+
+    public void write(String key, byte[] data) {
+        byte[] keyBytes = stringToKey(key);
+        if (keyBytes == null || data.length == 0) {
+            return;
+        }
+        int generation;
+        long offset;
+        FileChannel packChannel;
+        synchronized (this) {
+            if (packFile == null) {
+                return;
+            }
+            generation = this.generation;
+            offset = packLength;
+            packLength += data.length;
+            garbageSize += data.length;
+            packChannel = packFile.getChannel();
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                packChannel.write(buffer, offset + buffer.position());
+            }
+        } catch (IOException e) {
+            return;
+        }
+        synchronized (this) {
+            if (generation != this.generation) {
+                return;
+            }
+            Entry entry = new Entry(keyBytes, offset, data.length, System.currentTimeMillis(), recordsCount);
+            try {
+                removeEntry(key);
+                ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+                buffer.put(entry.key).putLong(entry.offset).putInt(entry.length).putLong(entry.lastAccess);
+                buffer.flip();
+                writeFully(indexFile.getChannel(), buffer, getRecordPosition(entry.record));
+                recordsCount++;
+                entries.put(key, entry);
+                size += entry.length;
+                garbageSize -= entry.length;
+            } catch (IOException e) {
+                Log.persistent().stack(e);
+            }
+        }
+    }
+
+    public synchronized void remove(String key) {
+        try {
+            removeEntry(key);
+        } catch (IOException e) {
+            Log.persistent().stack(e);
+        }
+    }
+
+    private void removeEntry(String key) throws IOException {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            size -= entry.length;
+            garbageSize += entry.length;
+            ByteBuffer buffer = ByteBuffer.allocate(4).putInt(0, 0);
+            writeFully(indexFile.getChannel(), buffer, getRecordPosition(entry.record) + RECORD_LENGTH);
+        }
+    }
+
+    /**
+     * Remove least recently used thumbnails until store takes no more than {@code size} bytes.
+     * Compaction is started in background when at least {@code compactSize} bytes become unused.
+     */
+    public synchronized void trim(long size, long compactSize) {
+        if (packFile == null) {
+            return;
+        }
+        ArrayList<String> keys = new ArrayList<>();
+        long remainingSize = this.size;
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+            if (remainingSize <= size) {
+                break;
+            }
+            keys.add(mapEntry.getKey());
+            remainingSize -= mapEntry.getValue().length;
+        }
+        try {
+            for (String key : keys) {
+                removeEntry(key);
+            }
+        } catch (IOException e) {
+            Log.persistent().stack(e);
+        }
+        if (garbageSize >= compactSize && !compactionQueued) {
+            compactionQueued = true;
+            EXECUTOR.execute(this::compact);
+        }
+    }
+
+    public synchronized void clear() {
+        if (packFile != null) {
+            generation++;
+            try {
+                reset();
+            } catch (IOException e) {
+                Log.persistent().stack(e);
+                close();
+            }
+        }
+    }
+
+    private void compact() {
+        ArrayList<Entry> snapshot;
+        FileChannel packChannel;
+        int generation;
+        File directory;
+        synchronized (this) {
+            compactionQueued = false;
+            if (packFile == null) {
+                return;
+            }
+            snapshot = new ArrayList<>(entries.values());
+            packChannel = packFile.getChannel();
+            generation = this.generation;
+            directory = this.directory;
+        }
+        File newPackFile = new File(directory, PACK_FILE_NAME + TEMP_FILE_SUFFIX);
+        File newIndexFile = new File(directory, INDEX_FILE_NAME + TEMP_FILE_SUFFIX);
+        RandomAccessFile newPack = null;
+        RandomAccessFile newIndex = null;
+        boolean replaced = false;
+        boolean success = false;
+        try {
+            long packId = RANDOM.nextLong();
+            newPack = new RandomAccessFile(newPackFile, "rw");
+            newPack.setLength(0);
+            newPack.writeLong(packId);
+            FileChannel newPackChannel = newPack.getChannel();
+            // Copy data without holding the lock, entries may be changed concurrently
+            IdentityHashMap<Entry, Long> offsets = new IdentityHashMap<>();
+            long position = PACK_HEADER_SIZE;
+            for (Entry entry : snapshot) {
+                transferFully(packChannel, newPackChannel, entry.offset, entry.length);
+                offsets.put(entry, position);
+                position += entry.length;
+            }
+            synchronized (this) {
+                if (generation != this.generation) {
+                    return;
+                }
+                packChannel = packFile.getChannel();
+                // Copy entries added during compaction
+                for (Entry entry : entries.values()) {
+                    if (!offsets.containsKey(entry)) {
+                        transferFully(packChannel, newPackChannel, entry.offset, entry.length);
+                        offsets.put(entry, position);
+                        position += entry.length;
+                    }
+                }
+                newIndex = new RandomAccessFile(newIndexFile, "rw");
+                newIndex.setLength(0);
+                writeIndexHeader(newIndex, packId);
+                ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * Math.max(entries.size(), 1));
+                int record = 0;
+                for (Entry entry : entries.values()) {
+                    buffer.put(entry.key).putLong(offsets.get(entry)).putInt(entry.length)
+                            .putLong(entry.lastAccess);
+                }
+                buffer.flip();
+                writeFully(newIndex.getChannel(), buffer, INDEX_HEADER_SIZE);
+                newPackChannel.force(false);
+                newIndex.getChannel().force(false);
+                if (!newPackFile.renameTo(new File(directory, PACK_FILE_NAME))) {
+                    throw new IOException("Can't replace pack file");
+                }
+                replaced = true;
+                if (!newIndexFile.renameTo(new File(directory, INDEX_FILE_NAME))) {
+                    throw new IOException("Can't replace index file");
+                }
+                for (Entry entry : entries.values()) {
+                    entry.offset = offsets.get(entry);
+                    entry.record = record++;
+                }
+                IOUtils.close(packFile);
+                IOUtils.close(indexFile);
+                packFile = newPack;
+                indexFile = newIndex;
+                this.generation++;
+                packLength = position;
+                recordsCount = record;
+                garbageSize = packLength - PACK_HEADER_SIZE - size;
+                success = true;
+            }
+        } catch (IOException e) {
+            Log.persistent().stack(e);
+            if (replaced) {
+                // Index doesn't match new pack file anymore, it will be reset after reopening
+                open(directory);
+            }
+        } finally {
+            if (!success) {
+                IOUtils.close(newPack);
+                IOUtils.close(newIndex);
+                newPackFile.delete();
+                newIndexFile.delete();
+            }
+        }
+    }
+
+    private static long getRecordPosition(int record) {
+        return INDEX_HEADER_SIZE + (long) record * RECORD_SIZE;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void transferFully(FileChannel from, FileChannel to, long position, long count)
+            throws IOException {
+        while (count > 0) {
+            long transferred = from.transferTo(position, count, to);
+            if (transferred <= 0) {
+                throw new IOException("Unexpected end of pack file");
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    private static String keyToString(byte[] key) {
+        char[] chars = new char[key.length * 2];
+        for (int i = 0; i < key.length; i++) {
+            chars[2 * i] = Character.forDigit((key[i] >> 4) & 0xf, 16);
+            chars[2 * i + 1] = Character.forDigit(key[i] & 0xf, 16);
+        }
+        return new String(chars);
+    }
+
+    private static byte[] stringToKey(String key) {
+        if (key == null || key.length() != KEY_SIZE * 2) {
+            return null;
+        }
+        byte[] bytes = new byte[KEY_SIZE];
+        for (int i = 0; i < KEY_SIZE; i++) {
+            int high = Character.digit(key.charAt(2 * i), 16);
+            int low = Character.digit(key.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+}
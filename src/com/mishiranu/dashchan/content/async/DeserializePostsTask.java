@@ -25,28 +25,42 @@ import chan.content.model.Post;
 import chan.content.model.Posts;
 
 public class DeserializePostsTask extends CancellableTask<Void, Void, Boolean> {
+    private static final int PREVIEW_POSTS_BEFORE = 10;
+    private static final int PREVIEW_POSTS_COUNT = 40;
+
     private final Callback callback;
     private final String chanName;
     private final String boardName;
     private final String threadNumber;
     private final Posts cachedPosts;
+    private final int previewPosition;
 
     private final CacheManager.SerializationHolder holder = new CacheManager.SerializationHolder();
 
     private Posts posts;
     private ArrayList<PostItem> postItems;
 
+    private Posts previewPosts;
+    private ArrayList<PostItem> previewPostItems;
+    private int previewPostItemPosition;
+
     public interface Callback {
+        public void onDeserializePostsPreview(Posts posts, ArrayList<PostItem> postItems, int position);
         public void onDeserializePostsComplete(boolean success, Posts posts, ArrayList<PostItem> postItems);
     }
 
+    /**
+     * @param previewPosition Position of post which should be displayed first. If not negative, posts around
+     * this position will be loaded and passed to {@link Callback#onDeserializePostsPreview} before the whole thread.
+     */
     public DeserializePostsTask(Callback callback, String chanName, String boardName, String threadNumber,
-                                Posts cachedPosts) {
+                                Posts cachedPosts, int previewPosition) {
         this.callback = callback;
         this.chanName = chanName;
         this.boardName = boardName;
         this.threadNumber = threadNumber;
         this.cachedPosts = cachedPosts;
+        this.previewPosition = previewPosition;
     }
 
     @Override
@@ -54,20 +68,45 @@ public class DeserializePostsTask extends CancellableTask<Void, Void, Boolean> {
         if (cachedPosts != null) {
             posts = cachedPosts;
         } else {
+            if (previewPosition >= 0) {
+                int start = Math.max(previewPosition - PREVIEW_POSTS_BEFORE, 0);
+                Posts previewPosts = CacheManager.getInstance().deserializePostsRange(chanName, boardName,
+                        threadNumber, start, PREVIEW_POSTS_COUNT, holder);
+                ArrayList<PostItem> previewPostItems = previewPosts != null ? createPostItems(previewPosts) : null;
+                if (previewPostItems != null && !isCancelled()) {
+                    this.previewPosts = previewPosts;
+                    this.previewPostItems = previewPostItems;
+                    // Original post is added before range
+                    previewPostItemPosition = start > 0 ? previewPosition - start + 1 : previewPosition;
+                    publishProgress();
+                }
+            }
             posts = CacheManager.getInstance().deserializePosts(chanName, boardName, threadNumber, holder);
         }
         if (posts == null) {
             return false;
         }
-        Post[] posts = this.posts.getPosts();
-        if (posts == null || posts.length == 0) {
-            return false;
+        postItems = createPostItems(posts);
+        return postItems != null;
+    }
+
+    private ArrayList<PostItem> createPostItems(Posts posts) {
+        Post[] postsArray = posts.getPosts();
+        if (postsArray == null || postsArray.length == 0) {
+            return null;
         }
-        postItems = new ArrayList<>(posts.length);
-        for (Post post : posts) {
+        ArrayList<PostItem> postItems = new ArrayList<>(postsArray.length);
+        for (Post post : postsArray) {
             postItems.add(new PostItem(post, chanName, boardName));
         }
-        return true;
+        return postItems;
+    }
+
+    @Override
+    protected void onProgressUpdate(Void... values) {
+        callback.onDeserializePostsPreview(previewPosts, previewPostItems, previewPostItemPosition);
+        previewPosts = null;
+        previewPostItems = null;
     }
 
     @Override
@@ -21,16 +21,20 @@ import android.net.Uri;
 
 import com.mishiranu.dashchan.content.CacheManager;
 import com.mishiranu.dashchan.content.model.ErrorItem;
+import com.mishiranu.dashchan.content.net.DownloadCoalescer;
 import com.mishiranu.dashchan.content.net.EmbeddedManager;
+import com.mishiranu.dashchan.content.net.SegmentedDownloader;
 import com.mishiranu.dashchan.util.IOUtils;
 
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.HttpURLConnection;
 
 import chan.content.ChanManager;
 import chan.content.ChanPerformer;
@@ -40,8 +44,11 @@ import chan.http.HttpClient;
 import chan.http.HttpException;
 import chan.http.HttpHolder;
 import chan.http.HttpRequest;
+import chan.http.HttpResponse;
 
 public class ReadFileTask extends HttpHolderTask<String, Long, Boolean> {
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
     public interface Callback {
         public void onFileExists(Uri uri, File file);
 
@@ -72,11 +79,17 @@ public class ReadFileTask extends HttpHolderTask<String, Long, Boolean> {
     private ErrorItem errorItem;
 
     private boolean loadingStarted;
+    private volatile SegmentedDownloader segmentedDownloader;
+    private volatile DownloadCoalescer.Transfer transfer;
 
     private final TimedProgressHandler progressHandler = new TimedProgressHandler() {
         @Override
         public void onProgressChange(long progress, long progressMax) {
             publishProgress(progress, progressMax);
+            DownloadCoalescer.Transfer transfer = ReadFileTask.this.transfer;
+            if (transfer != null) {
+                transfer.publishProgress(progress, progressMax);
+            }
         }
     };
 
@@ -110,45 +123,129 @@ public class ReadFileTask extends HttpHolderTask<String, Long, Boolean> {
         try {
             loadingStarted = true;
             if (cachedMediaFile != null) {
-                InputStream input = null;
-                OutputStream output = null;
-                try {
-                    input = HttpClient.wrapWithProgressListener(new FileInputStream(cachedMediaFile),
-                            progressHandler, cachedMediaFile.length());
-                    output = IOUtils.openOutputStream(context, toFile);
-                    IOUtils.copyStream(input, output);
-                } finally {
-                    IOUtils.close(input);
-                    IOUtils.close(output);
-                }
+                copyFromCache(cachedMediaFile);
             } else {
                 Uri uri = fromUri;
                 uri = EmbeddedManager.getInstance().doReadRealUri(uri, holder);
-                final int connectTimeout = 15000, readTimeout = 15000;
-                byte[] response;
                 String chanName = this.chanName;
                 if (chanName == null) {
                     chanName = ChanManager.getInstance().getChanNameByHost(uri.getAuthority());
                 }
-                if (chanName != null) {
-                    ChanPerformer.ReadContentResult result = ChanPerformer.get(chanName).safe()
-                            .onReadContent(new ChanPerformer.ReadContentData(uri, connectTimeout, readTimeout,
-                                    holder, progressHandler, null));
-                    response = result.response.getBytes();
-                } else {
-                    response = new HttpRequest(uri, holder).setTimeouts(connectTimeout, readTimeout)
-                            .setInputListener(progressHandler).read().getBytes();
+                CacheManager cacheManager = CacheManager.getInstance();
+                File mediaFile = cacheManager.getMediaFile(fromUri, false);
+                File partialFile = cacheManager.getPartialMediaFile(fromUri);
+                boolean writeDestination = !toFile.equals(mediaFile);
+                if (mediaFile == null || partialFile == null) {
+                    partialFile = null;
+                    writeDestination = true;
+                }
+                File segmentsFile = cacheManager.getSegmentsMediaFile(fromUri);
+                File validatorFile = partialFile != null ? cacheManager.getValidatorMediaFile(fromUri) : null;
+                DownloadCoalescer coalescer = DownloadCoalescer.getInstance();
+                DownloadCoalescer.Transfer transfer = null;
+                if (partialFile != null) {
+                    // Wait for another reader if it downloads the same file, then read it from media cache
+                    String key = cacheManager.getCachedFileKey(fromUri);
+                    while ((transfer = coalescer.start(key)) == null) {
+                        if (!coalescer.await(key, progressHandler)) {
+                            return false;
+                        }
+                        if (mediaFile.exists()) {
+                            if (writeDestination) {
+                                copyFromCache(mediaFile);
+                            }
+                            return true;
+                        }
+                    }
+                    this.transfer = transfer;
                 }
-                ByteArrayInputStream input = new ByteArrayInputStream(response);
-                OutputStream output = null;
                 boolean success = false;
                 try {
-                    output = IOUtils.openOutputStream(context, toFile);
-                    IOUtils.copyStream(input, output);
-                    success = true;
+                    boolean segmented = false;
+                    if (partialFile != null && segmentsFile != null
+                            && SegmentedDownloader.isSegmentable(chanName, toFile.getName())) {
+                        SegmentedDownloader segmentedDownloader = new SegmentedDownloader(chanName, uri,
+                                partialFile, segmentsFile, progressHandler);
+                        this.segmentedDownloader = segmentedDownloader;
+                        if (isCancelled()) {
+                            segmentedDownloader.cancel();
+                        }
+                        segmented = segmentedDownloader.download(holder);
+                        if (segmented && writeDestination) {
+                            InputStream input = null;
+                            OutputStream output = null;
+                            try {
+                                input = new FileInputStream(partialFile);
+                                output = IOUtils.openOutputStream(context, toFile);
+                                IOUtils.copyStream(input, output);
+                            } finally {
+                                IOUtils.close(input);
+                                IOUtils.close(output);
+                            }
+                        }
+                        success = segmented;
+                    }
+                    for (int attempt = 0; !segmented && attempt < 2; attempt++) {
+                        long rangeStart = partialFile != null && partialFile.exists() ? partialFile.length() : 0L;
+                        String rangeValidator = rangeStart > 0 ? readValidator(validatorFile) : null;
+                        if (rangeValidator == null) {
+                            // Partial file can't be checked against the entity, download the whole file again
+                            rangeStart = 0L;
+                        }
+                        DownloadOutputStream output = new DownloadOutputStream(holder, partialFile, validatorFile,
+                                rangeStart, rangeValidator, writeDestination);
+                        try {
+                            readContent(holder, uri, chanName, output);
+                            output.close();
+                            success = true;
+                            break;
+                        } catch (IOException e) {
+                            if (output.rangeMismatch) {
+                                partialFile.delete();
+                                continue;
+                            }
+                            throw e;
+                        } catch (HttpException e) {
+                            if (output.rangeMismatch) {
+                                partialFile.delete();
+                                continue;
+                            }
+                            if (output.writeException != null) {
+                                throw output.writeException;
+                            }
+                            if (rangeStart > 0 && e.getResponseCode() == HTTP_RANGE_NOT_SATISFIABLE) {
+                                // Partial file is outdated, download the whole file again
+                                partialFile.delete();
+                                continue;
+                            }
+                            throw e;
+                        } finally {
+                            output.closeQuietly();
+                            if (!success && partialFile != null && output.prepared && !output.rangesSupported) {
+                                partialFile.delete();
+                                validatorFile.delete();
+                            }
+                        }
+                    }
+                    if (success && partialFile != null) {
+                        validatorFile.delete();
+                        if (writeDestination) {
+                            // Keep a copy in media cache
+                            cacheManager.handleDownloadedFile(mediaFile, partialFile.renameTo(mediaFile));
+                        } else {
+                            success = partialFile.renameTo(toFile);
+                        }
+                    }
                 } finally {
-                    IOUtils.close(output);
-                    CacheManager.getInstance().handleDownloadedFile(toFile, success);
+                    cacheManager.handleDownloadedFile(toFile, success);
+                    if (transfer != null) {
+                        this.transfer = null;
+                        coalescer.finish(transfer);
+                    }
+                }
+                if (!success) {
+                    errorItem = new ErrorItem(ErrorItem.TYPE_UNKNOWN);
+                    return false;
                 }
             }
             return true;
@@ -175,6 +272,216 @@ public class ReadFileTask extends HttpHolderTask<String, Long, Boolean> {
         }
     }
 
+    private void copyFromCache(File file) throws IOException {
+        InputStream input = null;
+        OutputStream output = null;
+        try {
+            input = HttpClient.wrapWithProgressListener(new FileInputStream(file), progressHandler, file.length());
+            output = IOUtils.openOutputStream(context, toFile);
+            IOUtils.copyStream(input, output);
+        } finally {
+            IOUtils.close(input);
+            IOUtils.close(output);
+        }
+    }
+
+    private void readContent(HttpHolder holder, Uri uri, String chanName, DownloadOutputStream output)
+            throws ExtensionException, HttpException, InvalidResponseException, IOException {
+        final int connectTimeout = 15000, readTimeout = 15000;
+        HttpResponse response;
+        if (chanName != null) {
+            ChanPerformer.ReadContentResult result = ChanPerformer.get(chanName).safe()
+                    .onReadContent(new ChanPerformer.ReadContentData(uri, connectTimeout, readTimeout,
+                            holder, output, output, output.rangeStart, -1L, output.rangeValidator));
+            response = result != null ? result.response : null;
+        } else {
+            response = new HttpRequest(uri, holder).setTimeouts(connectTimeout, readTimeout)
+                    .setInputListener(output).setOutputStream(output).setRangeStart(output.rangeStart)
+                    .setRangeValidator(output.rangeValidator).read();
+        }
+        if (response != null) {
+            // Extension has read the response on its own
+            byte[] bytes = response.getBytes();
+            if (bytes == null) {
+                throw new IOException();
+            }
+            output.write(bytes);
+        } else if (!output.prepared) {
+            // Empty response
+            output.prepare();
+        }
+    }
+
+    private static String readValidator(File validatorFile) {
+        if (validatorFile == null || !validatorFile.exists()) {
+            return null;
+        }
+        InputStream input = null;
+        try {
+            input = new FileInputStream(validatorFile);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            IOUtils.copyStream(input, output);
+            String validator = new String(output.toByteArray(), "UTF-8");
+            return validator.isEmpty() ? null : validator;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            IOUtils.close(input);
+        }
+    }
+
+    private static void writeValidator(File validatorFile, String validator) throws IOException {
+        if (validator == null) {
+            validatorFile.delete();
+            return;
+        }
+        OutputStream output = null;
+        try {
+            output = new FileOutputStream(validatorFile);
+            output.write(validator.getBytes("UTF-8"));
+        } finally {
+            IOUtils.close(output);
+        }
+    }
+
+    private class DownloadOutputStream extends OutputStream implements HttpHolder.InputListener {
+        private final HttpHolder holder;
+        private final File partialFile;
+        private final File validatorFile;
+        private final long rangeStart;
+        private final String rangeValidator;
+        private final boolean writeDestination;
+
+        private OutputStream partialOutput;
+        private OutputStream destinationOutput;
+
+        private Boolean resumed;
+        private boolean prepared = false;
+        private boolean rangesSupported = false;
+        private boolean rangeMismatch = false;
+        private IOException writeException;
+
+        public DownloadOutputStream(HttpHolder holder, File partialFile, File validatorFile,
+                long rangeStart, String rangeValidator, boolean writeDestination) {
+            this.holder = holder;
+            this.partialFile = partialFile;
+            this.validatorFile = validatorFile;
+            this.rangeStart = rangeStart;
+            this.rangeValidator = rangeValidator;
+            this.writeDestination = writeDestination;
+        }
+
+        private boolean isResumed() {
+            if (resumed == null) {
+                long[] contentRange = rangeStart > 0 && holder.getResponseCode() == HttpURLConnection.HTTP_PARTIAL
+                        ? SegmentedDownloader.parseContentRange(holder) : null;
+                resumed = contentRange != null && contentRange[0] == rangeStart;
+            }
+            return resumed;
+        }
+
+        private void prepare() throws IOException {
+            if (prepared) {
+                return;
+            }
+            prepared = true;
+            boolean resumed = isResumed();
+            if (!resumed && rangeStart > 0 && holder.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+                // Response doesn't continue the partial file
+                rangeMismatch = true;
+                throw new IOException("Invalid content range");
+            }
+            rangesSupported = resumed || "bytes".equals(holder.getHeaderValue("Accept-Ranges"));
+            if (partialFile != null && !resumed) {
+                // Weak entity tags can't be used in If-Range
+                String validator = holder.getHeaderValue("ETag");
+                if (validator == null || validator.startsWith("W/")) {
+                    validator = holder.getHeaderValue("Last-Modified");
+                }
+                writeValidator(validatorFile, rangesSupported ? validator : null);
+            }
+            if (writeDestination) {
+                destinationOutput = IOUtils.openOutputStream(context, toFile);
+                if (resumed) {
+                    // Restore the beginning of the file which was downloaded before
+                    InputStream input = null;
+                    try {
+                        input = new FileInputStream(partialFile);
+                        IOUtils.copyStream(input, destinationOutput);
+                    } finally {
+                        IOUtils.close(input);
+                    }
+                }
+            }
+            if (partialFile != null) {
+                partialOutput = new FileOutputStream(partialFile, resumed);
+            }
+        }
+
+        @Override
+        public void onInputProgressChange(long progress, long progressMax) {
+            long offset = isResumed() ? rangeStart : 0L;
+            progressHandler.onInputProgressChange(offset + progress, offset + progressMax);
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            write(new byte[]{(byte) oneByte}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            // HttpClient wraps all exceptions, so store the original one to handle file system errors
+            try {
+                prepare();
+                if (partialOutput != null) {
+                    partialOutput.write(buffer, offset, length);
+                }
+                if (destinationOutput != null) {
+                    destinationOutput.write(buffer, offset, length);
+                }
+            } catch (IOException e) {
+                writeException = e;
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (partialOutput != null) {
+                partialOutput.flush();
+            }
+            if (destinationOutput != null) {
+                destinationOutput.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            OutputStream partialOutput = this.partialOutput;
+            OutputStream destinationOutput = this.destinationOutput;
+            this.partialOutput = null;
+            this.destinationOutput = null;
+            try {
+                if (partialOutput != null) {
+                    partialOutput.close();
+                }
+            } finally {
+                if (destinationOutput != null) {
+                    destinationOutput.close();
+                }
+            }
+        }
+
+        public void closeQuietly() {
+            try {
+                close();
+            } catch (IOException e) {
+                // Ignore exception
+            }
+        }
+    }
+
     @Override
     public void onPostExecute(Boolean success) {
         callback.onFinishDownloading(success, fromUri, toFile, errorItem);
@@ -196,6 +503,10 @@ public class ReadFileTask extends HttpHolderTask<String, Long, Boolean> {
     @Override
     public void cancel() {
         super.cancel();
+        SegmentedDownloader segmentedDownloader = this.segmentedDownloader;
+        if (segmentedDownloader != null) {
+            segmentedDownloader.cancel();
+        }
         if (loadingStarted) {
             toFile.delete();
             CacheManager.getInstance().handleDownloadedFile(toFile, false);
@@ -30,9 +30,7 @@ import com.mishiranu.dashchan.util.Log;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 
 import chan.content.ChanConfiguration;
 import chan.content.ChanPerformer;
@@ -45,7 +43,6 @@ import chan.content.model.Posts;
 import chan.http.HttpException;
 import chan.http.HttpHolder;
 import chan.http.HttpValidator;
-import chan.util.CommonUtils;
 import chan.util.StringUtils;
 
 public class ReadPostsTask extends HttpHolderTask<Void, Void, Boolean> {
@@ -135,17 +132,20 @@ public class ReadPostsTask extends HttpHolderTask<Void, Void, Boolean> {
             }
 
             if (readPosts != null && readPosts.length() > 0) {
-                // Remove repeatings and sort
+                // Sort and remove repeatings, sorting is stable so the last of repeating posts is kept
                 Post[] posts = readPosts.getPosts();
-                LinkedHashMap<String, Post> postsMap = new LinkedHashMap<>();
-                for (Post post : readPosts.getPosts()) {
-                    String postNumber = post.getPostNumber();
-                    postsMap.put(postNumber, post);
+                Arrays.sort(posts);
+                int count = 0;
+                for (Post post : posts) {
+                    if (count > 0 && StringUtils.equals(posts[count - 1].getPostNumber(), post.getPostNumber())) {
+                        posts[count - 1] = post;
+                    } else {
+                        posts[count++] = post;
+                    }
                 }
-                if (postsMap.size() != posts.length) {
-                    posts = CommonUtils.toArray(postsMap.values(), Post.class);
+                if (count != posts.length) {
+                    posts = Arrays.copyOf(posts, count);
                 }
-                Arrays.sort(posts);
                 readPosts.setPosts(posts);
 
                 // Validate model data format
@@ -350,12 +350,15 @@ public class ReadPostsTask extends HttpHolderTask<Void, Void, Boolean> {
         int deletedCount = 0;
         boolean hasEdited = false;
         ArrayList<Patch> patches = new ArrayList<>();
+        Post[] mergedPosts = null;
+        int resultSize = 0;
         if (loadedPosts != null && loadedPosts.length() > 0) {
             Post[] cachedPostsArray = cachedPosts.getPosts();
             Post[] loadedPostsArray = loadedPosts.getPosts();
-            int resultSize = 0;
             int i = 0, j = 0;
             int ic = cachedPostsArray.length, jc = loadedPostsArray.length;
+            // Both arrays are sorted, so result is built in a single pass
+            mergedPosts = new Post[ic + jc];
             while (i < ic || j < jc) {
                 Post oldPost = i < ic ? cachedPostsArray[i] : null;
                 Post newPost = j < jc ? loadedPostsArray[j] : null;
@@ -378,14 +381,14 @@ public class ReadPostsTask extends HttpHolderTask<Void, Void, Boolean> {
                         patches.add(new Patch(oldPost, postBeforeCopy, resultSize, true, false));
                         hasEdited = true;
                     }
-                    resultSize++;
+                    mergedPosts[resultSize++] = oldPost;
                     i++;
                 } else if (result > 0) {
                     // Number of old post is greater
                     // It's a new post. May be it will be inserted in center of list.
                     boolean addToEnd = oldPost == null;
                     patches.add(new Patch(newPost, null, resultSize, false, addToEnd));
-                    resultSize++;
+                    mergedPosts[resultSize++] = newPost;
                     if (addToEnd) {
                         newCount++;
                     } else {
@@ -397,10 +400,10 @@ public class ReadPostsTask extends HttpHolderTask<Void, Void, Boolean> {
                     if (!oldPost.contentEquals(newPost) || oldPost.isDeleted()) {
                         hasEdited = true;
                         patches.add(new Patch(newPost, oldPost, resultSize, true, false));
-                        resultSize++;
+                        mergedPosts[resultSize++] = newPost;
                     } else {
                         // Keep old model if no changes, because PostItem bound to old PostModel
-                        resultSize++;
+                        mergedPosts[resultSize++] = oldPost;
                     }
                     i++;
                     j++;
@@ -409,19 +412,7 @@ public class ReadPostsTask extends HttpHolderTask<Void, Void, Boolean> {
         }
         Post[] postsArray = cachedPosts.getPosts();
         if (!patches.isEmpty()) {
-            ArrayList<Post> newPosts = new ArrayList<>();
-            if (postsArray != null) {
-                Collections.addAll(newPosts, postsArray);
-            }
-            for (int i = 0; i < patches.size(); i++) {
-                Patch patch = patches.get(i);
-                if (patch.replaceAtIndex) {
-                    newPosts.set(patch.index, patch.newPost);
-                } else {
-                    newPosts.add(patch.index, patch.newPost);
-                }
-            }
-            postsArray = CommonUtils.toArray(newPosts, Post.class);
+            postsArray = resultSize == mergedPosts.length ? mergedPosts : Arrays.copyOf(mergedPosts, resultSize);
         }
         Posts resultPosts = new Posts(postsArray);
         resultPosts.setArchivedThreadUriString(cachedPosts.getArchivedThreadUriString());
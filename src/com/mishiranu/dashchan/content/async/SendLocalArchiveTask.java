@@ -26,7 +26,7 @@ import android.text.style.UnderlineSpan;
 import com.mishiranu.dashchan.content.MainApplication;
 import com.mishiranu.dashchan.content.service.DownloadService;
 import com.mishiranu.dashchan.preference.Preferences;
-import com.mishiranu.dashchan.text.HtmlParser;
+import com.mishiranu.dashchan.text.CommentsCache;
 import com.mishiranu.dashchan.text.WakabaLikeHtmlBuilder;
 import com.mishiranu.dashchan.text.style.GainedColorSpan;
 import com.mishiranu.dashchan.text.style.HeadingSpan;
@@ -113,7 +113,6 @@ public class SendLocalArchiveTask extends CancellableTask<Void, Integer, Object>
         ArrayList<SpanItem> spanItems = new ArrayList<>();
         ChanConfiguration configuration = ChanConfiguration.get(chanName);
         ChanLocator locator = ChanLocator.get(configuration);
-        ChanMarkup markup = ChanMarkup.get(configuration);
         File directory = getLocalDownloadDirectory(true);
         String archiveDirectoryName = chanName + '-' + boardName + '-' + threadNumber;
         File filesDirectory = saveFiles ? new File(directory, archiveDirectoryName + "/src") : null;
@@ -154,7 +153,7 @@ public class SendLocalArchiveTask extends CancellableTask<Void, Integer, Object>
             }
             int attachmentsCount = post.getAttachmentsCount();
             int iconsCount = post.getIconsCount();
-            CharSequence charSequence = HtmlParser.spanify(comment, markup, null, this);
+            CharSequence charSequence = CommentsCache.getInstance().spanify(comment, chanName, null, this);
             spanItems.clear();
             SpannableStringBuilder spannable = new SpannableStringBuilder(charSequence);
             replaceSpannable(spannable, '<', "&lt;");
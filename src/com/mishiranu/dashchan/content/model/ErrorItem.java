@@ -48,6 +48,7 @@ public class ErrorItem implements Serializable {
     public static final int TYPE_INSUFFICIENT_SPACE = 18;
     public static final int TYPE_EXTENSION = 19;
     public static final int TYPE_UNSUPPORTED_RECAPTCHA = 20;
+    public static final int TYPE_HOST_UNAVAILABLE = 21;
 
     public final int type;
     public final int specialType;
@@ -164,6 +165,15 @@ public class ErrorItem implements Serializable {
                 resId = R.string.message_unsupported_recaptcha;
                 break;
             }
+            case TYPE_HOST_UNAVAILABLE: {
+                if (specialType > 0) {
+                    // Special type holds seconds until requests to host are allowed again
+                    return MainApplication.getInstance().getString(R.string.message_host_unavailable_format,
+                            specialType);
+                }
+                resId = R.string.message_host_unavailable;
+                break;
+            }
         }
         if (resId == 0) {
             resId = R.string.message_unknown_error;
@@ -28,6 +28,7 @@ import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore;
 import android.provider.OpenableColumns;
 
+import com.mishiranu.dashchan.graphics.BitmapPool;
 import com.mishiranu.dashchan.media.JpegData;
 import com.mishiranu.dashchan.media.WebViewBitmapDecoder;
 import com.mishiranu.dashchan.util.IOUtils;
@@ -247,7 +248,7 @@ public abstract class FileHolder implements Serializable {
                     matrix.setRotate(-rotation);
                     Bitmap newBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(),
                             matrix, false);
-                    bitmap.recycle();
+                    BitmapPool.getInstance().put(bitmap);
                     bitmap = newBitmap;
                 }
             }
@@ -291,16 +292,23 @@ public abstract class FileHolder implements Serializable {
     }
 
     private Bitmap readBitmapSimple(BitmapFactory.Options options) {
-        InputStream input = null;
-        try {
-            input = openInputStream();
-            return BitmapFactory.decodeStream(input, null, options);
-        } catch (IOException e) {
-            Log.persistent().stack(e);
-            return null;
-        } finally {
-            IOUtils.close(input);
-        }
+        ImageData imageData = getImageData();
+        options.outWidth = imageData.width;
+        options.outHeight = imageData.height;
+        BitmapPool bitmapPool = BitmapPool.getInstance();
+        bitmapPool.prepareOptions(options);
+        return bitmapPool.decode(decodeOptions -> {
+            InputStream input = null;
+            try {
+                input = openInputStream();
+                return BitmapFactory.decodeStream(input, null, decodeOptions);
+            } catch (IOException e) {
+                Log.persistent().stack(e);
+                return null;
+            } finally {
+                IOUtils.close(input);
+            }
+        }, options);
     }
 
     public static int calculateInSampleSize(int max, int width, int height) {
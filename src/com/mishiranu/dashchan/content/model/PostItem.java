@@ -32,6 +32,7 @@ import com.mishiranu.dashchan.R;
 import com.mishiranu.dashchan.content.storage.HiddenThreadsDatabase;
 import com.mishiranu.dashchan.graphics.ColorScheme;
 import com.mishiranu.dashchan.preference.Preferences;
+import com.mishiranu.dashchan.text.CommentsCache;
 import com.mishiranu.dashchan.text.HtmlParser;
 import com.mishiranu.dashchan.text.style.LinkSpan;
 import com.mishiranu.dashchan.text.style.LinkSuffixSpan;
@@ -41,7 +42,6 @@ import com.mishiranu.dashchan.util.PostDateFormatter;
 
 import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.LinkedHashSet;
 
 import chan.content.ChanConfiguration;
 import chan.content.ChanMarkup;
@@ -72,7 +72,8 @@ public class PostItem implements AttachmentItem.Binder, ChanMarkup.MarkupExtra,
     private boolean useDefaultName;
 
     private HashSet<String> referencesTo;
-    private LinkedHashSet<String> referencesFrom;
+    private ReplyGraph replyGraph;
+    private int replyGraphId = -1;
 
     private boolean expanded = false;
 
@@ -197,23 +198,17 @@ public class PostItem implements AttachmentItem.Binder, ChanMarkup.MarkupExtra,
         return referencesTo;
     }
 
-    public void addReferenceFrom(String postNumber) {
-        if (referencesFrom == null) {
-            referencesFrom = new LinkedHashSet<>();
-        }
-        referencesFrom.add(postNumber);
+    void setReplyGraph(ReplyGraph replyGraph, int replyGraphId) {
+        this.replyGraph = replyGraph;
+        this.replyGraphId = replyGraphId;
     }
 
-    public void removeReferenceFrom(String postNumber) {
-        if (referencesFrom != null) {
-            referencesFrom.remove(postNumber);
-        }
+    ReplyGraph getReplyGraph() {
+        return replyGraph;
     }
 
-    public void clearReferencesFrom() {
-        if (referencesFrom != null) {
-            referencesFrom.clear();
-        }
+    int getReplyGraphId() {
+        return replyGraphId;
     }
 
     public void setOrdinalIndex(int ordinalIndex) {
@@ -448,8 +443,7 @@ public class PostItem implements AttachmentItem.Binder, ChanMarkup.MarkupExtra,
 
     private static CharSequence obtainComment(String comment, String chanName, String parentPostNumber,
                                               ChanMarkup.MarkupExtra extra) {
-        return StringUtils.isEmpty(comment) ? "" : HtmlParser.spanify(comment, ChanMarkup.get(chanName),
-                StringUtils.emptyIfNull(parentPostNumber), extra);
+        return CommentsCache.getInstance().spanify(comment, chanName, StringUtils.emptyIfNull(parentPostNumber), extra);
     }
 
     private static CharSequence obtainThreadComment(String comment, String chanName, ChanMarkup.MarkupExtra extra) {
@@ -611,17 +605,25 @@ public class PostItem implements AttachmentItem.Binder, ChanMarkup.MarkupExtra,
     }
 
     public int getPostReplyCount() {
-        return referencesFrom != null ? referencesFrom.size() : 0;
+        return replyGraph != null ? replyGraph.getRepliesCount(this) : 0;
     }
 
-    // May return null set.
-    public HashSet<String> getReferencesTo() {
-        return referencesTo;
+    public PostItem getPostReplyAt(int index) {
+        return replyGraph.getReplyAt(this, index);
+    }
+
+    public int getReferencedPostsCount() {
+        return replyGraph != null ? replyGraph.getReferencesCount(this) : 0;
+    }
+
+    // May return null if referenced post is not loaded.
+    public PostItem getReferencedPostAt(int index) {
+        return replyGraph.getReferenceAt(this, index);
     }
 
     // May return null set.
-    public LinkedHashSet<String> getReferencesFrom() {
-        return referencesFrom;
+    public HashSet<String> getReferencesTo() {
+        return referencesTo;
     }
 
     public GalleryItem.GallerySet getThreadGallerySet() {
@@ -801,6 +803,18 @@ public class PostItem implements AttachmentItem.Binder, ChanMarkup.MarkupExtra,
         post.resetHidden();
     }
 
+    // Copy marks set by user to another instance of the same post.
+    public void copyUserMarks(PostItem postItem) {
+        Post from = postItem.post;
+        post.setUserPost(from.isUserPost());
+        if (from.isHidden() || from.isShown()) {
+            post.setHidden(from.isHidden());
+        } else {
+            post.resetHidden();
+        }
+        invalidateHidden();
+    }
+
     public void setUnread(boolean unread) {
         this.unread = unread;
     }
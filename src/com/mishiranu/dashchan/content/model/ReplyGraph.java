@@ -0,0 +1,241 @@
+/*
+ * Copyright 2014-2017 Fukurou Mishiranu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.content.model;
+
+import android.util.LongSparseArray;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import chan.content.model.Post;
+
+/**
+ * References between posts of a single thread. Post numbers are resolved to nodes once when posts are added,
+ * so replies and referenced posts are enumerated by index without hashing strings.
+ * Graph is updated incrementally when posts are added, replaced or removed. Must be used from main thread.
+ */
+public class ReplyGraph {
+    private static final int[] EMPTY_IDS = new int[0];
+    private static final Node[] EMPTY_NODES = new Node[0];
+
+    // Nodes with the same number and different variations are chained
+    private final LongSparseArray<Node> nodes = new LongSparseArray<>();
+    private final long[] keys = new long[2];
+
+    // Arrays are indexed by post id, ids are not reused until graph is cleared
+    private PostItem[] postItems = new PostItem[16];
+    private Node[] postNodes = new Node[16];
+    private Node[][] references = new Node[16][];
+    private int count = 0;
+
+    private static class Node {
+        public final long number;
+        public final int variation;
+        public Node next;
+
+        public int id = -1;
+        public int[] replies = EMPTY_IDS;
+        public int repliesCount = 0;
+
+        public Node(long number, int variation) {
+            this.number = number;
+            this.variation = variation;
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < count; i++) {
+            PostItem postItem = postItems[i];
+            if (postItem != null) {
+                postItem.setReplyGraph(null, -1);
+            }
+        }
+        Arrays.fill(postItems, 0, count, null);
+        Arrays.fill(postNodes, 0, count, null);
+        Arrays.fill(references, 0, count, null);
+        nodes.clear();
+        count = 0;
+    }
+
+    public void add(PostItem postItem) {
+        if (count == postItems.length) {
+            int capacity = count * 2;
+            postItems = Arrays.copyOf(postItems, capacity);
+            postNodes = Arrays.copyOf(postNodes, capacity);
+            references = Arrays.copyOf(references, capacity);
+        }
+        int id = count++;
+        postItems[id] = postItem;
+        postItem.setReplyGraph(this, id);
+        Node node = null;
+        if (postItem.getPostNumber() != null) {
+            Post post = postItem.getPost();
+            node = obtainNode(post.getNumberKey(), post.getVariationKey());
+            node.id = id;
+        }
+        postNodes[id] = node;
+        link(id);
+    }
+
+    // Returns true if references were changed.
+    public boolean replace(PostItem oldPostItem, PostItem newPostItem) {
+        int id = getId(oldPostItem);
+        if (id == -1) {
+            add(newPostItem);
+            return true;
+        }
+        HashSet<String> oldReferencesTo = oldPostItem.getReferencesTo();
+        HashSet<String> newReferencesTo = newPostItem.getReferencesTo();
+        boolean referencesChanged = oldReferencesTo != null ? !oldReferencesTo.equals(newReferencesTo)
+                : newReferencesTo != null && !newReferencesTo.isEmpty();
+        if (referencesChanged) {
+            unlink(id);
+        }
+        oldPostItem.setReplyGraph(null, -1);
+        postItems[id] = newPostItem;
+        newPostItem.setReplyGraph(this, id);
+        if (referencesChanged) {
+            link(id);
+        }
+        return referencesChanged;
+    }
+
+    public void remove(PostItem postItem) {
+        int id = getId(postItem);
+        if (id == -1) {
+            return;
+        }
+        unlink(id);
+        Node node = postNodes[id];
+        if (node != null && node.id == id) {
+            node.id = -1;
+            releaseNode(node);
+        }
+        postItem.setReplyGraph(null, -1);
+        postItems[id] = null;
+        postNodes[id] = null;
+    }
+
+    public int getRepliesCount(PostItem postItem) {
+        int id = getId(postItem);
+        Node node = id >= 0 ? postNodes[id] : null;
+        return node != null ? node.repliesCount : 0;
+    }
+
+    public PostItem getReplyAt(PostItem postItem, int index) {
+        return postItems[postNodes[getId(postItem)].replies[index]];
+    }
+
+    public int getReferencesCount(PostItem postItem) {
+        int id = getId(postItem);
+        return id >= 0 ? references[id].length : 0;
+    }
+
+    // Returns null if referenced post is not in the graph.
+    public PostItem getReferenceAt(PostItem postItem, int index) {
+        Node node = references[getId(postItem)][index];
+        return node.id >= 0 ? postItems[node.id] : null;
+    }
+
+    private int getId(PostItem postItem) {
+        return postItem.getReplyGraph() == this ? postItem.getReplyGraphId() : -1;
+    }
+
+    private Node obtainNode(long number, int variation) {
+        Node first = nodes.get(number);
+        for (Node node = first; node != null; node = node.next) {
+            if (node.variation == variation) {
+                return node;
+            }
+        }
+        Node node = new Node(number, variation);
+        node.next = first;
+        nodes.put(number, node);
+        return node;
+    }
+
+    private void releaseNode(Node node) {
+        if (node.id == -1 && node.repliesCount == 0) {
+            Node first = nodes.get(node.number);
+            if (first == node) {
+                if (node.next != null) {
+                    nodes.put(node.number, node.next);
+                } else {
+                    nodes.remove(node.number);
+                }
+            } else {
+                for (Node previous = first; previous != null; previous = previous.next) {
+                    if (previous.next == node) {
+                        previous.next = node.next;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private void link(int id) {
+        HashSet<String> referencesTo = postItems[id].getReferencesTo();
+        Node[] nodes = EMPTY_NODES;
+        if (referencesTo != null && !referencesTo.isEmpty()) {
+            nodes = new Node[referencesTo.size()];
+            int count = 0;
+            for (String postNumber : referencesTo) {
+                if (Post.parseNumberKeys(postNumber, keys)) {
+                    Node node = obtainNode(keys[0], (int) keys[1]);
+                    addReply(node, id);
+                    nodes[count++] = node;
+                }
+            }
+            if (count < nodes.length) {
+                nodes = Arrays.copyOf(nodes, count);
+            }
+        }
+        references[id] = nodes;
+    }
+
+    private void unlink(int id) {
+        for (Node node : references[id]) {
+            int[] replies = node.replies;
+            for (int i = 0; i < node.repliesCount; i++) {
+                if (replies[i] == id) {
+                    System.arraycopy(replies, i + 1, replies, i, node.repliesCount - i - 1);
+                    node.repliesCount--;
+                    break;
+                }
+            }
+            releaseNode(node);
+        }
+        references[id] = EMPTY_NODES;
+    }
+
+    private void addReply(Node node, int id) {
+        int[] replies = node.replies;
+        if (node.repliesCount == replies.length) {
+            replies = Arrays.copyOf(replies, Math.max(4, replies.length * 2));
+            node.replies = replies;
+        }
+        // Keep replies in thread order, new posts are usually appended to the end
+        int index = node.repliesCount;
+        while (index > 0 && postItems[replies[index - 1]].compareTo(postItems[id]) > 0) {
+            index--;
+        }
+        System.arraycopy(replies, index, replies, index + 1, node.repliesCount - index);
+        replies[index] = id;
+        node.repliesCount++;
+    }
+}
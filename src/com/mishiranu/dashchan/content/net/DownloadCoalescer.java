@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014-2017 Fukurou Mishiranu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.content.net;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import chan.http.HttpHolder;
+
+/**
+ * Coalesces concurrent downloads of the same file. The first reader downloads the file to media cache,
+ * other readers wait for it, receive its progress and read the file from media cache when it's finished.
+ * Files are identified by keys from {@link com.mishiranu.dashchan.content.CacheManager#getCachedFileKey}.
+ */
+public class DownloadCoalescer {
+    private static final DownloadCoalescer INSTANCE = new DownloadCoalescer();
+
+    public static DownloadCoalescer getInstance() {
+        return INSTANCE;
+    }
+
+    private DownloadCoalescer() {
+    }
+
+    private final HashMap<String, Transfer> transfers = new HashMap<>();
+
+    public static class Transfer {
+        private final String key;
+        private final ArrayList<HttpHolder.InputListener> listeners = new ArrayList<>();
+
+        private long progress;
+        private long progressMax;
+        private boolean finished;
+
+        private Transfer(String key) {
+            this.key = key;
+        }
+
+        public void publishProgress(long progress, long progressMax) {
+            HttpHolder.InputListener[] listeners;
+            synchronized (this) {
+                this.progress = progress;
+                this.progressMax = progressMax;
+                if (this.listeners.isEmpty()) {
+                    return;
+                }
+                listeners = this.listeners.toArray(new HttpHolder.InputListener[this.listeners.size()]);
+            }
+            for (HttpHolder.InputListener listener : listeners) {
+                listener.onInputProgressChange(progress, progressMax);
+            }
+        }
+    }
+
+    /**
+     * Start the transfer of the file. Returns null if the file is being downloaded by another reader,
+     * otherwise caller must download the file and call {@link #finish(Transfer)}.
+     */
+    public Transfer start(String key) {
+        synchronized (transfers) {
+            if (transfers.containsKey(key)) {
+                return null;
+            }
+            Transfer transfer = new Transfer(key);
+            transfers.put(key, transfer);
+            return transfer;
+        }
+    }
+
+    public void finish(Transfer transfer) {
+        synchronized (transfers) {
+            if (transfers.get(transfer.key) == transfer) {
+                transfers.remove(transfer.key);
+            }
+        }
+        synchronized (transfer) {
+            transfer.finished = true;
+            transfer.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the length of the file being transferred, or 0 if there is no transfer or length is not known yet.
+     */
+    public long getTransferLength(String key) {
+        Transfer transfer;
+        synchronized (transfers) {
+            transfer = transfers.get(key);
+        }
+        if (transfer == null) {
+            return 0L;
+        }
+        synchronized (transfer) {
+            return Math.max(transfer.progressMax, 0L);
+        }
+    }
+
+    /**
+     * Wait for the transfer of the file to finish. Caller should check media cache afterwards,
+     * since transfer could fail or be cancelled.
+     *
+     * @return False if waiting thread was interrupted.
+     */
+    public boolean await(String key, HttpHolder.InputListener listener) {
+        Transfer transfer;
+        synchronized (transfers) {
+            transfer = transfers.get(key);
+        }
+        if (transfer == null) {
+            return true;
+        }
+        synchronized (transfer) {
+            if (listener != null) {
+                transfer.listeners.add(listener);
+                if (transfer.progressMax > 0) {
+                    listener.onInputProgressChange(transfer.progress, transfer.progressMax);
+                }
+            }
+            try {
+                while (!transfer.finished) {
+                    transfer.wait();
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                transfer.listeners.remove(listener);
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014-2017 Fukurou Mishiranu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.content.net;
+
+import android.net.Uri;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+import chan.util.StringUtils;
+
+/**
+ * Counts file download connections by host, so download tasks and additional segment connections
+ * share the same per host limit.
+ */
+public class HostConnections {
+    private static final HostConnections INSTANCE = new HostConnections();
+
+    public static HostConnections getInstance() {
+        return INSTANCE;
+    }
+
+    private HostConnections() {
+    }
+
+    private final HashMap<String, Integer> counts = new HashMap<>();
+
+    public static String getKey(Uri uri) {
+        return StringUtils.emptyIfNull(uri.getHost()).toLowerCase(Locale.US);
+    }
+
+    public int getCount(String host) {
+        synchronized (counts) {
+            Integer count = counts.get(host);
+            return count != null ? count : 0;
+        }
+    }
+
+    public void acquire(String host) {
+        synchronized (counts) {
+            counts.put(host, getCount(host) + 1);
+        }
+    }
+
+    public boolean tryAcquire(String host, int limit) {
+        synchronized (counts) {
+            int count = getCount(host);
+            if (count >= limit) {
+                return false;
+            }
+            counts.put(host, count + 1);
+            return true;
+        }
+    }
+
+    public void release(String host) {
+        synchronized (counts) {
+            int count = getCount(host) - 1;
+            if (count > 0) {
+                counts.put(host, count);
+            } else {
+                counts.remove(host);
+            }
+        }
+    }
+}
@@ -0,0 +1,668 @@
+/*
+ * Copyright 2014-2017 Fukurou Mishiranu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.content.net;
+
+import android.net.Uri;
+import android.os.Process;
+
+import com.mishiranu.dashchan.content.NetworkObserver;
+import com.mishiranu.dashchan.preference.AdvancedPreferences;
+import com.mishiranu.dashchan.util.ConcurrentUtils;
+import com.mishiranu.dashchan.util.IOUtils;
+import com.mishiranu.dashchan.util.Log;
+import com.mishiranu.dashchan.util.MimeTypes;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import chan.content.ChanPerformer;
+import chan.content.ExtensionException;
+import chan.content.InvalidResponseException;
+import chan.http.HttpException;
+import chan.http.HttpHolder;
+import chan.http.HttpRequest;
+import chan.http.HttpResponse;
+import chan.util.StringUtils;
+
+public class SegmentedDownloader {
+    private static final int VERSION = 1;
+
+    private static final long MIN_SEGMENTED_LENGTH = 4 * 1024 * 1024;
+    private static final long MIN_SEGMENT_LENGTH = 1024 * 1024;
+    private static final int MAX_SEGMENTS = 4;
+    private static final int MAX_SEGMENT_ATTEMPTS = 5;
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 15000;
+    private static final long SAVE_INTERVAL = 1000;
+
+    private static final ThreadPoolExecutor EXECUTOR;
+
+    static {
+        EXECUTOR = ConcurrentUtils.newThreadPool(2 * MAX_SEGMENTS, 2 * MAX_SEGMENTS, 10000,
+                "SegmentedDownloader", null, Process.THREAD_PRIORITY_BACKGROUND);
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final String chanName;
+    private final Uri uri;
+    private final File partialFile;
+    private final File segmentsFile;
+    private final HttpHolder.InputListener listener;
+
+    private final String host;
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    private final ArrayList<Segment> pendingSegments = new ArrayList<>();
+    private final ArrayList<Future<Void>> workers = new ArrayList<>();
+    private final ArrayList<HttpHolder> holders = new ArrayList<>();
+    private final Object saveLock = new Object();
+
+    private long length;
+    private String entityTag;
+
+    private FileChannel channel;
+    private long lastSave;
+    private volatile boolean cancelled = false;
+
+    private static class Segment {
+        public final long start;
+        public final long end;
+        public volatile long downloaded;
+
+        public Segment(long start, long end, long downloaded) {
+            this.start = start;
+            this.end = end;
+            this.downloaded = downloaded;
+        }
+
+        public long getPosition() {
+            return start + downloaded;
+        }
+
+        public boolean isComplete() {
+            return getPosition() > end;
+        }
+    }
+
+    public SegmentedDownloader(String chanName, Uri uri, File partialFile, File segmentsFile,
+                               HttpHolder.InputListener listener) {
+        this.chanName = chanName;
+        this.uri = uri;
+        host = HostConnections.getKey(uri);
+        this.partialFile = partialFile;
+        this.segmentsFile = segmentsFile;
+        this.listener = listener;
+    }
+
+    public static boolean isSegmentable(String chanName, String fileName) {
+        if (AdvancedPreferences.isSingleConnection(chanName)) {
+            // Segments would be loaded one by one anyway
+            return false;
+        }
+        String mimeType = MimeTypes.forExtension(StringUtils.getFileExtension(fileName));
+        return mimeType != null && (mimeType.startsWith("video/") || mimeType.startsWith("audio/"));
+    }
+
+    public void cancel() {
+        cancelled = true;
+        interruptHolders();
+    }
+
+    private void interruptHolders() {
+        synchronized (holders) {
+            for (HttpHolder holder : holders) {
+                holder.interrupt();
+            }
+        }
+    }
+
+    private void checkCancelled() throws HttpException {
+        if (cancelled) {
+            throw new HttpException(0, false, false);
+        }
+    }
+
+    /*
+     * Returns true when the whole file was loaded to partial file, returns false when file can not be
+     * loaded by segments, so it should be loaded in a common way.
+     */
+    public boolean download(HttpHolder holder) throws ExtensionException, HttpException,
+            InvalidResponseException, IOException {
+        boolean loaded = loadSegments();
+        if (!loaded) {
+            if (segmentsFile.exists()) {
+                // Segments state is invalid
+                segmentsFile.delete();
+                partialFile.delete();
+            } else if (partialFile.exists()) {
+                // Partial file was written in a common way
+                return false;
+            }
+        }
+        boolean success = false;
+        boolean valid = true;
+        try {
+            if (loaded) {
+                openFile(false);
+                startWorkers(true);
+            } else {
+                FirstRangeOutputStream output = new FirstRangeOutputStream(holder);
+                synchronized (holders) {
+                    holders.add(holder);
+                }
+                try {
+                    checkCancelled();
+                    // Small files fit the first range, so they are loaded with a single request.
+                    // Segments of large files are started when the first range response is received.
+                    if (readRange(holder, 0, MIN_SEGMENTED_LENGTH - 1, output) != null) {
+                        // Extension has read the whole response on its own, ranges can't be handled
+                        return false;
+                    }
+                } catch (HttpException e) {
+                    if (output.writeException != null) {
+                        throw output.writeException;
+                    }
+                    if (!output.accepted) {
+                        if (output.rejected || e.getResponseCode() == HttpURLConnection.HTTP_BAD_REQUEST
+                                || e.getResponseCode() == 416) {
+                            return false;
+                        }
+                        throw e;
+                    }
+                    // The rest of the first segment will be loaded by worker
+                } catch (IOException e) {
+                    if (output.rejected) {
+                        return false;
+                    }
+                    if (!output.accepted || output.writeException != null) {
+                        throw e;
+                    }
+                } finally {
+                    synchronized (holders) {
+                        holders.remove(holder);
+                    }
+                }
+                if (!output.accepted) {
+                    return false;
+                }
+                synchronized (pendingSegments) {
+                    if (!segments.get(0).isComplete()) {
+                        pendingSegments.add(0, segments.get(0));
+                    }
+                }
+            }
+            // Connection of the first request is free now
+            workers.add(EXECUTOR.submit(() -> {
+                runWorker(false);
+                return null;
+            }));
+            try {
+                for (Future<Void> future : workers) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RangeRejectedException) {
+                    valid = false;
+                    return false;
+                }
+                if (cause instanceof ExtensionException) {
+                    throw (ExtensionException) cause;
+                }
+                if (cause instanceof HttpException) {
+                    throw (HttpException) cause;
+                }
+                if (cause instanceof InvalidResponseException) {
+                    throw (InvalidResponseException) cause;
+                }
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof InterruptedException) {
+                    throw new HttpException(0, false, false, cause);
+                }
+                throw new RuntimeException(cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new HttpException(0, false, false, e);
+            } finally {
+                // Stop other segments and wait for them, so channel can be closed safely
+                cancelWorkers();
+            }
+            for (Segment segment : segments) {
+                if (!segment.isComplete()) {
+                    throw new IOException("Segment is not complete");
+                }
+            }
+            success = true;
+            return true;
+        } finally {
+            // Workers could be started by the first range response before request failed
+            cancelWorkers();
+            if (channel != null) {
+                if (success || !valid) {
+                    IOUtils.close(channel);
+                    segmentsFile.delete();
+                    if (!valid) {
+                        partialFile.delete();
+                    }
+                } else {
+                    try {
+                        saveSegments(true);
+                    } finally {
+                        IOUtils.close(channel);
+                    }
+                }
+            }
+        }
+    }
+
+    private void openFile(boolean create) throws IOException {
+        if (create) {
+            RandomAccessFile file = new RandomAccessFile(partialFile, "rw");
+            try {
+                file.setLength(length);
+            } finally {
+                IOUtils.close(file);
+            }
+        }
+        channel = new RandomAccessFile(partialFile, "rw").getChannel();
+        saveSegments(true);
+        notifyProgress();
+    }
+
+    // Starts workers for pending segments while host connections limit allows it.
+    private void startWorkers(boolean includeFirst) {
+        synchronized (pendingSegments) {
+            for (int i = includeFirst ? 0 : 1; i < segments.size(); i++) {
+                Segment segment = segments.get(i);
+                if (!segment.isComplete()) {
+                    pendingSegments.add(segment);
+                }
+            }
+        }
+        // One more worker will use connection of the first request
+        int limit = AdvancedPreferences.getDownloadHostConcurrency();
+        int count = Math.min(pendingSegments.size(), MAX_SEGMENTS - 1);
+        HostConnections hostConnections = HostConnections.getInstance();
+        for (int i = 0; i < count && hostConnections.tryAcquire(host, limit); i++) {
+            workers.add(EXECUTOR.submit(() -> {
+                runWorker(true);
+                return null;
+            }));
+        }
+    }
+
+    private void runWorker(boolean extraConnection) throws ExtensionException, HttpException,
+            InvalidResponseException, IOException, InterruptedException {
+        try {
+            while (true) {
+                Segment segment;
+                synchronized (pendingSegments) {
+                    if (pendingSegments.isEmpty()) {
+                        return;
+                    }
+                    segment = pendingSegments.remove(0);
+                }
+                downloadSegment(segment);
+            }
+        } finally {
+            if (extraConnection) {
+                HostConnections.getInstance().release(host);
+            }
+        }
+    }
+
+    private void cancelWorkers() {
+        if (!workers.isEmpty()) {
+            interruptHolders();
+            for (Future<Void> future : workers) {
+                try {
+                    future.get();
+                } catch (ExecutionException | InterruptedException e) {
+                    // Ignore exception
+                }
+            }
+            workers.clear();
+        }
+    }
+
+    private void downloadSegment(Segment segment) throws ExtensionException, HttpException,
+            InvalidResponseException, IOException, InterruptedException {
+        int attempt = 0;
+        while (!segment.isComplete()) {
+            checkCancelled();
+            HttpHolder holder = new HttpHolder();
+            synchronized (holders) {
+                holders.add(holder);
+            }
+            SegmentOutputStream output = new SegmentOutputStream(holder, segment);
+            try {
+                HttpResponse response = readRange(holder, segment.getPosition(), segment.end, output);
+                if (response != null) {
+                    byte[] bytes = response.getBytes();
+                    if (bytes != null) {
+                        output.write(bytes);
+                    }
+                }
+                attempt = 0;
+            } catch (HttpException e) {
+                if (output.writeException != null) {
+                    throw output.writeException;
+                }
+                if (output.rejected) {
+                    throw new RangeRejectedException();
+                }
+                if (segment.isComplete()) {
+                    break;
+                }
+                checkCancelled();
+                int responseCode = e.getResponseCode();
+                if (!e.isSocketException() && responseCode < HttpURLConnection.HTTP_INTERNAL_ERROR
+                        || ++attempt >= MAX_SEGMENT_ATTEMPTS) {
+                    throw e;
+                }
+                // Wait until network is changed or some time passed
+                NetworkObserver.getInstance().waitNetworkChange(1000L << attempt);
+            } finally {
+                synchronized (holders) {
+                    holders.remove(holder);
+                }
+                holder.cleanup();
+            }
+        }
+    }
+
+    // Returns response if extension has read it on its own instead of writing to output.
+    private HttpResponse readRange(HttpHolder holder, long start, long end, OutputStream output)
+            throws ExtensionException, HttpException, InvalidResponseException, IOException {
+        ChanPerformer.ReadContentData data = new ChanPerformer.ReadContentData(uri, CONNECT_TIMEOUT, READ_TIMEOUT,
+                holder, null, output, start, end);
+        HttpResponse response;
+        if (chanName != null) {
+            ChanPerformer.ReadContentResult result = ChanPerformer.get(chanName).safe().onReadContent(data);
+            response = result != null ? result.response : null;
+        } else {
+            response = new HttpRequest(uri, data).read();
+        }
+        return response;
+    }
+
+    public static long[] parseContentRange(HttpHolder holder) {
+        // Content-Range: bytes start-end/length
+        String contentRange = holder.getHeaderValue("Content-Range");
+        if (contentRange != null && contentRange.startsWith("bytes ")) {
+            int dash = contentRange.indexOf('-');
+            int slash = contentRange.indexOf('/');
+            if (dash > 6 && slash > dash) {
+                try {
+                    long start = Long.parseLong(contentRange.substring(6, dash).trim());
+                    long end = Long.parseLong(contentRange.substring(dash + 1, slash).trim());
+                    long length = Long.parseLong(contentRange.substring(slash + 1).trim());
+                    return new long[]{start, end, length};
+                } catch (NumberFormatException e) {
+                    // Invalid or unknown length, ignore exception
+                }
+            }
+        }
+        return null;
+    }
+
+    private void notifyProgress() {
+        if (listener != null) {
+            long progress = 0L;
+            for (Segment segment : segments) {
+                progress += segment.downloaded;
+            }
+            synchronized (listener) {
+                listener.onInputProgressChange(progress, length);
+            }
+        }
+    }
+
+    private boolean loadSegments() {
+        if (!segmentsFile.exists() || !partialFile.exists()) {
+            return false;
+        }
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(segmentsFile);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            IOUtils.copyStream(input, output);
+            JSONObject jsonObject = new JSONObject(new String(output.toByteArray(), "UTF-8"));
+            if (jsonObject.optInt("version") != VERSION || !uri.toString().equals(jsonObject.optString("uri"))) {
+                return false;
+            }
+            long length = jsonObject.getLong("length");
+            if (length != partialFile.length()) {
+                return false;
+            }
+            JSONArray jsonArray = jsonObject.getJSONArray("segments");
+            ArrayList<Segment> segments = new ArrayList<>();
+            for (int i = 0; i < jsonArray.length(); i++) {
+                JSONArray segmentArray = jsonArray.getJSONArray(i);
+                segments.add(new Segment(segmentArray.getLong(0), segmentArray.getLong(1),
+                        segmentArray.getLong(2)));
+            }
+            if (segments.isEmpty()) {
+                return false;
+            }
+            this.length = length;
+            entityTag = jsonObject.optString("entityTag", null);
+            this.segments.addAll(segments);
+            return true;
+        } catch (IOException | JSONException e) {
+            Log.persistent().stack(e);
+            return false;
+        } finally {
+            IOUtils.close(input);
+        }
+    }
+
+    private void saveSegments(boolean force) throws IOException {
+        synchronized (saveLock) {
+            long time = System.currentTimeMillis();
+            if (!force && time - lastSave < SAVE_INTERVAL) {
+                return;
+            }
+            lastSave = time;
+            // Data must be written before segments state, so segments never point to missing data
+            channel.force(false);
+            JSONObject jsonObject = new JSONObject();
+            try {
+                jsonObject.put("version", VERSION);
+                jsonObject.put("uri", uri.toString());
+                jsonObject.put("length", length);
+                if (entityTag != null) {
+                    jsonObject.put("entityTag", entityTag);
+                }
+                JSONArray jsonArray = new JSONArray();
+                for (Segment segment : segments) {
+                    JSONArray segmentArray = new JSONArray();
+                    segmentArray.put(segment.start);
+                    segmentArray.put(segment.end);
+                    segmentArray.put(segment.downloaded);
+                    jsonArray.put(segmentArray);
+                }
+                jsonObject.put("segments", jsonArray);
+            } catch (JSONException e) {
+                throw new RuntimeException(e);
+            }
+            File tempFile = new File(segmentsFile.getParentFile(), segmentsFile.getName() + ".tmp");
+            FileOutputStream output = null;
+            try {
+                output = new FileOutputStream(tempFile);
+                output.write(jsonObject.toString().getBytes("UTF-8"));
+                output.getFD().sync();
+            } finally {
+                IOUtils.close(output);
+            }
+            if (!tempFile.renameTo(segmentsFile)) {
+                throw new IOException("Can't rename segments file");
+            }
+        }
+    }
+
+    private static class RangeRejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private class FirstRangeOutputStream extends OutputStream {
+        private final HttpHolder holder;
+        private SegmentOutputStream output;
+
+        public boolean accepted = false;
+        public boolean rejected = false;
+        public IOException writeException;
+
+        public FirstRangeOutputStream(HttpHolder holder) {
+            this.holder = holder;
+        }
+
+        private void prepare(long length) throws IOException {
+            SegmentedDownloader.this.length = length;
+            entityTag = holder.getHeaderValue("ETag");
+            int count = length < MIN_SEGMENTED_LENGTH ? 1 : (int) Math.min(MAX_SEGMENTS, length / MIN_SEGMENT_LENGTH);
+            long segmentLength = length / count;
+            for (int i = 0; i < count; i++) {
+                long start = i * segmentLength;
+                long end = i == count - 1 ? length - 1 : start + segmentLength - 1;
+                segments.add(new Segment(start, end, 0));
+            }
+            openFile(true);
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            write(new byte[]{(byte) oneByte}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            if (output == null) {
+                long[] contentRange = holder.getResponseCode() == HttpURLConnection.HTTP_PARTIAL
+                        ? parseContentRange(holder) : null;
+                if (contentRange == null || contentRange[0] != 0 || contentRange[2] <= 0) {
+                    // Server doesn't support ranges, stop loading the whole file
+                    rejected = true;
+                    throw new IOException("Ranges are not supported");
+                }
+                try {
+                    prepare(contentRange[2]);
+                } catch (IOException e) {
+                    writeException = e;
+                    throw e;
+                }
+                accepted = true;
+                // Response continues to load the first segment while other segments are loaded in parallel
+                output = new SegmentOutputStream(holder, segments.get(0));
+                startWorkers(false);
+            }
+            try {
+                output.write(buffer, offset, length);
+            } finally {
+                if (output.writeException != null) {
+                    writeException = output.writeException;
+                }
+            }
+        }
+    }
+
+    private class SegmentOutputStream extends OutputStream {
+        private final HttpHolder holder;
+        private final Segment segment;
+
+        private boolean checked = false;
+        public boolean rejected = false;
+        public IOException writeException;
+
+        public SegmentOutputStream(HttpHolder holder, Segment segment) {
+            this.holder = holder;
+            this.segment = segment;
+        }
+
+        private boolean checkResponse() {
+            if (holder.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                return false;
+            }
+            long[] contentRange = parseContentRange(holder);
+            if (contentRange == null || contentRange[0] != segment.getPosition() || contentRange[2] != length) {
+                return false;
+            }
+            String entityTag = holder.getHeaderValue("ETag");
+            return SegmentedDownloader.this.entityTag == null || entityTag == null
+                    || SegmentedDownloader.this.entityTag.equals(entityTag);
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            write(new byte[]{(byte) oneByte}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            if (!checked) {
+                checked = true;
+                if (!checkResponse()) {
+                    // File was changed or server stopped to support ranges
+                    rejected = true;
+                    throw new IOException("Range is not satisfied");
+                }
+            }
+            long position = segment.getPosition();
+            int count = (int) Math.min(length, segment.end + 1 - position);
+            if (count > 0) {
+                try {
+                    ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, count);
+                    while (byteBuffer.hasRemaining()) {
+                        position += channel.write(byteBuffer, position);
+                    }
+                } catch (IOException e) {
+                    writeException = e;
+                    throw e;
+                }
+                segment.downloaded += count;
+                notifyProgress();
+                try {
+                    saveSegments(false);
+                } catch (IOException e) {
+                    writeException = e;
+                    throw e;
+                }
+            }
+            if (count < length) {
+                // Server sent more data than requested
+                throw new IOException("Segment is complete");
+            }
+        }
+    }
+}
@@ -33,6 +33,7 @@ import android.os.IBinder;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.os.PowerManager;
+import android.os.Process;
 import android.text.SpannableStringBuilder;
 import android.text.style.StyleSpan;
 import android.text.style.TypefaceSpan;
@@ -46,7 +47,10 @@ import com.mishiranu.dashchan.content.FileProvider;
 import com.mishiranu.dashchan.content.async.ReadFileTask;
 import com.mishiranu.dashchan.content.model.ErrorItem;
 import com.mishiranu.dashchan.content.model.FileHolder;
+import com.mishiranu.dashchan.content.net.HostConnections;
+import com.mishiranu.dashchan.preference.AdvancedPreferences;
 import com.mishiranu.dashchan.preference.Preferences;
+import com.mishiranu.dashchan.util.ConcurrentUtils;
 import com.mishiranu.dashchan.util.MimeTypes;
 import com.mishiranu.dashchan.util.ResourceUtils;
 import com.mishiranu.dashchan.util.ToastUtils;
@@ -54,15 +58,21 @@ import com.mishiranu.dashchan.util.ViewUtils;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.LinkedHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import chan.util.StringUtils;
 
-public class DownloadService extends Service implements ReadFileTask.Callback, ReadFileTask.AsyncFinishCallback,
-        Runnable, MediaScannerConnection.MediaScannerConnectionClient {
-    private static final Executor SINGLE_THREAD_EXECUTOR = Executors.newSingleThreadExecutor();
+public class DownloadService extends Service implements Runnable, MediaScannerConnection.MediaScannerConnectionClient {
+    private static final ThreadPoolExecutor EXECUTOR;
+
+    static {
+        int concurrency = AdvancedPreferences.getDownloadConcurrency();
+        EXECUTOR = ConcurrentUtils.newThreadPool(concurrency, concurrency, 10000, "DownloadService", null,
+                Process.THREAD_PRIORITY_BACKGROUND);
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
 
     private static final String ACTION_START = "com.mishiranu.dashchan.action.START";
     private static final String ACTION_SHOW_FAKE = "com.mishiranu.dashchan.action.SHOW_FAKE";
@@ -116,9 +126,7 @@ public class DownloadService extends Service implements ReadFileTask.Callback, R
         notificationsWorker.interrupt();
         wakeLock.release();
         DownloadManager.getInstance().notifyServiceDestroy();
-        if (readFileTask != null) {
-            readFileTask.cancel();
-        }
+        cancelRunningTasks();
         try {
             notificationsWorker.join();
         } catch (InterruptedException e) {
@@ -189,9 +197,7 @@ public class DownloadService extends Service implements ReadFileTask.Callback, R
             } else if (ACTION_CANCEL_DOWNLOADING.equals(action)) {
                 stopSelf();
             } else if (ACTION_RETRY_DOWNLOADING.equals(action)) {
-                if (readFileTask != null) {
-                    readFileTask.cancel();
-                }
+                cancelRunningTasks();
                 successTasks.clear();
                 for (TaskData taskData : errorTasks) {
                     if (taskData.retryable) {
@@ -199,10 +205,7 @@ public class DownloadService extends Service implements ReadFileTask.Callback, R
                     }
                 }
                 errorTasks.clear();
-                if (queuedTasks.size() > 0) {
-                    TaskData taskData = queuedTasks.get(0);
-                    start(taskData.chanName, taskData.from, taskData.to);
-                }
+                startQueuedTasks();
             }
         }
         return START_NOT_STICKY;
@@ -290,10 +293,9 @@ public class DownloadService extends Service implements ReadFileTask.Callback, R
     private Notification.BigTextStyle notificationStyle;
     private CharSequence notificationBigText;
 
-    private volatile int progress, progressMax;
     private volatile long lastUpdate;
 
-    private ReadFileTask readFileTask;
+    private final LinkedHashMap<TaskData, DownloadTask> runningTasks = new LinkedHashMap<>();
 
     private File scannedMediaFile;
     private Uri scannedMediaUri;
@@ -329,6 +331,48 @@ public class DownloadService extends Service implements ReadFileTask.Callback, R
         }
     }
 
+    private class DownloadTask implements ReadFileTask.Callback, ReadFileTask.AsyncFinishCallback {
+        public final TaskData taskData;
+        public final String host;
+        public final ReadFileTask readFileTask;
+
+        public volatile long progress, progressMax;
+
+        public DownloadTask(TaskData taskData, String host) {
+            this.taskData = taskData;
+            this.host = host;
+            readFileTask = new ReadFileTask(DownloadService.this, taskData.chanName, taskData.from, taskData.to,
+                    true, this);
+        }
+
+        @Override
+        public void onFileExists(Uri uri, File file) {
+            onFinishDownloading(true, uri, file, null);
+        }
+
+        @Override
+        public void onStartDownloading(Uri uri, File file) {
+            refreshNotification(false);
+        }
+
+        @Override
+        public void onFinishDownloading(boolean success, Uri uri, File file, ErrorItem errorItem) {
+            DownloadService.this.onFinishDownloading(this, success, errorItem);
+        }
+
+        @Override
+        public void onUpdateProgress(long progress, long progressMax) {
+            this.progress = progress;
+            this.progressMax = progressMax;
+            DownloadService.this.onUpdateProgress();
+        }
+
+        @Override
+        public void onFinishDownloadingInThread() {
+            DownloadManager.getInstance().notifyFinishDownloadingInThread();
+        }
+    }
+
     private void enqueue(String chanName, Uri from, File to, boolean refreshNotification) {
         TaskData taskData = new TaskData(chanName, from, to);
         boolean success = successTasks.contains(taskData);
@@ -338,25 +382,79 @@ public class DownloadService extends Service implements ReadFileTask.Callback, R
             }
             queuedTasks.add(taskData);
             DownloadManager.getInstance().notifyFileAddedToDownloadQueue(taskData.to);
-            boolean started = start(chanName, from, to);
+            boolean started = startQueuedTasks();
             if (!started && refreshNotification) {
                 refreshNotification(false);
             }
-        } else if (success && readFileTask == null) {
+        } else if (success && runningTasks.isEmpty()) {
             refreshNotification(true);
         }
     }
 
-    private boolean start(String chanName, Uri from, File to) {
-        if (readFileTask == null) {
-            progressMax = 0;
-            progress = 0;
-            lastUpdate = 0L;
-            readFileTask = new ReadFileTask(this, chanName, from, to, true, this);
-            readFileTask.executeOnExecutor(SINGLE_THREAD_EXECUTOR);
-            return true;
+    private boolean canStart(TaskData taskData, String host) {
+        boolean singleConnection = AdvancedPreferences.isSingleConnection(taskData.chanName);
+        int hostConcurrency = AdvancedPreferences.getDownloadHostConcurrency();
+        // Connections of segmented downloads are counted as well
+        int hostCount = HostConnections.getInstance().getCount(host);
+        int chanCount = 0;
+        for (DownloadTask downloadTask : runningTasks.values()) {
+            if (StringUtils.equals(taskData.chanName, downloadTask.taskData.chanName)) {
+                chanCount++;
+            }
+        }
+        // HttpClient allows only one connection per chan in single connection mode, so don't occupy other threads
+        return hostCount < hostConcurrency && (!singleConnection || chanCount == 0);
+    }
+
+    private boolean startingQueuedTasks = false;
+
+    private boolean startQueuedTasks() {
+        if (startingQueuedTasks) {
+            return false;
+        }
+        startingQueuedTasks = true;
+        try {
+            // Tasks are started in order they were queued while global and host limits allow it
+            boolean started = false;
+            int concurrency = AdvancedPreferences.getDownloadConcurrency();
+            boolean restart;
+            do {
+                restart = false;
+                int count = queuedTasks.size();
+                for (int i = 0; i < queuedTasks.size() && runningTasks.size() < concurrency; i++) {
+                    TaskData taskData = queuedTasks.get(i);
+                    if (!runningTasks.containsKey(taskData)) {
+                        String host = HostConnections.getKey(taskData.from);
+                        if (canStart(taskData, host)) {
+                            if (runningTasks.isEmpty()) {
+                                lastUpdate = 0L;
+                            }
+                            DownloadTask downloadTask = new DownloadTask(taskData, host);
+                            runningTasks.put(taskData, downloadTask);
+                            HostConnections.getInstance().acquire(host);
+                            downloadTask.readFileTask.executeOnExecutor(EXECUTOR);
+                            started = true;
+                            if (queuedTasks.size() != count) {
+                                // Task was finished immediately (e.g. file exists)
+                                restart = true;
+                                break;
+                            }
+                        }
+                    }
+                }
+            } while (restart);
+            return started;
+        } finally {
+            startingQueuedTasks = false;
         }
-        return false;
+    }
+
+    private void cancelRunningTasks() {
+        for (DownloadTask downloadTask : runningTasks.values()) {
+            downloadTask.readFileTask.cancel();
+            HostConnections.getInstance().release(downloadTask.host);
+        }
+        runningTasks.clear();
     }
 
     private boolean oldStateWithTask = false;
@@ -491,7 +589,7 @@ public class DownloadService extends Service implements ReadFileTask.Callback, R
     }
 
     private void refreshNotification(boolean allowHeadsUp) {
-        boolean hasTask = readFileTask != null;
+        boolean hasTask = !runningTasks.isEmpty();
         boolean hasExternal = false;
         for (TaskData taskData : successTasks) {
             if (!taskData.local) {
@@ -505,9 +603,32 @@ public class DownloadService extends Service implements ReadFileTask.Callback, R
                 break;
             }
         }
+        String currentTaskFileName = null;
+        long progress = 0L;
+        long progressMax = 0L;
+        for (DownloadTask downloadTask : runningTasks.values()) {
+            if (currentTaskFileName == null) {
+                currentTaskFileName = downloadTask.readFileTask.getFileName();
+            }
+            long taskProgressMax = downloadTask.progressMax;
+            if (taskProgressMax <= 0 || progressMax < 0) {
+                progressMax = -1L;
+            } else {
+                progress += downloadTask.progress;
+                progressMax += taskProgressMax;
+            }
+        }
+        if (progressMax < 0) {
+            progress = 0L;
+            progressMax = 0L;
+        }
+        while (progressMax > Integer.MAX_VALUE) {
+            progress /= 2;
+            progressMax /= 2;
+        }
         notificationsQueue.add(new NotificationData(allowHeadsUp, hasTask, queuedTasks.size(), successTasks.size(),
-                errorTasks, hasExternal, getLastSuccessTaskData(), hasTask ? readFileTask.getFileName() : null,
-                progress, progressMax));
+                errorTasks, hasExternal, getLastSuccessTaskData(), currentTaskFileName,
+                (int) progress, (int) progressMax));
         if (hasTask) {
             wakeLock.acquire();
         } else {
@@ -519,25 +640,20 @@ public class DownloadService extends Service implements ReadFileTask.Callback, R
         return successTasks.size() > 0 ? successTasks.get(successTasks.size() - 1) : null;
     }
 
-    @Override
-    public void onFileExists(Uri uri, File file) {
-        onFinishDownloading(true, uri, file, null);
-    }
-
-    @Override
-    public void onStartDownloading(Uri uri, File file) {
-        refreshNotification(false);
-    }
-
-    @Override
-    public void onFinishDownloading(boolean success, Uri uri, File file, ErrorItem errorItem) {
+    private void onFinishDownloading(DownloadTask downloadTask, boolean success, ErrorItem errorItem) {
+        TaskData runningTaskData = downloadTask.taskData;
+        if (runningTasks.get(runningTaskData) != downloadTask) {
+            // Task was cancelled
+            return;
+        }
+        File file = runningTaskData.to;
         if (success) {
             scanFile(file);
         }
-        boolean local = readFileTask.isDownloadingFromCache();
-        readFileTask = null;
-        TaskData taskData = new TaskData(null, uri, file);
-        taskData.local = local;
+        runningTasks.remove(runningTaskData);
+        HostConnections.getInstance().release(downloadTask.host);
+        TaskData taskData = new TaskData(null, runningTaskData.from, file);
+        taskData.local = downloadTask.readFileTask.isDownloadingFromCache();
         queuedTasks.remove(taskData);
         if (success) {
             DownloadManager.getInstance().notifyFileRemovedFromDownloadQueue(file);
@@ -556,17 +672,14 @@ public class DownloadService extends Service implements ReadFileTask.Callback, R
             if (success) {
                 notificationsQueue.add(new NotificationData(taskData));
             }
-            taskData = queuedTasks.get(0);
-            start(taskData.chanName, taskData.from, taskData.to);
+            startQueuedTasks();
+            refreshNotification(false);
         } else {
             refreshNotification(true);
         }
     }
 
-    @Override
-    public void onUpdateProgress(long progress, long progressMax) {
-        this.progress = (int) progress;
-        this.progressMax = (int) progressMax;
+    private void onUpdateProgress() {
         long t = System.currentTimeMillis();
         if (t - lastUpdate >= 1000L) {
             lastUpdate = t;
@@ -574,11 +687,6 @@ public class DownloadService extends Service implements ReadFileTask.Callback, R
         }
     }
 
-    @Override
-    public void onFinishDownloadingInThread() {
-        DownloadManager.getInstance().notifyFinishDownloadingInThread();
-    }
-
     private void scanFile(File file) {
         String[] fileArray = {file.getAbsolutePath()};
         MediaScannerConnection.scanFile(context, fileArray, null, this);
@@ -28,8 +28,10 @@ import android.os.Process;
 
 import com.mishiranu.dashchan.content.NetworkObserver;
 import com.mishiranu.dashchan.content.storage.FavoritesStorage;
+import com.mishiranu.dashchan.preference.AdvancedPreferences;
 import com.mishiranu.dashchan.preference.Preferences;
 import com.mishiranu.dashchan.util.ConcurrentUtils;
+import com.mishiranu.dashchan.util.Log;
 
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
@@ -37,9 +39,11 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import chan.content.ChanConfiguration;
 import chan.content.ChanManager;
@@ -52,25 +56,49 @@ import chan.http.HttpValidator;
 import chan.util.StringUtils;
 
 public class WatcherService extends Service implements FavoritesStorage.Observer, Handler.Callback {
-    private static final HashMap<String, ExecutorService> EXECUTORS = new HashMap<>();
+    // Threads are shared between chans, every chan can occupy only a few of them at the same time
+    private static final int CONCURRENCY = 4;
+    private static final int CHAN_CONCURRENCY = 2;
+    private static final int TASK_DEADLINE = 30000;
+    private static final int SLOW_CYCLE_TIME = 60000;
+
+    private static final ThreadPoolExecutor EXECUTOR;
+    private static final HashSet<String> CHAN_NAMES = new HashSet<>();
+    private static final HashSet<String> BATCH_CHAN_NAMES = new HashSet<>();
 
     static {
+        EXECUTOR = ConcurrentUtils.newThreadPool(CONCURRENCY, CONCURRENCY, 60000, "ThreadsWatcher", null,
+                Process.THREAD_PRIORITY_BACKGROUND);
+        EXECUTOR.allowCoreThreadTimeOut(true);
         for (String chanName : ChanManager.getInstance().getAllChanNames()) {
             ChanConfiguration configuration = ChanConfiguration.get(chanName);
             if (configuration.getOption(ChanConfiguration.OPTION_READ_POSTS_COUNT)) {
-                EXECUTORS.put(chanName, ConcurrentUtils.newSingleThreadPool(60000, "ThreadsWatcher", chanName,
-                        Process.THREAD_PRIORITY_BACKGROUND));
+                CHAN_NAMES.add(chanName);
+                if (configuration.getOption(ChanConfiguration.OPTION_READ_POSTS_COUNTS)) {
+                    BATCH_CHAN_NAMES.add(chanName);
+                }
             }
         }
     }
 
+    // Interval is doubled for threads without new posts and halved for active threads
+    private static final int MIN_INTERVAL = 15000;
+    private static final int MIN_INTERVAL_SHIFT = -1;
+    private static final int MAX_INTERVAL_SHIFT = 4;
+    private static final float INTERVAL_JITTER = 0.1f;
+
     private static final int MESSAGE_STOP = 0;
     private static final int MESSAGE_UPDATE = 1;
     private static final int MESSAGE_RESULT = 2;
+    private static final int MESSAGE_DEADLINE = 3;
 
     private final Handler handler = new Handler(this);
     private final LinkedHashMap<String, WatcherItem> watching = new LinkedHashMap<>();
     private final HashMap<String, WatcherTask> tasks = new HashMap<>();
+    private final ArrayList<WatcherTask> queuedTasks = new ArrayList<>();
+    private final ArrayList<WatcherTask> runningTasks = new ArrayList<>();
+    private final HashMap<String, BoardValidator> boardValidators = new HashMap<>();
+    private final Random random = new Random();
 
     private boolean mergeChans = false;
     private final HashMap<Client, String> clients = new HashMap<>();
@@ -97,8 +125,10 @@ public class WatcherService extends Service implements FavoritesStorage.Observer
         private boolean hasNewPosts;
         private boolean error;
         private HttpValidator validator;
+        private boolean checked;
 
         private long lastUpdateTime;
+        private int intervalShift;
         private boolean lastWasAvailable;
         private State lastState = State.DISABLED;
 
@@ -156,7 +186,7 @@ public class WatcherService extends Service implements FavoritesStorage.Observer
         ArrayList<FavoritesStorage.FavoriteItem> favoriteItems = FavoritesStorage.getInstance().getThreads(null);
         boolean available = isAvailable();
         for (FavoritesStorage.FavoriteItem favoriteItem : favoriteItems) {
-            if (favoriteItem.watcherEnabled && EXECUTORS.containsKey(favoriteItem.chanName)) {
+            if (favoriteItem.watcherEnabled && CHAN_NAMES.contains(favoriteItem.chanName)) {
                 WatcherItem watcherItem = new WatcherItem(favoriteItem);
                 watcherItem.lastState = available ? State.ENABLED : State.UNAVAILABLE;
                 watcherItem.lastWasAvailable = available;
@@ -263,7 +293,7 @@ public class WatcherService extends Service implements FavoritesStorage.Observer
                 if (favoriteItem.threadNumber == null) {
                     throw new IllegalArgumentException();
                 }
-                if (EXECUTORS.containsKey(favoriteItem.chanName)) {
+                if (CHAN_NAMES.contains(favoriteItem.chanName)) {
                     WatcherItem watcherItem = new WatcherItem(favoriteItem);
                     watching.put(watcherItem.key, watcherItem);
                     if (isActiveChanName(favoriteItem.chanName)) {
@@ -277,8 +307,8 @@ public class WatcherService extends Service implements FavoritesStorage.Observer
                 if (watcherItem != null) {
                     watching.remove(watcherItem.key);
                     WatcherTask task = tasks.remove(watcherItem.key);
-                    if (task != null) {
-                        task.cancel(false);
+                    if (task != null && !tasks.containsValue(task)) {
+                        cancelTask(task);
                     }
                     handler.removeMessages(MESSAGE_UPDATE, watcherItem);
                     if (isActiveChanName(favoriteItem.chanName)) {
@@ -400,12 +430,14 @@ public class WatcherService extends Service implements FavoritesStorage.Observer
         long time = System.currentTimeMillis();
         boolean available = isAvailable();
         for (WatcherItem watcherItem : watching.values()) {
-            if (isActiveChanName(watcherItem.chanName)) {
+            if (isActiveChanName(watcherItem.chanName) && !isDeleted(watcherItem)) {
                 long dt = time - watcherItem.lastUpdateTime;
+                long interval = getInterval(watcherItem);
                 if (dt >= interval) {
                     enqueue(watcherItem, available);
                 } else {
-                    handler.sendMessageDelayed(handler.obtainMessage(MESSAGE_UPDATE, watcherItem), interval - dt);
+                    handler.sendMessageDelayed(handler.obtainMessage(MESSAGE_UPDATE, watcherItem),
+                            applyJitter(interval - dt));
                 }
             }
         }
@@ -414,11 +446,45 @@ public class WatcherService extends Service implements FavoritesStorage.Observer
     private void enqueue(WatcherItem watcherItem, boolean available) {
         if (!tasks.containsKey(watcherItem.key)) {
             if (available) {
-                WatcherTask task = new WatcherTask(watcherItem);
-                tasks.put(watcherItem.key, task);
-                EXECUTORS.get(watcherItem.chanName).execute(task);
-                watcherItem.lastWasAvailable = true;
-                notifyUpdate(watcherItem, State.BUSY);
+                ArrayList<WatcherItem> watcherItems = new ArrayList<>();
+                watcherItems.add(watcherItem);
+                if (BATCH_CHAN_NAMES.contains(watcherItem.chanName)) {
+                    // All threads of the board are checked with a single request
+                    for (WatcherItem boardWatcherItem : watching.values()) {
+                        if (boardWatcherItem != watcherItem && boardWatcherItem.chanName.equals(watcherItem.chanName)
+                                && StringUtils.equals(boardWatcherItem.boardName, watcherItem.boardName)
+                                && !tasks.containsKey(boardWatcherItem.key) && !isDeleted(boardWatcherItem)) {
+                            watcherItems.add(boardWatcherItem);
+                        }
+                    }
+                }
+                HttpValidator boardValidator = null;
+                if (watcherItems.size() > 1) {
+                    BoardValidator lastBoardValidator = boardValidators
+                            .get(makeKey(watcherItem.chanName, watcherItem.boardName, null));
+                    if (lastBoardValidator != null) {
+                        // Not modified response is valid only for threads which were checked before
+                        boolean allChecked = true;
+                        for (WatcherItem taskWatcherItem : watcherItems) {
+                            if (!taskWatcherItem.checked) {
+                                allChecked = false;
+                                break;
+                            }
+                        }
+                        if (allChecked || lastBoardValidator.threadNumbers.equals(collectThreadNumbers(watcherItems))) {
+                            boardValidator = lastBoardValidator.validator;
+                        }
+                    }
+                }
+                WatcherTask task = new WatcherTask(watcherItems, boardValidator);
+                for (WatcherItem taskWatcherItem : watcherItems) {
+                    handler.removeMessages(MESSAGE_UPDATE, taskWatcherItem);
+                    tasks.put(taskWatcherItem.key, task);
+                    taskWatcherItem.lastWasAvailable = true;
+                    notifyUpdate(taskWatcherItem, State.BUSY);
+                }
+                queuedTasks.add(task);
+                startQueuedTasks();
             } else {
                 enqueueDelayed(watcherItem);
                 if (watcherItem.lastWasAvailable) {
@@ -430,18 +496,141 @@ public class WatcherService extends Service implements FavoritesStorage.Observer
     }
 
     private void enqueueDelayed(WatcherItem watcherItem) {
-        if (refreshPeriodically) {
-            handler.sendMessageDelayed(handler.obtainMessage(MESSAGE_UPDATE, watcherItem), interval);
+        // Deleted threads are checked only when updated explicitly
+        if (refreshPeriodically && !isDeleted(watcherItem)) {
+            handler.sendMessageDelayed(handler.obtainMessage(MESSAGE_UPDATE, watcherItem),
+                    applyJitter(getInterval(watcherItem)));
+        }
+    }
+
+    private static boolean isDeleted(WatcherItem watcherItem) {
+        return watcherItem.newPostsCount == NEW_POSTS_COUNT_DELETED;
+    }
+
+    private long getInterval(WatcherItem watcherItem) {
+        int shift = watcherItem.intervalShift;
+        if (shift >= 0) {
+            return (long) interval << shift;
+        } else {
+            return Math.max(interval >> -shift, Math.min(interval, MIN_INTERVAL));
+        }
+    }
+
+    private long applyJitter(long delay) {
+        // Spread requests of threads which were updated at the same time
+        return delay + (long) (delay * INTERVAL_JITTER * (2f * random.nextFloat() - 1f));
+    }
+
+    private static void updateIntervalShift(WatcherItem watcherItem, boolean active) {
+        if (active) {
+            watcherItem.intervalShift = Math.max(Math.min(watcherItem.intervalShift, 0) - 1, MIN_INTERVAL_SHIFT);
+        } else {
+            watcherItem.intervalShift = Math.min(watcherItem.intervalShift + 1, MAX_INTERVAL_SHIFT);
+        }
+    }
+
+    private int cycleTasksCount;
+    private long cycleStartTime;
+    private long cycleMaxTaskTime;
+
+    private boolean canStart(WatcherTask task) {
+        String chanName = task.watcherItems.get(0).chanName;
+        int chanCount = 0;
+        for (WatcherTask runningTask : runningTasks) {
+            if (runningTask.watcherItems.get(0).chanName.equals(chanName)) {
+                chanCount++;
+            }
+        }
+        // HttpClient allows only one connection per chan in single connection mode, so don't occupy other threads
+        return chanCount < (AdvancedPreferences.isSingleConnection(chanName) ? 1 : CHAN_CONCURRENCY);
+    }
+
+    private void startQueuedTasks() {
+        // Tasks are started in order they were queued while global and chan limits allow it
+        Iterator<WatcherTask> iterator = queuedTasks.iterator();
+        while (iterator.hasNext() && runningTasks.size() < CONCURRENCY) {
+            WatcherTask task = iterator.next();
+            if (canStart(task)) {
+                iterator.remove();
+                if (cycleTasksCount == 0) {
+                    cycleStartTime = System.currentTimeMillis();
+                    cycleMaxTaskTime = 0L;
+                }
+                cycleTasksCount++;
+                runningTasks.add(task);
+                task.startTime = System.currentTimeMillis();
+                handler.sendMessageDelayed(handler.obtainMessage(MESSAGE_DEADLINE, task), TASK_DEADLINE);
+                EXECUTOR.execute(task);
+            }
         }
     }
 
+    private void onTaskFinished(WatcherTask task) {
+        runningTasks.remove(task);
+        handler.removeMessages(MESSAGE_DEADLINE, task);
+        cycleMaxTaskTime = Math.max(cycleMaxTaskTime, System.currentTimeMillis() - task.startTime);
+        startQueuedTasks();
+        if (runningTasks.isEmpty() && queuedTasks.isEmpty() && cycleTasksCount > 0) {
+            long cycleTime = System.currentTimeMillis() - cycleStartTime;
+            Object[] data = {"watcher cycle", cycleTasksCount, "tasks", cycleTime, "ms",
+                    "longest task", cycleMaxTaskTime, "ms"};
+            // Keep only slow cycles in persistent log
+            if (cycleTime >= SLOW_CYCLE_TIME) {
+                Log.persistent().write(data);
+            } else {
+                Log.write(data);
+            }
+            cycleTasksCount = 0;
+        }
+    }
+
+    private void cancelTask(WatcherTask task) {
+        // Running task will free its thread after request is interrupted
+        task.cancel(false);
+        task.runnable.holder.interrupt();
+        queuedTasks.remove(task);
+    }
+
+    private void cancelWithError(WatcherItem watcherItem, long time, boolean available) {
+        watcherItem.error = true;
+        updateIntervalShift(watcherItem, false);
+        watcherItem.lastUpdateTime = time;
+        watcherItem.lastWasAvailable = available;
+        enqueueDelayed(watcherItem);
+        notifyUpdate(watcherItem, available ? State.ENABLED : State.UNAVAILABLE);
+    }
+
     private void cancelAll() {
         boolean available = isAvailable();
-        for (WatcherTask task : tasks.values()) {
-            task.cancel(false);
-            notifyUpdate(task.watcherItem, available ? State.ENABLED : State.UNAVAILABLE);
+        for (Map.Entry<String, WatcherTask> entry : tasks.entrySet()) {
+            cancelTask(entry.getValue());
+            WatcherItem watcherItem = watching.get(entry.getKey());
+            if (watcherItem != null) {
+                notifyUpdate(watcherItem, available ? State.ENABLED : State.UNAVAILABLE);
+            }
         }
         tasks.clear();
+        if (runningTasks.isEmpty()) {
+            cycleTasksCount = 0;
+        }
+    }
+
+    private static class BoardValidator {
+        public final HttpValidator validator;
+        public final HashSet<String> threadNumbers;
+
+        public BoardValidator(HttpValidator validator, HashSet<String> threadNumbers) {
+            this.validator = validator;
+            this.threadNumbers = threadNumbers;
+        }
+    }
+
+    private static HashSet<String> collectThreadNumbers(ArrayList<WatcherItem> watcherItems) {
+        HashSet<String> threadNumbers = new HashSet<>();
+        for (WatcherItem watcherItem : watcherItems) {
+            threadNumbers.add(watcherItem.threadNumber);
+        }
+        return threadNumbers;
     }
 
     private static class Result {
@@ -457,30 +646,99 @@ public class WatcherService extends Service implements FavoritesStorage.Observer
         }
     }
 
-    private class WatcherRunnable implements Callable<Result> {
-        private final HttpHolder holder = new HttpHolder();
-        private final Result result;
+    private class WatcherRunnable implements Callable<ArrayList<Result>> {
+        public final HttpHolder holder = new HttpHolder();
+        private final ArrayList<Result> results;
+        private final HttpValidator boardValidator;
 
-        public WatcherRunnable(WatcherItem watcherItem) {
-            result = new Result(watcherItem);
+        public HttpValidator newBoardValidator;
+
+        public WatcherRunnable(ArrayList<WatcherItem> watcherItems, HttpValidator boardValidator) {
+            results = new ArrayList<>(watcherItems.size());
+            for (WatcherItem watcherItem : watcherItems) {
+                results.add(new Result(watcherItem));
+            }
+            this.boardValidator = boardValidator;
         }
 
         @Override
-        public Result call() {
+        public ArrayList<Result> call() {
+            boolean[] checked = new boolean[results.size()];
+            if (results.size() > 1) {
+                readPostsCounts(checked);
+            }
+            for (int i = 0; i < results.size(); i++) {
+                if (!checked[i]) {
+                    readPostsCount(results.get(i));
+                }
+            }
+            return results;
+        }
+
+        private void readPostsCounts(boolean[] checked) {
+            WatcherItem firstWatcherItem = results.get(0).watcherItem;
+            String[] threadNumbers = new String[results.size()];
+            for (int i = 0; i < threadNumbers.length; i++) {
+                threadNumbers[i] = results.get(i).watcherItem.threadNumber;
+            }
+            try {
+                ChanPerformer performer = ChanPerformer.get(firstWatcherItem.chanName);
+                ChanPerformer.ReadPostsCountsResult result = performer.safe()
+                        .onReadPostsCounts(new ChanPerformer.ReadPostsCountsData(firstWatcherItem.boardName,
+                                threadNumbers, 5000, 5000, holder, boardValidator));
+                int[] postsCounts = result != null ? result.postsCounts : null;
+                if (postsCounts != null) {
+                    for (int i = 0; i < Math.min(postsCounts.length, checked.length); i++) {
+                        if (postsCounts[i] >= 0) {
+                            Result itemResult = results.get(i);
+                            itemResult.newPostsCount = postsCounts[i];
+                            // Keep validator of single thread request, it's still valid
+                            itemResult.validator = itemResult.watcherItem.validator;
+                            checked[i] = true;
+                        }
+                    }
+                }
+                HttpValidator validator = result != null ? result.validator : null;
+                if (validator == null) {
+                    validator = holder.getValidator();
+                }
+                newBoardValidator = validator;
+            } catch (HttpException e) {
+                int responseCode = e.getResponseCode();
+                if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    newBoardValidator = boardValidator;
+                    for (int i = 0; i < checked.length; i++) {
+                        results.get(i).notModified = true;
+                        checked[i] = true;
+                    }
+                } else if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                    // Interrupt on server error (most likely chan is down)
+                    for (int i = 0; i < checked.length; i++) {
+                        results.get(i).interrupt = true;
+                        results.get(i).error = true;
+                        checked[i] = true;
+                    }
+                }
+            } catch (ExtensionException | InvalidResponseException e) {
+                e.getErrorItemAndHandle();
+            } finally {
+                holder.cleanup();
+            }
+        }
+
+        private void readPostsCount(Result result) {
             WatcherItem watcherItem = result.watcherItem;
-            // SystemClock.sleep(500);
-            // Fixed in the Dvach extension.
             try {
                 ChanPerformer performer = ChanPerformer.get(watcherItem.chanName);
-                ChanPerformer.ReadPostsCountResult result = performer.safe()
+                ChanPerformer.ReadPostsCountResult readResult = performer.safe()
                         .onReadPostsCount(new ChanPerformer.ReadPostsCountData(watcherItem.boardName,
                                 watcherItem.threadNumber, 5000, 5000, holder, watcherItem.validator));
-                this.result.newPostsCount = result != null ? result.postsCount : 0;
-                HttpValidator validator = result != null ? result.validator : null;
+                result.newPostsCount = readResult != null ? readResult.postsCount : 0;
+                HttpValidator validator = readResult != null ? readResult.validator : null;
                 if (validator == null) {
                     validator = holder.getValidator();
                 }
-                this.result.validator = validator;
+                result.validator = validator;
             } catch (HttpException e) {
                 int responseCode = e.getResponseCode();
                 if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
@@ -502,25 +760,36 @@ public class WatcherService extends Service implements FavoritesStorage.Observer
             } finally {
                 holder.cleanup();
             }
-            return result;
         }
     }
 
-    private class WatcherTask extends FutureTask<Result> {
-        public final WatcherItem watcherItem;
+    private class WatcherTask extends FutureTask<ArrayList<Result>> {
+        public final ArrayList<WatcherItem> watcherItems;
+        public final WatcherRunnable runnable;
 
-        public WatcherTask(WatcherItem watcherItem) {
-            super(new WatcherRunnable(watcherItem));
-            this.watcherItem = watcherItem;
+        public ArrayList<Result> results;
+        public long startTime;
+
+        public WatcherTask(ArrayList<WatcherItem> watcherItems, HttpValidator boardValidator) {
+            this(new WatcherRunnable(watcherItems, boardValidator), watcherItems);
+        }
+
+        private WatcherTask(WatcherRunnable runnable, ArrayList<WatcherItem> watcherItems) {
+            super(runnable);
+            this.watcherItems = watcherItems;
+            this.runnable = runnable;
         }
 
         @Override
-        protected void done() {
+        public void run() {
+            super.run();
             try {
-                handler.obtainMessage(MESSAGE_RESULT, get()).sendToTarget();
+                results = get();
             } catch (Exception e) {
                 // Task cancelled
             }
+            // Result is sent even if task was cancelled, so the thread is released in scheduler
+            handler.obtainMessage(MESSAGE_RESULT, this).sendToTarget();
         }
     }
 
@@ -537,59 +806,97 @@ public class WatcherService extends Service implements FavoritesStorage.Observer
                 return true;
             }
             case MESSAGE_RESULT: {
-                Result result = (Result) msg.obj;
-                WatcherItem watcherItem = result.watcherItem;
-                tasks.remove(watcherItem.key);
-                long time = System.currentTimeMillis();
-                boolean available = isAvailable();
-                watcherItem.lastUpdateTime = time;
-                watcherItem.lastWasAvailable = available;
-                if (result.interrupt) {
-                    String chanName = result.watcherItem.chanName;
-                    watcherItem.error = true;
-                    Iterator<WatcherTask> iterator = tasks.values().iterator();
-                    while (iterator.hasNext()) {
-                        WatcherTask task = iterator.next();
-                        WatcherItem cancelItem = task.watcherItem;
-                        if (cancelItem.chanName.equals(chanName)) {
-                            task.cancel(false);
-                            cancelItem.error = true;
-                            cancelItem.lastUpdateTime = time;
-                            cancelItem.lastWasAvailable = available;
-                            enqueueDelayed(cancelItem);
-                            notifyUpdate(cancelItem, available ? State.ENABLED : State.UNAVAILABLE);
-                            iterator.remove();
-                        }
+                WatcherTask task = (WatcherTask) msg.obj;
+                onTaskFinished(task);
+                if (task.results == null) {
+                    return true;
+                }
+                if (task.watcherItems.size() > 1) {
+                    WatcherItem watcherItem = task.watcherItems.get(0);
+                    String boardKey = makeKey(watcherItem.chanName, watcherItem.boardName, null);
+                    if (task.runnable.newBoardValidator != null) {
+                        boardValidators.put(boardKey, new BoardValidator(task.runnable.newBoardValidator,
+                                collectThreadNumbers(task.watcherItems)));
+                    } else {
+                        boardValidators.remove(boardKey);
                     }
-                } else {
-                    watcherItem.error = result.error;
-                    if (!result.notModified) {
-                        int newPostsCount = result.newPostsCount;
-                        if (newPostsCount >= NEW_POSTS_COUNT_DELETED) {
-                            if (newPostsCount > watcherItem.newPostsCount && watcherItem.newPostsCount > 1
-                                    || newPostsCount > watcherItem.postsCount) {
-                                watcherItem.hasNewPosts = true;
-                            }
-                            watcherItem.newPostsCount = newPostsCount;
-                            watcherItem.validator = result.validator;
-                            FavoritesStorage.getInstance().modifyWatcherData(watcherItem.chanName,
-                                    watcherItem.boardName, watcherItem.threadNumber, watcherItem.newPostsCount,
-                                    watcherItem.hasNewPosts, watcherItem.validator);
-                        }
+                }
+                for (Result result : task.results) {
+                    // Thread could be removed or handled after interruption
+                    if (tasks.get(result.watcherItem.key) == task) {
+                        onResult(result);
                     }
                 }
-                enqueueDelayed(watcherItem);
-                notifyUpdate(watcherItem, available ? State.ENABLED : State.UNAVAILABLE);
-                if (watcherItem.newPostsCount == NEW_POSTS_COUNT_DELETED && Preferences.isWatcherAutoDisable()) {
-                    FavoritesStorage.getInstance().toggleWatcher(watcherItem.chanName,
-                            watcherItem.boardName, watcherItem.threadNumber);
+                return true;
+            }
+            case MESSAGE_DEADLINE: {
+                // Request took too long, so check these threads later instead of holding the thread
+                WatcherTask task = (WatcherTask) msg.obj;
+                long time = System.currentTimeMillis();
+                boolean available = isAvailable();
+                for (WatcherItem watcherItem : task.watcherItems) {
+                    if (tasks.get(watcherItem.key) == task) {
+                        tasks.remove(watcherItem.key);
+                        cancelWithError(watcherItem, time, available);
+                    }
                 }
+                cancelTask(task);
                 return true;
             }
         }
         return false;
     }
 
+    private void onResult(Result result) {
+        WatcherItem watcherItem = result.watcherItem;
+        tasks.remove(watcherItem.key);
+        long time = System.currentTimeMillis();
+        boolean available = isAvailable();
+        watcherItem.lastUpdateTime = time;
+        watcherItem.lastWasAvailable = available;
+        if (result.interrupt) {
+            String chanName = result.watcherItem.chanName;
+            watcherItem.error = true;
+            updateIntervalShift(watcherItem, false);
+            Iterator<Map.Entry<String, WatcherTask>> iterator = tasks.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, WatcherTask> entry = iterator.next();
+                WatcherItem cancelItem = watching.get(entry.getKey());
+                if (cancelItem != null && cancelItem.chanName.equals(chanName)) {
+                    cancelTask(entry.getValue());
+                    iterator.remove();
+                    cancelWithError(cancelItem, time, available);
+                }
+            }
+        } else {
+            watcherItem.error = result.error;
+            boolean active = false;
+            if (!result.notModified) {
+                int newPostsCount = result.newPostsCount;
+                if (newPostsCount >= NEW_POSTS_COUNT_DELETED) {
+                    active = newPostsCount > watcherItem.newPostsCount;
+                    if (newPostsCount > watcherItem.newPostsCount && watcherItem.newPostsCount > 1
+                            || newPostsCount > watcherItem.postsCount) {
+                        watcherItem.hasNewPosts = true;
+                    }
+                    watcherItem.newPostsCount = newPostsCount;
+                    watcherItem.validator = result.validator;
+                    watcherItem.checked = true;
+                    FavoritesStorage.getInstance().modifyWatcherData(watcherItem.chanName,
+                            watcherItem.boardName, watcherItem.threadNumber, watcherItem.newPostsCount,
+                            watcherItem.hasNewPosts, watcherItem.validator);
+                }
+            }
+            updateIntervalShift(watcherItem, active);
+        }
+        enqueueDelayed(watcherItem);
+        notifyUpdate(watcherItem, available ? State.ENABLED : State.UNAVAILABLE);
+        if (watcherItem.newPostsCount == NEW_POSTS_COUNT_DELETED && Preferences.isWatcherAutoDisable()) {
+            FavoritesStorage.getInstance().toggleWatcher(watcherItem.chanName,
+                    watcherItem.boardName, watcherItem.threadNumber);
+        }
+    }
+
     public static final class Client implements ServiceConnection {
         private final Callback callback;
         private Binder binder;
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2014-2017 Fukurou Mishiranu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.content.storage;
+
+import com.mishiranu.dashchan.text.AhoCorasickMatcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Autohide rules applicable to posts of a single thread. Literal rules are matched in a single pass
+ * for every field, other rules are matched only if combined expression of all these rules matches.
+ * First matching rule in storage order is returned, same as checking the rules one by one.
+ */
+public class AutohideRuleSet {
+    public static final int FIELD_SUBJECT = 0;
+    public static final int FIELD_COMMENT = 1;
+    public static final int FIELD_NAME = 2;
+    private static final int FIELDS_COUNT = 3;
+
+    private static final String REGULAR_EXPRESSION_CHARS = "\\^$.|?*+()[]{}";
+
+    private final AutohideStorage.AutohideItem[] autohideItems;
+    private final boolean[] literals;
+    private final FieldRules[] fieldRules = new FieldRules[FIELDS_COUNT];
+
+    public static class Match {
+        public final AutohideStorage.AutohideItem autohideItem;
+        public final int field;
+        public final String result;
+
+        private Match(AutohideStorage.AutohideItem autohideItem, int field, String result) {
+            this.autohideItem = autohideItem;
+            this.field = field;
+            this.result = result;
+        }
+    }
+
+    private static class FieldRules {
+        public final AhoCorasickMatcher literalsMatcher;
+        public final int[] literalsIndexes;
+        public final Pattern combinedPattern;
+        public final boolean[] combined;
+
+        public FieldRules(AhoCorasickMatcher literalsMatcher, int[] literalsIndexes, Pattern combinedPattern,
+                          boolean[] combined) {
+            this.literalsMatcher = literalsMatcher;
+            this.literalsIndexes = literalsIndexes;
+            this.combinedPattern = combinedPattern;
+            this.combined = combined;
+        }
+    }
+
+    AutohideRuleSet(List<AutohideStorage.AutohideItem> autohideItems) {
+        int count = autohideItems.size();
+        this.autohideItems = autohideItems.toArray(new AutohideStorage.AutohideItem[count]);
+        literals = new boolean[count];
+        boolean[] valid = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            String value = this.autohideItems[i].value;
+            literals[i] = isLiteral(value);
+            if (!literals[i]) {
+                try {
+                    AutohideStorage.AutohideItem.makePattern(value);
+                    valid[i] = true;
+                } catch (Exception e) {
+                    // Invalid pattern never matches
+                }
+            }
+        }
+        for (int field = 0; field < FIELDS_COUNT; field++) {
+            ArrayList<String> literalValues = new ArrayList<>();
+            ArrayList<Integer> literalsIndexes = new ArrayList<>();
+            StringBuilder combinedBuilder = new StringBuilder();
+            boolean[] combined = new boolean[count];
+            boolean hasRules = false;
+            for (int i = 0; i < count; i++) {
+                AutohideStorage.AutohideItem autohideItem = this.autohideItems[i];
+                if (hasField(autohideItem, field)) {
+                    hasRules = true;
+                    if (literals[i]) {
+                        literalValues.add(autohideItem.value);
+                        literalsIndexes.add(i);
+                    } else if (valid[i] && isCombinable(autohideItem.value)) {
+                        if (combinedBuilder.length() > 0) {
+                            combinedBuilder.append('|');
+                        }
+                        combinedBuilder.append("(?:").append(autohideItem.value).append(')');
+                        combined[i] = true;
+                    }
+                }
+            }
+            if (hasRules) {
+                AhoCorasickMatcher literalsMatcher = null;
+                int[] literalsIndexesArray = null;
+                if (!literalValues.isEmpty()) {
+                    literalsMatcher = new AhoCorasickMatcher(literalValues.toArray(new String[literalValues.size()]));
+                    literalsIndexesArray = new int[literalsIndexes.size()];
+                    for (int i = 0; i < literalsIndexesArray.length; i++) {
+                        literalsIndexesArray[i] = literalsIndexes.get(i);
+                    }
+                }
+                Pattern combinedPattern = null;
+                if (combinedBuilder.length() > 0) {
+                    try {
+                        combinedPattern = AutohideStorage.AutohideItem.makePattern(combinedBuilder.toString());
+                    } catch (Exception e) {
+                        // Check every rule separately
+                        combined = new boolean[count];
+                    }
+                }
+                fieldRules[field] = new FieldRules(literalsMatcher, literalsIndexesArray, combinedPattern, combined);
+            }
+        }
+    }
+
+    private static boolean hasField(AutohideStorage.AutohideItem autohideItem, int field) {
+        switch (field) {
+            case FIELD_SUBJECT: {
+                return autohideItem.optionSubject;
+            }
+            case FIELD_COMMENT: {
+                return autohideItem.optionComment;
+            }
+            case FIELD_NAME: {
+                return autohideItem.optionName;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isLiteral(String value) {
+        if (value.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (REGULAR_EXPRESSION_CHARS.indexOf(value.charAt(i)) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isCombinable(String value) {
+        // Back references, quotation and inline flags may change their meaning inside alternation
+        if (value.contains("\\Q") || value.contains("\\k") || value.contains("(?")) {
+            return false;
+        }
+        for (int i = value.indexOf('\\'); i >= 0 && i < value.length() - 1; i = value.indexOf('\\', i + 2)) {
+            char c = value.charAt(i + 1);
+            if (c >= '1' && c <= '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return autohideItems.length == 0;
+    }
+
+    public boolean hasField(int field) {
+        return fieldRules[field] != null;
+    }
+
+    /**
+     * Find the first matching rule. {@code texts} are indexed by field, text may be null if there are
+     * no rules for the field.
+     */
+    public Match find(boolean originalPost, boolean sage, String[] texts) {
+        String[][] literalResults = new String[FIELDS_COUNT][];
+        boolean[] combinedMatches = new boolean[FIELDS_COUNT];
+        for (int field = 0; field < FIELDS_COUNT; field++) {
+            FieldRules fieldRules = this.fieldRules[field];
+            String text = texts[field];
+            if (fieldRules != null && text != null) {
+                if (fieldRules.literalsMatcher != null) {
+                    int[] starts = new int[fieldRules.literalsMatcher.getCount()];
+                    if (fieldRules.literalsMatcher.find(text, starts) > 0) {
+                        String[] results = new String[autohideItems.length];
+                        for (int i = 0; i < starts.length; i++) {
+                            if (starts[i] >= 0) {
+                                int index = fieldRules.literalsIndexes[i];
+                                results[index] = text.substring(starts[i],
+                                        starts[i] + autohideItems[index].value.length());
+                            }
+                        }
+                        literalResults[field] = results;
+                    }
+                }
+                if (fieldRules.combinedPattern != null) {
+                    try {
+                        combinedMatches[field] = fieldRules.combinedPattern.matcher(text).find();
+                    } catch (Exception e) {
+                        combinedMatches[field] = true;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < autohideItems.length; i++) {
+            AutohideStorage.AutohideItem autohideItem = autohideItems[i];
+            if ((!autohideItem.optionOriginalPost || originalPost) && (!autohideItem.optionSage || sage)) {
+                for (int field = 0; field < FIELDS_COUNT; field++) {
+                    String text = texts[field];
+                    if (text != null && hasField(autohideItem, field)) {
+                        String result;
+                        if (literals[i]) {
+                            result = literalResults[field] != null ? literalResults[field][i] : null;
+                        } else if (fieldRules[field].combined[i] && !combinedMatches[field]) {
+                            result = null;
+                        } else {
+                            result = autohideItem.find(text);
+                        }
+                        if (result != null) {
+                            return new Match(autohideItem, field, result);
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
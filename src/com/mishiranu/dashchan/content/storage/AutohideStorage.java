@@ -25,6 +25,7 @@ import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -52,6 +53,10 @@ public class AutohideStorage extends StorageManager.Storage {
 
     private final ArrayList<AutohideItem> autohideItems = new ArrayList<>();
 
+    // Compiled rules by chan, board and thread, thread is specified only if there are rules for this thread
+    private final HashMap<String, AutohideRuleSet> ruleSets = new HashMap<>();
+    private HashSet<String> ruleThreadNumbers;
+
     private AutohideStorage() {
         super("autohide", 1000, 10000);
         JSONObject jsonObject = read();
@@ -94,6 +99,45 @@ public class AutohideStorage extends StorageManager.Storage {
         return autohideItems;
     }
 
+    public AutohideRuleSet getRuleSet(String chanName, String boardName, String originalPostNumber) {
+        synchronized (ruleSets) {
+            if (ruleThreadNumbers == null) {
+                ruleThreadNumbers = new HashSet<>();
+                for (AutohideItem autohideItem : autohideItems) {
+                    if (!StringUtils.isEmpty(autohideItem.threadNumber)) {
+                        ruleThreadNumbers.add(autohideItem.threadNumber);
+                    }
+                }
+            }
+            String threadNumber = ruleThreadNumbers.contains(originalPostNumber) ? originalPostNumber : null;
+            String key = chanName + "/" + boardName + "/" + threadNumber;
+            AutohideRuleSet ruleSet = ruleSets.get(key);
+            if (ruleSet == null) {
+                ArrayList<AutohideItem> autohideItems = new ArrayList<>();
+                for (AutohideItem autohideItem : this.autohideItems) {
+                    // AND selection (only if chan, board and thread matches to rule)
+                    if ((autohideItem.chanNames == null || autohideItem.chanNames.contains(chanName))
+                            && (StringUtils.isEmpty(autohideItem.boardName) || boardName == null
+                            || autohideItem.boardName.equals(boardName))
+                            && (StringUtils.isEmpty(autohideItem.threadNumber) || autohideItem.boardName != null
+                            && autohideItem.threadNumber.equals(originalPostNumber))) {
+                        autohideItems.add(autohideItem);
+                    }
+                }
+                ruleSet = new AutohideRuleSet(autohideItems);
+                ruleSets.put(key, ruleSet);
+            }
+            return ruleSet;
+        }
+    }
+
+    private void invalidateRuleSets() {
+        synchronized (ruleSets) {
+            ruleSets.clear();
+            ruleThreadNumbers = null;
+        }
+    }
+
     @Override
     public Object onClone() {
         ArrayList<AutohideItem> autohideItems = new ArrayList<>(this.autohideItems.size());
@@ -137,16 +181,19 @@ public class AutohideStorage extends StorageManager.Storage {
 
     public void add(AutohideItem autohideItem) {
         autohideItems.add(autohideItem);
+        invalidateRuleSets();
         serialize();
     }
 
     public void update(int index, AutohideItem autohideItem) {
         autohideItems.set(index, autohideItem);
+        invalidateRuleSets();
         serialize();
     }
 
     public void delete(int index) {
         autohideItems.remove(index);
+        invalidateRuleSets();
         serialize();
     }
 
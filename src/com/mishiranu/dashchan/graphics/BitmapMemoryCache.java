@@ -0,0 +1,176 @@
+/*
+ * Copyright 2014-2017 Fukurou Mishiranu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.graphics;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import com.mishiranu.dashchan.C;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * LRU bitmap cache bounded by bitmaps allocation size. Keys are distributed between several independently
+ * locked segments, so concurrent loaders don't wait for each other or for the UI thread.
+ */
+public class BitmapMemoryCache {
+    private static final int SEGMENTS_COUNT = 8;
+
+    private final Segment[] segments = new Segment[SEGMENTS_COUNT];
+    private final EvictionListener listener;
+
+    public BitmapMemoryCache(long maxSize, EvictionListener listener) {
+        this.listener = listener;
+        long segmentMaxSize = Math.max(maxSize / SEGMENTS_COUNT, 1);
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(segmentMaxSize);
+        }
+    }
+
+    private Segment getSegment(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return segments[(hash & 0x7fffffff) % SEGMENTS_COUNT];
+    }
+
+    public boolean contains(String key) {
+        Segment segment = getSegment(key);
+        synchronized (segment) {
+            return segment.map.containsKey(key);
+        }
+    }
+
+    public Bitmap get(String key) {
+        Segment segment = getSegment(key);
+        synchronized (segment) {
+            return segment.map.get(key);
+        }
+    }
+
+    /**
+     * Put bitmap to cache if there is no bitmap with the same key yet.
+     *
+     * @return True if bitmap was added.
+     */
+    public boolean putIfAbsent(String key, Bitmap bitmap) {
+        Segment segment = getSegment(key);
+        long size = getSize(bitmap);
+        if (size > segment.maxSize) {
+            return false;
+        }
+        ArrayList<Bitmap> evicted = null;
+        synchronized (segment) {
+            if (segment.map.containsKey(key)) {
+                return false;
+            }
+            segment.map.put(key, bitmap);
+            segment.size += size;
+            if (segment.size > segment.maxSize) {
+                evicted = segment.trimToSize(segment.maxSize);
+            }
+        }
+        notifyEvicted(evicted);
+        return true;
+    }
+
+    public Bitmap remove(String key) {
+        Segment segment = getSegment(key);
+        Bitmap bitmap;
+        synchronized (segment) {
+            bitmap = segment.map.remove(key);
+            if (bitmap != null) {
+                segment.size -= getSize(bitmap);
+            }
+        }
+        if (bitmap != null && listener != null) {
+            listener.onEvicted(bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Remove least recently used bitmaps until cache takes no more than {@code fraction} of its maximum size.
+     */
+    public void trim(float fraction) {
+        for (Segment segment : segments) {
+            ArrayList<Bitmap> evicted;
+            synchronized (segment) {
+                evicted = segment.trimToSize((long) (segment.maxSize * fraction));
+            }
+            notifyEvicted(evicted);
+        }
+    }
+
+    public void clear() {
+        trim(0f);
+    }
+
+    public long getSize() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    private void notifyEvicted(ArrayList<Bitmap> evicted) {
+        if (evicted != null && listener != null) {
+            for (Bitmap bitmap : evicted) {
+                listener.onEvicted(bitmap);
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public static long getSize(Bitmap bitmap) {
+        return C.API_KITKAT ? bitmap.getAllocationByteCount() : bitmap.getByteCount();
+    }
+
+    private static class Segment {
+        public final LinkedHashMap<String, Bitmap> map = new LinkedHashMap<>(0, 0.75f, true);
+        public final long maxSize;
+        public long size;
+
+        public Segment(long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public ArrayList<Bitmap> trimToSize(long maxSize) {
+            ArrayList<Bitmap> evicted = null;
+            Iterator<Bitmap> iterator = map.values().iterator();
+            while (size > maxSize && iterator.hasNext()) {
+                Bitmap bitmap = iterator.next();
+                iterator.remove();
+                size -= getSize(bitmap);
+                if (evicted == null) {
+                    evicted = new ArrayList<>();
+                }
+                evicted.add(bitmap);
+            }
+            return evicted;
+        }
+    }
+
+    public interface EvictionListener {
+        public void onEvicted(Bitmap bitmap);
+    }
+}
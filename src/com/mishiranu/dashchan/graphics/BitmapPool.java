@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014-2017 Fukurou Mishiranu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.graphics;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.mishiranu.dashchan.C;
+import com.mishiranu.dashchan.content.MainApplication;
+import com.mishiranu.dashchan.util.Log;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pool of mutable bitmaps which are no longer used, grouped by allocation size. Bitmaps are passed to decoders
+ * with {@link BitmapFactory.Options#inBitmap} to avoid new allocations.
+ *
+ * <p>Only bitmaps which are guaranteed not to be displayed anymore may be put to pool.</p>
+ */
+public class BitmapPool {
+    private static final BitmapPool INSTANCE = new BitmapPool();
+
+    public static BitmapPool getInstance() {
+        return INSTANCE;
+    }
+
+    private final TreeMap<Long, ArrayList<Bitmap>> buckets = new TreeMap<>();
+    private final long maxSize;
+    private long size;
+
+    private int hits;
+    private int misses;
+    private long reusedSize;
+
+    private BitmapPool() {
+        MainApplication application = MainApplication.getInstance();
+        maxSize = application.getMemoryClass() * 1024L * 1024L / (application.isLowRam() ? 32 : 16);
+    }
+
+    /**
+     * Return bitmap to pool. Bitmap will be recycled if it can't be reused.
+     */
+    public void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        long bitmapSize = BitmapMemoryCache.getSize(bitmap);
+        if (!bitmap.isMutable() || bitmapSize > maxSize / 2) {
+            bitmap.recycle();
+            return;
+        }
+        synchronized (this) {
+            ArrayList<Bitmap> bitmaps = buckets.get(bitmapSize);
+            if (bitmaps == null) {
+                bitmaps = new ArrayList<>();
+                buckets.put(bitmapSize, bitmaps);
+            } else if (bitmaps.contains(bitmap)) {
+                return;
+            }
+            bitmaps.add(bitmap);
+            size += bitmapSize;
+            trimToSize(maxSize);
+        }
+    }
+
+    /**
+     * Take bitmap from pool.
+     *
+     * @param exactSize True if bitmap must have exactly the same dimensions and config, otherwise any bitmap
+     * which is large enough can be returned. Exact size is always required before KitKat.
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config, boolean exactSize) {
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        if (config == null) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+        exactSize |= !C.API_KITKAT;
+        long requiredSize = (long) width * height * getBytesPerPixel(config);
+        synchronized (this) {
+            Bitmap bitmap = null;
+            if (exactSize) {
+                ArrayList<Bitmap> bitmaps = buckets.get(requiredSize);
+                if (bitmaps != null) {
+                    for (int i = bitmaps.size() - 1; i >= 0; i--) {
+                        Bitmap candidate = bitmaps.get(i);
+                        if (candidate.getWidth() == width && candidate.getHeight() == height
+                                && candidate.getConfig() == config) {
+                            bitmap = candidate;
+                            break;
+                        }
+                    }
+                }
+            } else {
+                Map.Entry<Long, ArrayList<Bitmap>> entry = buckets.ceilingEntry(requiredSize);
+                // Don't waste bitmaps which are much larger than required
+                if (entry != null && entry.getKey() <= requiredSize * 2) {
+                    ArrayList<Bitmap> bitmaps = entry.getValue();
+                    bitmap = bitmaps.get(bitmaps.size() - 1);
+                }
+            }
+            if (bitmap != null) {
+                remove(bitmap);
+                hits++;
+                reusedSize += BitmapMemoryCache.getSize(bitmap);
+            } else {
+                misses++;
+            }
+            return bitmap;
+        }
+    }
+
+    /**
+     * Prepare options to decode mutable bitmap into pooled bitmap if possible.
+     * Options must contain {@code outWidth} and {@code outHeight} of the image.
+     */
+    public void prepareOptions(BitmapFactory.Options options) {
+        options.inMutable = true;
+        if (!C.API_KITKAT && options.inSampleSize > 1) {
+            return;
+        }
+        int inSampleSize = Math.max(options.inSampleSize, 1);
+        int width = (options.outWidth + inSampleSize - 1) / inSampleSize;
+        int height = (options.outHeight + inSampleSize - 1) / inSampleSize;
+        options.inBitmap = get(width, height, options.inPreferredConfig, false);
+    }
+
+    /**
+     * Decode byte array reusing pooled bitmap when possible.
+     */
+    public Bitmap decodeByteArray(byte[] bytes, int offset, int length) {
+        return decode(options -> BitmapFactory.decodeByteArray(bytes, offset, length, options));
+    }
+
+    /**
+     * Decode file reusing pooled bitmap when possible.
+     */
+    public Bitmap decodeFile(String path) {
+        return decode(options -> BitmapFactory.decodeFile(path, options));
+    }
+
+    private Bitmap decode(Decoder decoder) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decoder.decode(options);
+        options.inJustDecodeBounds = false;
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        prepareOptions(options);
+        return decode(decoder, options);
+    }
+
+    /**
+     * Decode bitmap with options prepared by {@link #prepareOptions(BitmapFactory.Options)}. Decoding is
+     * repeated without pooled bitmap if it is not suitable for this image.
+     */
+    public Bitmap decode(Decoder decoder, BitmapFactory.Options options) {
+        Bitmap inBitmap = options.inBitmap;
+        Bitmap bitmap;
+        try {
+            bitmap = decoder.decode(options);
+        } catch (IllegalArgumentException e) {
+            if (inBitmap == null) {
+                throw e;
+            }
+            options.inBitmap = null;
+            put(inBitmap);
+            return decoder.decode(options);
+        }
+        if (inBitmap != null && bitmap != inBitmap) {
+            options.inBitmap = null;
+            put(inBitmap);
+        }
+        return bitmap;
+    }
+
+    public void trim(float fraction) {
+        synchronized (this) {
+            trimToSize((long) (maxSize * fraction));
+            Log.persistent().write("BitmapPool", "hits", hits, "misses", misses, "reused", reusedSize);
+        }
+    }
+
+    private void remove(Bitmap bitmap) {
+        long bitmapSize = BitmapMemoryCache.getSize(bitmap);
+        ArrayList<Bitmap> bitmaps = buckets.get(bitmapSize);
+        if (bitmaps != null && bitmaps.remove(bitmap)) {
+            size -= bitmapSize;
+            if (bitmaps.isEmpty()) {
+                buckets.remove(bitmapSize);
+            }
+        }
+    }
+
+    private void trimToSize(long maxSize) {
+        while (size > maxSize && !buckets.isEmpty()) {
+            // Largest bitmaps are the least likely to be reused
+            Map.Entry<Long, ArrayList<Bitmap>> entry = buckets.lastEntry();
+            ArrayList<Bitmap> bitmaps = entry.getValue();
+            Bitmap bitmap = bitmaps.remove(0);
+            size -= entry.getKey();
+            if (bitmaps.isEmpty()) {
+                buckets.remove(entry.getKey());
+            }
+            bitmap.recycle();
+        }
+    }
+
+    public interface Decoder {
+        public Bitmap decode(BitmapFactory.Options options);
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8: {
+                return 1;
+            }
+            case RGB_565:
+            case ARGB_4444: {
+                return 2;
+            }
+            default: {
+                return 4;
+            }
+        }
+    }
+}
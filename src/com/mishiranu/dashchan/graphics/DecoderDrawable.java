@@ -52,7 +52,8 @@ public class DecoderDrawable extends Drawable {
     private final BitmapRegionDecoder decoder;
 
     private final LinkedHashMap<Integer, DecodeTask> tasks = new LinkedHashMap<>();
-    private final LruCache<Integer, Bitmap> fragments = new LruCache<>(MIN_MAX_ENTRIES, (k, v) -> v.recycle());
+    private final LruCache<Integer, Bitmap> fragments = new LruCache<>(MIN_MAX_ENTRIES,
+            (k, v) -> releaseFragment(v));
 
     private final int rotation;
     private final int width;
@@ -199,12 +200,15 @@ public class DecoderDrawable extends Drawable {
             task.cancel();
         }
         tasks.clear();
-        for (Bitmap fragment : fragments.values()) {
-            fragment.recycle();
-        }
         fragments.clear();
     }
 
+    private static void releaseFragment(Bitmap fragment) {
+        if (fragment != NULL_BITMAP) {
+            BitmapPool.getInstance().put(fragment);
+        }
+    }
+
     public void setEnabled(boolean enabled) {
         if (this.enabled != enabled) {
             this.enabled = enabled;
@@ -227,7 +231,7 @@ public class DecoderDrawable extends Drawable {
             }
         }
         if (recycleScaled) {
-            scaledBitmap.recycle();
+            BitmapPool.getInstance().put(scaledBitmap);
         }
     }
 
@@ -239,6 +243,7 @@ public class DecoderDrawable extends Drawable {
         private final int key;
         private final Rect rect;
         private final BitmapFactory.Options options = new BitmapFactory.Options();
+        private final boolean fullSize;
 
         private boolean error = false;
 
@@ -261,19 +266,27 @@ public class DecoderDrawable extends Drawable {
                 rect.set((int) rectF.left, (int) rectF.top, (int) rectF.right, (int) rectF.bottom);
             }
             options.inSampleSize = scale;
+            options.inMutable = true;
+            fullSize = rect.width() == FRAGMENT_SIZE * scale && rect.height() == FRAGMENT_SIZE * scale;
         }
 
         @Override
         protected Bitmap doInBackground(Void... params) {
             try {
                 synchronized (DecoderDrawable.this) {
-                    Bitmap bitmap = decoder.decodeRegion(rect, options);
+                    BitmapPool bitmapPool = BitmapPool.getInstance();
+                    if (fullSize) {
+                        // Region decoder draws into pooled bitmap without resizing it, so only exact size is allowed
+                        options.inBitmap = bitmapPool.get(FRAGMENT_SIZE, FRAGMENT_SIZE, null, true);
+                    }
+                    Bitmap bitmap = bitmapPool.decode(decodeOptions -> decoder
+                            .decodeRegion(rect, decodeOptions), options);
                     if (bitmap != null && rotation != 0) {
                         Matrix matrix = new Matrix();
                         matrix.setRotate(-rotation);
                         Bitmap newBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(),
                                 matrix, false);
-                        bitmap.recycle();
+                        bitmapPool.put(bitmap);
                         bitmap = newBitmap;
                     }
                     return bitmap;
@@ -296,7 +309,7 @@ public class DecoderDrawable extends Drawable {
         @Override
         protected void onCancelled(Bitmap result) {
             if (result != null) {
-                result.recycle();
+                BitmapPool.getInstance().put(result);
             }
         }
 
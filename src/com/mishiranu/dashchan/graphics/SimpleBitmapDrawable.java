@@ -69,6 +69,6 @@ public class SimpleBitmapDrawable extends Drawable {
     }
 
     public void recycle() {
-        bitmap.recycle();
+        BitmapPool.getInstance().put(bitmap);
     }
 }
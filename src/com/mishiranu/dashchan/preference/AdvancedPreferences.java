@@ -42,10 +42,16 @@ public class AdvancedPreferences {
     private static final HashSet<String> SINGLE_CONNECTIONS = new HashSet<>();
     private static final String GOOGLE_COOKIE;
     private static final int TAB_SIZE;
+    private static final int DOWNLOAD_CONCURRENCY;
+    private static final int DOWNLOAD_HOST_CONCURRENCY;
+    private static final int THUMBNAILS_QUALITY;
 
     static {
         CookieBuilder googleCookieBuilder = null;
         int tabSize = 0;
+        int downloadConcurrency = 0;
+        int downloadHostConcurrency = 0;
+        int thumbnailsQuality = 0;
         File file = MainApplication.getInstance().getExternalCacheDir();
         if (file != null) {
             file = new File(file.getParentFile(), "files/advanced.json");
@@ -105,6 +111,9 @@ public class AdvancedPreferences {
                             }
                         }
                         tabSize = jsonObject.optInt("tabSize");
+                        downloadConcurrency = jsonObject.optInt("downloadConcurrency");
+                        downloadHostConcurrency = jsonObject.optInt("downloadHostConcurrency");
+                        thumbnailsQuality = jsonObject.optInt("thumbnailsQuality");
                     } catch (JSONException e) {
                         Log.persistent().stack(e);
                     }
@@ -113,6 +122,9 @@ public class AdvancedPreferences {
         }
         GOOGLE_COOKIE = googleCookieBuilder != null ? googleCookieBuilder.build() : null;
         TAB_SIZE = tabSize;
+        DOWNLOAD_CONCURRENCY = downloadConcurrency > 0 ? Math.min(downloadConcurrency, 8) : 3;
+        DOWNLOAD_HOST_CONCURRENCY = downloadHostConcurrency > 0 ? downloadHostConcurrency : 2;
+        THUMBNAILS_QUALITY = thumbnailsQuality > 0 ? Math.min(thumbnailsQuality, 100) : 85;
     }
 
     public static String getUserAgent(String chanName) {
@@ -138,4 +150,16 @@ public class AdvancedPreferences {
     public static int getTabSize() {
         return TAB_SIZE;
     }
+
+    public static int getDownloadConcurrency() {
+        return DOWNLOAD_CONCURRENCY;
+    }
+
+    public static int getDownloadHostConcurrency() {
+        return DOWNLOAD_HOST_CONCURRENCY;
+    }
+
+    public static int getThumbnailsQuality() {
+        return THUMBNAILS_QUALITY;
+    }
 }
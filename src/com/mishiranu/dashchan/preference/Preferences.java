@@ -63,6 +63,17 @@ public class Preferences {
         public String bind(String chanName) {
             return String.format(key, chanName);
         }
+
+        public boolean isBound(String key) {
+            int index = this.key.indexOf("%s");
+            return key != null && key.length() > this.key.length() - 2 && key.startsWith(this.key.substring(0, index))
+                    && key.endsWith(this.key.substring(index + 2));
+        }
+    }
+
+    // Shared preferences keep weak references to listeners, so caller must hold the listener
+    public static void registerOnChangeListener(SharedPreferences.OnSharedPreferenceChangeListener listener) {
+        PREFERENCES.registerOnSharedPreferenceChangeListener(listener);
     }
 
     public static File getPreferencesFile() {
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014-2017 Fukurou Mishiranu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.text;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Finds all literals in text in a single pass. Letters are compared case insensitively in the whole Unicode range,
+ * the same way as case insensitive patterns do on Android. Instances are immutable.
+ */
+public class AhoCorasickMatcher {
+    private static final char[] EMPTY_KEYS = new char[0];
+    private static final int[] EMPTY_INTS = new int[0];
+
+    private final int[] lengths;
+    private final char[][] keys;
+    private final int[][] targets;
+    private final int[] failures;
+    private final int[][] outputs;
+
+    public AhoCorasickMatcher(String[] literals) {
+        int count = literals.length;
+        lengths = new int[count];
+        ArrayList<HashMap<Character, Integer>> transitions = new ArrayList<>();
+        ArrayList<ArrayList<Integer>> ends = new ArrayList<>();
+        transitions.add(new HashMap<>());
+        ends.add(null);
+        for (int i = 0; i < count; i++) {
+            String literal = literals[i];
+            lengths[i] = literal.length();
+            int state = 0;
+            for (int j = 0; j < literal.length(); j++) {
+                char c = fold(literal.charAt(j));
+                Integer next = transitions.get(state).get(c);
+                if (next == null) {
+                    next = transitions.size();
+                    transitions.add(new HashMap<>());
+                    ends.add(null);
+                    transitions.get(state).put(c, next);
+                }
+                state = next;
+            }
+            if (ends.get(state) == null) {
+                ends.set(state, new ArrayList<>());
+            }
+            ends.get(state).add(i);
+        }
+
+        int size = transitions.size();
+        keys = new char[size][];
+        targets = new int[size][];
+        for (int i = 0; i < size; i++) {
+            HashMap<Character, Integer> map = transitions.get(i);
+            char[] keys = map.isEmpty() ? EMPTY_KEYS : new char[map.size()];
+            int[] targets = map.isEmpty() ? EMPTY_INTS : new int[map.size()];
+            int j = 0;
+            for (Character c : map.keySet()) {
+                keys[j++] = c;
+            }
+            Arrays.sort(keys);
+            for (j = 0; j < keys.length; j++) {
+                targets[j] = map.get(keys[j]);
+            }
+            this.keys[i] = keys;
+            this.targets[i] = targets;
+        }
+
+        // Breadth first, so failure state of every node is handled before the node itself
+        failures = new int[size];
+        outputs = new int[size][];
+        outputs[0] = EMPTY_INTS;
+        int[] queue = new int[size];
+        int head = 0;
+        int tail = 0;
+        for (int target : targets[0]) {
+            queue[tail++] = target;
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            int failure = failures[state];
+            ArrayList<Integer> stateEnds = ends.get(state);
+            int[] failureOutputs = outputs[failure];
+            if (stateEnds == null) {
+                outputs[state] = failureOutputs;
+            } else {
+                int[] stateOutputs = new int[stateEnds.size() + failureOutputs.length];
+                for (int i = 0; i < stateEnds.size(); i++) {
+                    stateOutputs[i] = stateEnds.get(i);
+                }
+                System.arraycopy(failureOutputs, 0, stateOutputs, stateEnds.size(), failureOutputs.length);
+                outputs[state] = stateOutputs;
+            }
+            char[] stateKeys = keys[state];
+            int[] stateTargets = targets[state];
+            for (int i = 0; i < stateKeys.length; i++) {
+                int target = stateTargets[i];
+                int f = failure;
+                int next;
+                while ((next = transition(f, stateKeys[i])) == -1 && f != 0) {
+                    f = failures[f];
+                }
+                failures[target] = next >= 0 && next != target ? next : 0;
+                queue[tail++] = target;
+            }
+        }
+    }
+
+    public int getCount() {
+        return lengths.length;
+    }
+
+    /**
+     * Find the first occurrence of every literal. Start index of occurrence or -1 is written to
+     * {@code starts} array at the index of literal.
+     *
+     * @return Number of found literals.
+     */
+    public int find(CharSequence text, int[] starts) {
+        Arrays.fill(starts, 0, lengths.length, -1);
+        int found = 0;
+        int state = 0;
+        for (int i = 0, length = text.length(); i < length && found < lengths.length; i++) {
+            char c = fold(text.charAt(i));
+            int next;
+            while ((next = transition(state, c)) == -1 && state != 0) {
+                state = failures[state];
+            }
+            state = next >= 0 ? next : 0;
+            for (int index : outputs[state]) {
+                if (starts[index] == -1) {
+                    starts[index] = i - lengths[index] + 1;
+                    found++;
+                }
+            }
+        }
+        return found;
+    }
+
+    private int transition(int state, char c) {
+        int index = Arrays.binarySearch(keys[state], c);
+        return index >= 0 ? targets[state][index] : -1;
+    }
+
+    private static char fold(char c) {
+        if (c < 0x80) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + 'a' - 'A') : c;
+        }
+        // Both conversions are required for characters like Georgian letters and final sigma
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+}
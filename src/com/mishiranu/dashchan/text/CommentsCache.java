@@ -0,0 +1,197 @@
+/*
+ * Copyright 2014-2017 Fukurou Mishiranu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.text;
+
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.UnderlineSpan;
+
+import com.mishiranu.dashchan.text.style.GainedColorSpan;
+import com.mishiranu.dashchan.text.style.HeadingSpan;
+import com.mishiranu.dashchan.text.style.LinkSpan;
+import com.mishiranu.dashchan.text.style.LinkSuffixSpan;
+import com.mishiranu.dashchan.text.style.MonospaceSpan;
+import com.mishiranu.dashchan.text.style.OverlineSpan;
+import com.mishiranu.dashchan.text.style.QuoteSpan;
+import com.mishiranu.dashchan.text.style.ScriptSpan;
+import com.mishiranu.dashchan.text.style.SpoilerSpan;
+import com.mishiranu.dashchan.text.style.TabulationSpan;
+import com.mishiranu.dashchan.text.style.UnderlyingSpoilerSpan;
+import com.mishiranu.dashchan.util.LruCache;
+
+import chan.content.ChanMarkup;
+import chan.util.StringUtils;
+
+/**
+ * Keeps spanified comments, so unchanged posts are not parsed again after refreshing or reopening threads.
+ * Cache holds text with span descriptors, every request receives new span instances since spans have state.
+ */
+public class CommentsCache {
+    private static final int MAX_ENTRIES = 2000;
+
+    private static final CommentsCache INSTANCE = new CommentsCache();
+
+    private CommentsCache() {
+    }
+
+    public static CommentsCache getInstance() {
+        return INSTANCE;
+    }
+
+    private final LruCache<Key, Entry> entries = new LruCache<>(MAX_ENTRIES);
+
+    public CharSequence spanify(String comment, String chanName, String parentPostNumber,
+                                ChanMarkup.MarkupExtra extra) {
+        if (StringUtils.isEmpty(comment)) {
+            return "";
+        }
+        ChanMarkup markup = ChanMarkup.get(chanName);
+        // Links are resolved relative to board and thread
+        Key key = new Key(markup, extra != null ? extra.getBoardName() : null,
+                extra != null ? extra.getThreadNumber() : null, parentPostNumber, comment);
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry == null) {
+            CharSequence charSequence = HtmlParser.spanify(comment, markup, parentPostNumber, extra);
+            entry = Entry.create(charSequence);
+            if (entry == null) {
+                return charSequence;
+            }
+            synchronized (entries) {
+                entries.put(key, entry);
+            }
+        }
+        return entry.obtain();
+    }
+
+    private static class Key {
+        public final ChanMarkup markup;
+        public final String boardName;
+        public final String threadNumber;
+        public final String parentPostNumber;
+        public final String comment;
+
+        public Key(ChanMarkup markup, String boardName, String threadNumber, String parentPostNumber,
+                   String comment) {
+            this.markup = markup;
+            this.boardName = boardName;
+            this.threadNumber = threadNumber;
+            this.parentPostNumber = parentPostNumber;
+            this.comment = comment;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (o instanceof Key) {
+                Key key = (Key) o;
+                return key.markup == markup && StringUtils.equals(key.boardName, boardName)
+                        && StringUtils.equals(key.threadNumber, threadNumber)
+                        && StringUtils.equals(key.parentPostNumber, parentPostNumber)
+                        && key.comment.equals(comment);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            int prime = 31;
+            int result = 1;
+            result = prime * result + System.identityHashCode(markup);
+            result = prime * result + (boardName != null ? boardName.hashCode() : 0);
+            result = prime * result + (threadNumber != null ? threadNumber.hashCode() : 0);
+            result = prime * result + (parentPostNumber != null ? parentPostNumber.hashCode() : 0);
+            result = prime * result + comment.hashCode();
+            return result;
+        }
+    }
+
+    private static class Entry {
+        private final String text;
+        private final Object[] spans;
+        private final int[] positions;
+
+        private Entry(String text, Object[] spans, int[] positions) {
+            this.text = text;
+            this.spans = spans;
+            this.positions = positions;
+        }
+
+        public static Entry create(CharSequence charSequence) {
+            String text = charSequence.toString();
+            if (!(charSequence instanceof Spanned)) {
+                return new Entry(text, null, null);
+            }
+            Spanned spanned = (Spanned) charSequence;
+            Object[] spans = spanned.getSpans(0, spanned.length(), Object.class);
+            int[] positions = new int[spans.length * 3];
+            for (int i = 0; i < spans.length; i++) {
+                Object span = spans[i];
+                if (copySpan(span) == null) {
+                    // Unknown span can't be copied
+                    return null;
+                }
+                positions[3 * i] = spanned.getSpanStart(span);
+                positions[3 * i + 1] = spanned.getSpanEnd(span);
+                positions[3 * i + 2] = spanned.getSpanFlags(span);
+            }
+            return new Entry(text, spans, positions);
+        }
+
+        public CharSequence obtain() {
+            if (spans == null) {
+                return text;
+            }
+            SpannableString spannable = new SpannableString(text);
+            for (int i = 0; i < spans.length; i++) {
+                spannable.setSpan(copySpan(spans[i]), positions[3 * i], positions[3 * i + 1], positions[3 * i + 2]);
+            }
+            return spannable;
+        }
+    }
+
+    private static Object copySpan(Object span) {
+        if (span instanceof LinkSpan) {
+            LinkSpan linkSpan = (LinkSpan) span;
+            return new LinkSpan(linkSpan.getUriString(), linkSpan.getPostNumber());
+        } else if (span instanceof LinkSuffixSpan) {
+            LinkSuffixSpan linkSuffixSpan = (LinkSuffixSpan) span;
+            return new LinkSuffixSpan(linkSuffixSpan.getSuffix(), linkSuffixSpan.getPostNumber());
+        } else if (span instanceof GainedColorSpan) {
+            return new GainedColorSpan(((GainedColorSpan) span).getForegroundColor());
+        } else if (span instanceof SpoilerSpan) {
+            return new SpoilerSpan();
+        } else if (span instanceof UnderlyingSpoilerSpan) {
+            return new UnderlyingSpoilerSpan();
+        } else if (span instanceof QuoteSpan) {
+            return new QuoteSpan();
+        } else if (span instanceof StyleSpan || span instanceof UnderlineSpan || span instanceof StrikethroughSpan
+                || span instanceof RelativeSizeSpan || span instanceof ScriptSpan || span instanceof MonospaceSpan
+                || span instanceof HeadingSpan || span instanceof OverlineSpan || span instanceof TabulationSpan) {
+            // Spans without state can be shared
+            return span;
+        }
+        return null;
+    }
+}
@@ -123,16 +123,19 @@ public class HtmlParser implements ContentHandler {
     public static final HTMLSchema SCHEMA = new HTMLSchema();
 
     public CharSequence convert() {
-        Parser parser = new Parser();
-        try {
-            parser.setProperty(Parser.schemaProperty, SCHEMA);
-        } catch (SAXNotRecognizedException | SAXNotSupportedException e) {
-            throw new RuntimeException(e);
-        }
-        parser.setContentHandler(this);
         StringBuilder builder = this.builder;
         try {
-            parser.parse(new InputSource(new StringReader(source)));
+            // TagSoup is used only for markup which can't be handled by scanner
+            if (!HtmlScanner.parse(source, this)) {
+                Parser parser = new Parser();
+                try {
+                    parser.setProperty(Parser.schemaProperty, SCHEMA);
+                } catch (SAXNotRecognizedException | SAXNotSupportedException e) {
+                    throw new RuntimeException(e);
+                }
+                parser.setContentHandler(this);
+                parser.parse(new InputSource(new StringReader(source)));
+            }
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -0,0 +1,479 @@
+/*
+ * Copyright 2014-2017 Fukurou Mishiranu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.text;
+
+import org.ccil.cowan.tagsoup.ElementType;
+import org.ccil.cowan.tagsoup.HTMLSchema;
+import org.ccil.cowan.tagsoup.Schema;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Lightweight scanner for well-formed HTML used in posts. Produces the same SAX events as TagSoup parser
+ * with {@link HtmlParser#SCHEMA}. When source contains markup TagSoup would restructure or input which can't be
+ * handled unambiguously, no events are produced and {@code false} is returned, so caller should use TagSoup.
+ */
+class HtmlScanner {
+    private static final HTMLSchema SCHEMA = HtmlParser.SCHEMA;
+
+    private static final ElementType HTML = SCHEMA.getElementType("html");
+    private static final ElementType BODY = SCHEMA.getElementType("body");
+    private static final ElementType PCDATA = SCHEMA.getElementType("<pcdata>");
+
+    private final String source;
+    private final AttributesImpl attributes = new AttributesImpl();
+
+    private ContentHandler handler;
+    private ElementType[] stack = new ElementType[8];
+    private int stackSize;
+    private boolean bodyStarted;
+
+    private char[] buffer;
+    private int referenceEnd;
+
+    private HtmlScanner(String source) {
+        this.source = source;
+    }
+
+    /**
+     * Scan {@code source} and pass events to {@code handler}.
+     *
+     * @return False if source should be parsed with TagSoup. No events are produced in this case.
+     */
+    public static boolean parse(String source, ContentHandler handler) throws SAXException {
+        HtmlScanner scanner = new HtmlScanner(source);
+        // Validate first, so handler never receives partial document
+        if (!scanner.scan(null)) {
+            return false;
+        }
+        scanner.scan(handler);
+        return true;
+    }
+
+    private boolean scan(ContentHandler handler) throws SAXException {
+        this.handler = handler;
+        stackSize = 0;
+        bodyStarted = false;
+        String source = this.source;
+        int length = source.length();
+        int index = 0;
+        while (index < length) {
+            int tagStart = source.indexOf('<', index);
+            int textEnd = tagStart >= 0 ? tagStart : length;
+            if (textEnd > index && !handleText(index, textEnd)) {
+                return false;
+            }
+            if (tagStart < 0) {
+                break;
+            }
+            index = handleTag(tagStart);
+            if (index < 0) {
+                return false;
+            }
+        }
+        if (!bodyStarted) {
+            startBody();
+        }
+        while (stackSize > 0) {
+            endElement(stack[--stackSize]);
+        }
+        endElement(BODY);
+        endElement(HTML);
+        return true;
+    }
+
+    private boolean handleText(int start, int end) throws SAXException {
+        String source = this.source;
+        ElementType parent = stackSize > 0 ? stack[stackSize - 1] : bodyStarted ? BODY : HTML;
+        if (!parent.canContain(PCDATA)) {
+            // TagSoup drops whitespace chunks where text is not allowed, references are handled as separate chunks
+            int i = start;
+            while (i < end && isWhitespace(source.charAt(i))) {
+                i++;
+            }
+            if (i == end) {
+                return true;
+            } else if (source.charAt(i) == '&') {
+                start = i;
+            }
+        }
+        ContentHandler handler = this.handler;
+        char[] buffer = null;
+        if (handler != null) {
+            buffer = this.buffer;
+            if (buffer == null) {
+                buffer = new char[source.length()];
+                this.buffer = buffer;
+            }
+        }
+        int size = 0;
+        for (int i = start; i < end; i++) {
+            char c = source.charAt(i);
+            if (c == '&') {
+                int code = decodeReference(i, end);
+                if (code < 0 || isWhitespace((char) code)) {
+                    return false;
+                }
+                c = (char) code;
+                i = referenceEnd - 1;
+            } else if (c == '\r') {
+                // TagSoup replaces \r\n and \r with \n
+                if (i + 1 < end && source.charAt(i + 1) == '\n') {
+                    continue;
+                }
+                c = '\n';
+            } else if (!isAllowedCharacter(c) && (c < 0xd800 || c >= 0xe000)) {
+                return false;
+            }
+            if (buffer != null) {
+                buffer[size] = c;
+            }
+            size++;
+        }
+        if (!prepareParent(PCDATA)) {
+            return false;
+        }
+        if (handler != null) {
+            handler.characters(buffer, 0, size);
+        }
+        return true;
+    }
+
+    private int handleTag(int start) throws SAXException {
+        String source = this.source;
+        int length = source.length();
+        int i = start + 1;
+        if (i >= length) {
+            return -1;
+        }
+        char c = source.charAt(i);
+        if (c == '!') {
+            if (source.startsWith("<!--", start)) {
+                int end = source.indexOf("-->", start + 4);
+                return end >= 0 ? end + 3 : -1;
+            }
+            return -1;
+        }
+        boolean close = c == '/';
+        if (close) {
+            i++;
+        }
+        int nameStart = i;
+        while (i < length && isLetterOrDigit(source.charAt(i))) {
+            i++;
+        }
+        if (i == nameStart || !isLetter(source.charAt(nameStart))) {
+            return -1;
+        }
+        ElementType type = SCHEMA.getElementType(source.substring(nameStart, i).toLowerCase(Locale.US));
+        // Unknown elements are added to schema by TagSoup as root elements
+        if (type == null || type == BODY || (type.memberOf() & Schema.M_ROOT) != 0
+                || (type.flags() & Schema.F_CDATA) != 0) {
+            return -1;
+        }
+        boolean empty = type.model() == Schema.M_EMPTY;
+        if (close) {
+            i = skipWhitespace(i);
+            if (i >= length || source.charAt(i) != '>' || empty) {
+                return -1;
+            }
+            int position = -1;
+            for (int j = stackSize - 1; j >= 0; j--) {
+                if (stack[j] == type) {
+                    position = j;
+                    break;
+                }
+            }
+            if (position >= 0) {
+                if (position != stackSize - 1) {
+                    // Elements will be restructured
+                    return -1;
+                }
+                stackSize--;
+                endElement(type);
+            }
+            // TagSoup ignores end tags of elements which are not open
+            return i + 1;
+        }
+        if (!prepareParent(type)) {
+            return -1;
+        }
+        AttributesImpl attributes = null;
+        if (handler != null) {
+            attributes = this.attributes;
+            fillDefaultAttributes(attributes, type);
+        }
+        while (true) {
+            i = skipWhitespace(i);
+            if (i >= length) {
+                return -1;
+            }
+            c = source.charAt(i);
+            if (c == '>') {
+                i++;
+                break;
+            } else if (c == '/') {
+                if (i + 1 < length && source.charAt(i + 1) == '>') {
+                    // Self-closing tag is handled as start and end
+                    empty = true;
+                    i += 2;
+                    break;
+                }
+                return -1;
+            }
+            int attributeStart = i;
+            while (i < length && isAttributeNameCharacter(source.charAt(i))) {
+                i++;
+            }
+            int attributeEnd = i;
+            if (attributeEnd == attributeStart || !isLetter(source.charAt(attributeStart))) {
+                return -1;
+            }
+            i = skipWhitespace(i);
+            if (i >= length || source.charAt(i) != '=') {
+                return -1;
+            }
+            i = skipWhitespace(i + 1);
+            if (i >= length) {
+                return -1;
+            }
+            c = source.charAt(i);
+            int valueStart;
+            int valueEnd;
+            if (c == '"' || c == '\'') {
+                valueStart = i + 1;
+                valueEnd = source.indexOf(c, valueStart);
+                if (valueEnd < 0) {
+                    return -1;
+                }
+                i = valueEnd + 1;
+            } else {
+                valueStart = i;
+                while (i < length) {
+                    c = source.charAt(i);
+                    if (c == '>' || isWhitespace(c)) {
+                        break;
+                    } else if (c == '"' || c == '\'' || c == '<' || c == '=' || c == '`') {
+                        return -1;
+                    }
+                    i++;
+                }
+                valueEnd = i;
+            }
+            String value = decodeAttributeValue(valueStart, valueEnd);
+            if (value == null) {
+                return -1;
+            }
+            if (attributes != null) {
+                String name = source.substring(attributeStart, attributeEnd).toLowerCase(Locale.US);
+                int index = attributes.getIndex(name);
+                if (index >= 0) {
+                    attributes.setValue(index, value);
+                } else {
+                    attributes.addAttribute("", name, name, "CDATA", value);
+                }
+            }
+        }
+        if (handler != null) {
+            handler.startElement(type.namespace(), type.localName(), type.name(), attributes);
+        }
+        if (empty) {
+            endElement(type);
+        } else {
+            if (stackSize == stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[stackSize++] = type;
+        }
+        return i;
+    }
+
+    private String decodeAttributeValue(int start, int end) {
+        String source = this.source;
+        StringBuilder builder = null;
+        char p = ' ';
+        for (int i = start; i < end; i++) {
+            char c = source.charAt(i);
+            if (c == '&') {
+                int code = decodeReference(i, end);
+                if (code < 0 || isWhitespace((char) code)) {
+                    return null;
+                }
+                if (handler != null) {
+                    if (builder == null) {
+                        builder = new StringBuilder(end - start);
+                        builder.append(source, start, i);
+                    }
+                    builder.append((char) code);
+                }
+                i = referenceEnd - 1;
+                c = (char) code;
+            } else {
+                // Leading, trailing and repeating spaces may be normalized depending on attribute type
+                if (c == ' ' && (p == ' ' || i + 1 == end) || c != ' ' && isWhitespace(c) ||
+                        !isAllowedCharacter(c) && (c < 0xd800 || c >= 0xe000)) {
+                    return null;
+                }
+                if (builder != null) {
+                    builder.append(c);
+                }
+            }
+            p = c;
+        }
+        if (handler == null) {
+            return "";
+        }
+        return builder != null ? builder.toString() : source.substring(start, end);
+    }
+
+    private int decodeReference(int index, int end) {
+        String source = this.source;
+        int i = index + 1;
+        if (i >= end || source.charAt(i) != '#' && !isLetter(source.charAt(i))) {
+            // Single ampersand
+            referenceEnd = i;
+            return '&';
+        }
+        int code;
+        if (source.charAt(i) == '#') {
+            i++;
+            boolean hex = i < end && (source.charAt(i) == 'x' || source.charAt(i) == 'X');
+            if (hex) {
+                i++;
+            }
+            int digitsStart = i;
+            code = 0;
+            while (i < end && i - digitsStart < 6) {
+                char c = source.charAt(i);
+                int digit = c >= '0' && c <= '9' ? c - '0' : hex && c >= 'a' && c <= 'f' ? c - 'a' + 10
+                        : hex && c >= 'A' && c <= 'F' ? c - 'A' + 10 : -1;
+                if (digit < 0) {
+                    break;
+                }
+                code = code * (hex ? 16 : 10) + digit;
+                i++;
+            }
+            if (i == digitsStart) {
+                return -1;
+            }
+        } else if (source.startsWith("gt;", i)) {
+            i += 2;
+            code = '>';
+        } else if (source.startsWith("lt;", i)) {
+            i += 2;
+            code = '<';
+        } else if (source.startsWith("amp;", i)) {
+            i += 3;
+            code = '&';
+        } else if (source.startsWith("quot;", i)) {
+            i += 4;
+            code = '"';
+        } else {
+            int nameStart = i;
+            while (i < end && isLetterOrDigit(source.charAt(i))) {
+                i++;
+            }
+            code = SCHEMA.getEntity(source.substring(nameStart, i));
+        }
+        if (i >= end || source.charAt(i) != ';' || !isAllowedCharacter(code)) {
+            return -1;
+        }
+        referenceEnd = i + 1;
+        return code;
+    }
+
+    private boolean prepareParent(ElementType type) throws SAXException {
+        if (stackSize > 0) {
+            return stack[stackSize - 1].canContain(type);
+        }
+        if (!BODY.canContain(type)) {
+            return false;
+        }
+        if (!bodyStarted) {
+            startBody();
+        }
+        return true;
+    }
+
+    private void startBody() throws SAXException {
+        bodyStarted = true;
+        startElement(HTML);
+        startElement(BODY);
+    }
+
+    private void startElement(ElementType type) throws SAXException {
+        if (handler != null) {
+            AttributesImpl attributes = this.attributes;
+            fillDefaultAttributes(attributes, type);
+            handler.startElement(type.namespace(), type.localName(), type.name(), attributes);
+        }
+    }
+
+    private void endElement(ElementType type) throws SAXException {
+        if (handler != null) {
+            handler.endElement(type.namespace(), type.localName(), type.name());
+        }
+    }
+
+    private static void fillDefaultAttributes(AttributesImpl attributes, ElementType type) {
+        attributes.clear();
+        Attributes defaultAttributes = type.atts();
+        for (int i = 0, count = defaultAttributes.getLength(); i < count; i++) {
+            // Schema contains declared attributes without values as well
+            String value = defaultAttributes.getValue(i);
+            if (value != null) {
+                attributes.addAttribute(defaultAttributes.getURI(i), defaultAttributes.getLocalName(i),
+                        defaultAttributes.getQName(i), defaultAttributes.getType(i), value);
+            }
+        }
+    }
+
+    private int skipWhitespace(int index) {
+        String source = this.source;
+        int length = source.length();
+        while (index < length && isWhitespace(source.charAt(index))) {
+            index++;
+        }
+        return index;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    private static boolean isLetter(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+    }
+
+    private static boolean isLetterOrDigit(char c) {
+        return isLetter(c) || c >= '0' && c <= '9';
+    }
+
+    private static boolean isAttributeNameCharacter(char c) {
+        return isLetterOrDigit(c) || c == '-' || c == '_';
+    }
+
+    private static boolean isAllowedCharacter(int c) {
+        return c >= 0x20 && c < 0x7f || c >= 0xa0 && c < 0xd800 || c >= 0xe000 && c <= 0xfffd
+                || c == '\n' || c == '\r' || c == '\t';
+    }
+}
@@ -39,6 +39,10 @@ public class LinkSuffixSpan extends ReplacementSpan implements ColorScheme.Span
         this.suffix = suffix;
     }
 
+    public int getSuffix() {
+        return suffix;
+    }
+
     public boolean isSuffixPresent(int suffix) {
         return FlagUtils.get(this.suffix, suffix);
     }
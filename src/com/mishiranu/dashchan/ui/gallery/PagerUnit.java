@@ -40,7 +40,6 @@ import android.widget.FrameLayout;
 import com.mishiranu.dashchan.R;
 import com.mishiranu.dashchan.content.CacheManager;
 import com.mishiranu.dashchan.content.ImageLoader;
-import com.mishiranu.dashchan.content.model.FileHolder;
 import com.mishiranu.dashchan.content.model.GalleryItem;
 import com.mishiranu.dashchan.graphics.SimpleBitmapDrawable;
 import com.mishiranu.dashchan.preference.Preferences;
@@ -340,24 +339,22 @@ public class PagerUnit implements PagerInstance.Callback, ImageLoader.Observer {
 
     private boolean presetThumbnail(PagerInstance.ViewHolder holder, GalleryItem galleryItem, boolean keepScale) {
         Uri uri = galleryItem.getThumbnailUri(galleryInstance.locator);
-        if (uri != null && galleryItem.width > 0 && galleryItem.height > 0) {
-            CacheManager cacheManager = CacheManager.getInstance();
-            File file = cacheManager.getThumbnailFile(cacheManager.getCachedFileKey(uri));
-            if (file != null && file.exists()) {
-                Bitmap bitmap = FileHolder.obtain(file).readImageBitmap();
-                if (bitmap != null) {
-                    holder.recyclePhotoView();
-                    holder.simpleBitmapDrawable = new SimpleBitmapDrawable(bitmap, galleryItem.width,
-                            galleryItem.height);
-                    boolean fitScreen = false;
-                    if (galleryItem.isVideo(galleryInstance.locator)) {
-                        fitScreen = true;
-                        keepScale = false;
-                    }
-                    holder.photoView.setImage(holder.simpleBitmapDrawable, bitmap.hasAlpha(), fitScreen, keepScale);
-                    holder.photoViewThumbnail = true;
-                    return true;
+        CacheManager cacheManager = CacheManager.getInstance();
+        // Called on UI thread, so don't block it until cache is synced
+        if (uri != null && galleryItem.width > 0 && galleryItem.height > 0 && cacheManager.isCacheSynced()) {
+            Bitmap bitmap = cacheManager.loadThumbnailExternal(cacheManager.getCachedFileKey(uri));
+            if (bitmap != null) {
+                holder.recyclePhotoView();
+                holder.simpleBitmapDrawable = new SimpleBitmapDrawable(bitmap, galleryItem.width,
+                        galleryItem.height);
+                boolean fitScreen = false;
+                if (galleryItem.isVideo(galleryInstance.locator)) {
+                    fitScreen = true;
+                    keepScale = false;
                 }
+                holder.photoView.setImage(holder.simpleBitmapDrawable, bitmap.hasAlpha(), fitScreen, keepScale);
+                holder.photoViewThumbnail = true;
+                return true;
             }
         }
         return false;
@@ -1000,6 +1000,7 @@ public class NavigatorActivity extends StateActivity implements BusyScrollListen
     @Override
     public void onListPulled(PullableWrapper wrapper, PullableWrapper.Side side) {
         if (page != null) {
+            page.allowHostsProbe();
             page.onListPulled(wrapper, side);
         }
     }
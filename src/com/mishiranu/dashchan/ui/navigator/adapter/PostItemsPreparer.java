@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014-2017 Fukurou Mishiranu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.ui.navigator.adapter;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import com.mishiranu.dashchan.content.model.PostItem;
+import com.mishiranu.dashchan.util.ConcurrentUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parses comments and names of post items in background threads, so main thread only binds views.
+ * Items closer to the visible position are prepared first. Prepared items are passed to main thread in batches.
+ */
+public class PostItemsPreparer {
+    private static final int WORKERS_COUNT = Math.max(Math.min(Runtime.getRuntime().availableProcessors() - 1,
+            2), 1);
+    private static final int BATCH_SIZE = 20;
+
+    private static final ThreadPoolExecutor EXECUTOR = ConcurrentUtils.newThreadPool(WORKERS_COUNT, WORKERS_COUNT,
+            10000, "PostItemsPreparer", null, Process.THREAD_PRIORITY_BACKGROUND);
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Callback callback;
+
+    private Task task;
+
+    public interface Callback {
+        public void onPostItemsPrepared(ArrayList<PostItem> postItems);
+    }
+
+    public PostItemsPreparer(Callback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * Prepare post items in current thread.
+     */
+    public static void prepare(PostItem postItem) {
+        postItem.getComment();
+        postItem.getFullName();
+        postItem.getSubject();
+    }
+
+    /**
+     * Start preparing {@code postItems} in background, cancelling previous preparation.
+     * Must be called from main thread.
+     */
+    public void prepare(ArrayList<PostItem> postItems, int from) {
+        cancel();
+        int size = postItems.size();
+        if (size == 0) {
+            return;
+        }
+        from = Math.max(0, Math.min(size - 1, from));
+        // Order by distance from visible position, following items first
+        ArrayList<PostItem> orderedPostItems = new ArrayList<>(size);
+        for (int i = 0; orderedPostItems.size() < size; i++) {
+            if (from + i < size) {
+                orderedPostItems.add(postItems.get(from + i));
+            }
+            if (i > 0 && from - i >= 0) {
+                orderedPostItems.add(postItems.get(from - i));
+            }
+        }
+        task = new Task(orderedPostItems);
+        for (int i = 0; i < WORKERS_COUNT; i++) {
+            EXECUTOR.execute(task);
+        }
+    }
+
+    public void prepare(Collection<PostItem> postItems) {
+        prepare(new ArrayList<>(postItems), 0);
+    }
+
+    public void cancel() {
+        if (task != null) {
+            task.cancelled = true;
+            task = null;
+        }
+    }
+
+    private class Task implements Runnable {
+        private final ArrayList<PostItem> postItems;
+        private final AtomicInteger index = new AtomicInteger(0);
+
+        public volatile boolean cancelled = false;
+
+        public Task(ArrayList<PostItem> postItems) {
+            this.postItems = postItems;
+        }
+
+        @Override
+        public void run() {
+            ArrayList<PostItem> batch = new ArrayList<>(BATCH_SIZE);
+            int index;
+            while (!cancelled && (index = this.index.getAndIncrement()) < postItems.size()) {
+                PostItem postItem = postItems.get(index);
+                if (postItem != null) {
+                    prepare(postItem);
+                    batch.add(postItem);
+                }
+                if (batch.size() >= BATCH_SIZE) {
+                    publish(batch);
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty()) {
+                publish(batch);
+            }
+        }
+
+        private void publish(ArrayList<PostItem> batch) {
+            handler.post(() -> {
+                if (!cancelled) {
+                    callback.onPostItemsPrepared(batch);
+                }
+            });
+        }
+    }
+}
@@ -18,9 +18,6 @@ package com.mishiranu.dashchan.ui.navigator.adapter;
 
 import android.content.Context;
 import android.net.Uri;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AbsListView;
@@ -32,6 +29,7 @@ import com.mishiranu.dashchan.R;
 import com.mishiranu.dashchan.content.async.ReadPostsTask;
 import com.mishiranu.dashchan.content.model.GalleryItem;
 import com.mishiranu.dashchan.content.model.PostItem;
+import com.mishiranu.dashchan.content.model.ReplyGraph;
 import com.mishiranu.dashchan.ui.navigator.manager.HidePerformer;
 import com.mishiranu.dashchan.ui.navigator.manager.UiManager;
 import com.mishiranu.dashchan.ui.posting.Replyable;
@@ -42,19 +40,17 @@ import com.mishiranu.dashchan.widget.CommentTextView;
 import com.mishiranu.dashchan.widget.callback.BusyScrollListener;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
 
 import chan.content.ChanConfiguration;
 import chan.content.ChanLocator;
 import chan.util.StringUtils;
 
 public class PostsAdapter extends BaseAdapter implements CommentTextView.LinkListener, BusyScrollListener.Callback,
-        UiManager.PostsProvider {
+        UiManager.PostsProvider, PostItemsPreparer.Callback {
     private static final int ITEM_VIEW_TYPE_POST = 0;
     private static final int ITEM_VIEW_TYPE_HIDDEN_POST = 1;
 
@@ -62,12 +58,14 @@ public class PostsAdapter extends BaseAdapter implements CommentTextView.LinkLis
 
     private final ArrayList<PostItem> postItems = new ArrayList<>();
     private final HashMap<String, PostItem> postItemsMap = new HashMap<>();
+    private final ReplyGraph replyGraph = new ReplyGraph();
     private final HashSet<PostItem> selected = new HashSet<>();
 
     private final UiManager uiManager;
     private final UiManager.DemandSet demandSet = new UiManager.DemandSet();
     private final UiManager.ConfigurationSet configurationSet;
     private final CommentTextView.ListSelectionKeeper listSelectionKeeper;
+    private final PostItemsPreparer postItemsPreparer = new PostItemsPreparer(this);
 
     private final View bumpLimitDivider;
     private final int bumpLimit;
@@ -244,22 +242,24 @@ public class PostsAdapter extends BaseAdapter implements CommentTextView.LinkLis
         uiManager.interaction().handleLinkLongClick(uri);
     }
 
-    public void setItems(ArrayList<ReadPostsTask.Patch> patches, boolean maySkipHandlingReferences) {
+    public void setItems(ArrayList<ReadPostsTask.Patch> patches) {
         postItems.clear();
         postItemsMap.clear();
+        replyGraph.clear();
         configurationSet.gallerySet.clear();
-        insertItemsInternal(patches, maySkipHandlingReferences);
+        configurationSet.hidePerformer.onPostItemsReset();
+        insertItemsInternal(patches);
     }
 
     public void mergeItems(ArrayList<ReadPostsTask.Patch> patches) {
-        insertItemsInternal(patches, false);
+        insertItemsInternal(patches);
     }
 
-    private void insertItemsInternal(ArrayList<ReadPostsTask.Patch> patches, boolean maySkipHandlingReferences) {
+    private void insertItemsInternal(ArrayList<ReadPostsTask.Patch> patches) {
         cancelPreloading();
         postItems.remove(null);
         boolean invalidateImages = false;
-        boolean invalidateReferences = false;
+        boolean invalidateRepliesRoots = false;
         int startAppendIndex = -1;
 
         for (ReadPostsTask.Patch patch : patches) {
@@ -269,39 +269,34 @@ public class PostsAdapter extends BaseAdapter implements CommentTextView.LinkLis
                 boolean append = index == postItems.size();
                 postItems.add(index, postItem);
                 postItemsMap.put(postItem.getPostNumber(), postItem);
+                replyGraph.add(postItem);
                 if (append) {
                     if (startAppendIndex == -1) {
                         startAppendIndex = index;
-                        if (maySkipHandlingReferences && startAppendIndex != 0) {
-                            invalidateReferences = true;
-                            maySkipHandlingReferences = false;
-                        }
                     }
                 } else {
                     invalidateImages = true;
-                    invalidateReferences = true;
+                    // Existing posts could reference inserted post
+                    invalidateRepliesRoots = true;
                 }
             } else {
                 PostItem existingPostItem = postItems.get(index);
                 postItems.set(index, postItem);
                 postItemsMap.put(postItem.getPostNumber(), postItem);
+                // Only references of changed post are updated
+                if (replyGraph.replace(existingPostItem, postItem)) {
+                    invalidateRepliesRoots = true;
+                }
+                configurationSet.hidePerformer.onPostItemRemoved(existingPostItem);
                 postItem.setExpanded(existingPostItem.isExpanded());
                 invalidateImages = true;
-                if (!invalidateReferences && !StringUtils.equals(postItem.getRawComment(),
-                        existingPostItem.getRawComment())) {
-                    // Invalidate all references if comment was changed
-                    invalidateReferences = true;
-                } else {
-                    LinkedHashSet<String> referencesFrom = existingPostItem.getReferencesFrom();
-                    if (referencesFrom != null) {
-                        for (String postNumber : referencesFrom) {
-                            postItem.addReferenceFrom(postNumber);
-                        }
-                    }
-                }
             }
         }
 
+        if (invalidateRepliesRoots) {
+            configurationSet.hidePerformer.onPostItemsReset();
+        }
+
         int imagesStartHandlingIndex = startAppendIndex;
         if (invalidateImages) {
             configurationSet.gallerySet.clear();
@@ -317,28 +312,6 @@ public class PostsAdapter extends BaseAdapter implements CommentTextView.LinkLis
             }
         }
 
-        int referencesStartHandleIndex = startAppendIndex;
-        if (invalidateReferences) {
-            for (PostItem postItem : postItems) {
-                postItem.clearReferencesFrom();
-            }
-            referencesStartHandleIndex = 0;
-        }
-        if (referencesStartHandleIndex >= 0 && !maySkipHandlingReferences) {
-            for (int i = referencesStartHandleIndex; i < postItems.size(); i++) {
-                PostItem postItem = postItems.get(i);
-                HashSet<String> referencesTo = postItem.getReferencesTo();
-                if (referencesTo != null) {
-                    for (String postNumber : referencesTo) {
-                        PostItem foundPostItem = postItemsMap.get(postNumber);
-                        if (foundPostItem != null) {
-                            foundPostItem.addReferenceFrom(postItem.getPostNumber());
-                        }
-                    }
-                }
-            }
-        }
-
         int ordinalIndex = 0;
         boolean appendBumpLimitDelimiter = false;
         for (int i = 0; i < postItems.size(); i++) {
@@ -369,15 +342,8 @@ public class PostsAdapter extends BaseAdapter implements CommentTextView.LinkLis
             PostItem postItem = postItems.get(i);
             if (postItem != null) {
                 if (postItem.isDeleted()) {
-                    HashSet<String> referencesTo = postItem.getReferencesTo();
-                    if (referencesTo != null) {
-                        for (String postNumber : referencesTo) {
-                            PostItem foundPostItem = postItemsMap.get(postNumber);
-                            if (foundPostItem != null) {
-                                foundPostItem.removeReferenceFrom(postItem.getPostNumber());
-                            }
-                        }
-                    }
+                    replyGraph.remove(postItem);
+                    configurationSet.hidePerformer.onPostItemRemoved(postItem);
                     postItems.remove(i);
                     postItemsMap.remove(postItem.getPostNumber());
                     if (deletedPostItems == null) {
@@ -443,71 +409,19 @@ public class PostsAdapter extends BaseAdapter implements CommentTextView.LinkLis
     }
 
     public void cancelPreloading() {
-        preloadHandler.removeMessages(0);
+        postItemsPreparer.cancel();
     }
 
     public void preloadPosts(int from) {
-        ArrayList<PostItem> preloadPostItems = new ArrayList<>();
-        ArrayList<PostItem> postItems = this.postItems;
-        int size = postItems.size();
-        from = Math.max(0, Math.min(size, from));
-        preloadPostItems.ensureCapacity(size);
-        // Ordered preloading
-        for (int i = from; i < size; i++) {
-            PostItem postItem = postItems.get(i);
-            if (postItem != null) {
-                preloadPostItems.add(postItem);
-            }
-        }
-        for (int i = 0; i < from; i++) {
-            PostItem postItem = postItems.get(i);
-            if (postItem != null) {
-                preloadPostItems.add(postItem);
-            }
-        }
-        cancelPreloading();
-        preloadHandler.obtainMessage(0, 0, 0, preloadPostItems).sendToTarget();
+        postItemsPreparer.prepare(postItems, from);
     }
 
-    public void preloadPosts(Collection<PostItem> postItems, PreloadFinishCallback callback) {
-        if (postItems != null && !postItems.isEmpty()) {
-            new Handler(Looper.getMainLooper(), new PreloadCallback(callback))
-                    .obtainMessage(0, 0, 0, postItems).sendToTarget();
-        }
-    }
-
-    private final Handler preloadHandler = new Handler(Looper.getMainLooper(), new PreloadCallback(null));
-
-    public interface PreloadFinishCallback {
-        public void onFinish();
-    }
-
-    private class PreloadCallback implements Handler.Callback {
-        private final PreloadFinishCallback callback;
-
-        public PreloadCallback(PreloadFinishCallback callback) {
-            this.callback = callback;
-        }
-
-        @Override
-        public boolean handleMessage(Message msg) {
-            // Take only 8ms per frame for preloading in main thread
-            final int ms = 8;
-            HidePerformer hidePerformer = configurationSet.hidePerformer;
-            @SuppressWarnings("unchecked") ArrayList<PostItem> preloadList = (ArrayList<PostItem>) msg.obj;
-            long time = System.currentTimeMillis();
-            int i = msg.arg1;
-            while (i < preloadList.size() && System.currentTimeMillis() - time < ms) {
-                PostItem postItem = preloadList.get(i++);
-                postItem.getComment();
-                postItem.isHidden(hidePerformer);
-            }
-            if (i < preloadList.size()) {
-                msg.getTarget().obtainMessage(0, i, 0, preloadList).sendToTarget();
-            } else if (callback != null) {
-                callback.onFinish();
-            }
-            return true;
+    @Override
+    public void onPostItemsPrepared(ArrayList<PostItem> postItems) {
+        // Comments are parsed in background, so hidden state is cheap to evaluate here
+        HidePerformer hidePerformer = configurationSet.hidePerformer;
+        for (PostItem postItem : postItems) {
+            postItem.isHidden(hidePerformer);
         }
     }
 
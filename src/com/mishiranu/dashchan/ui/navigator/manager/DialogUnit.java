@@ -66,6 +66,7 @@ import com.mishiranu.dashchan.content.model.AttachmentItem;
 import com.mishiranu.dashchan.content.model.ErrorItem;
 import com.mishiranu.dashchan.content.model.GalleryItem;
 import com.mishiranu.dashchan.content.model.PostItem;
+import com.mishiranu.dashchan.content.model.ReplyGraph;
 import com.mishiranu.dashchan.content.service.AudioPlayerService;
 import com.mishiranu.dashchan.content.storage.FavoritesStorage;
 import com.mishiranu.dashchan.preference.Preferences;
@@ -93,7 +94,6 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.List;
 
 import chan.content.ChanConfiguration;
@@ -144,13 +144,10 @@ public class DialogUnit implements DialogStack.Callback {
                     boolean notify = adapter.postItems.contains(postItem);
                     if (!notify) {
                         // Must notify adapter to update links to shown/hidden posts
-                        LinkedHashSet<String> referencesFrom = postItem.getReferencesFrom();
-                        if (referencesFrom != null) {
-                            for (String referenceFrom : referencesFrom) {
-                                if (adapter.postNumbers.contains(referenceFrom)) {
-                                    notify = true;
-                                    break;
-                                }
+                        for (int i = 0, count = postItem.getPostReplyCount(); i < count; i++) {
+                            if (adapter.postNumbers.contains(postItem.getPostReplyAt(i).getPostNumber())) {
+                                notify = true;
+                                break;
                             }
                         }
                     }
@@ -349,24 +346,14 @@ public class DialogUnit implements DialogStack.Callback {
                 throw new RuntimeException("Not thread item");
             }
             postItem.setOrdinalIndex(0);
-            postItem.clearReferencesFrom();
+            ReplyGraph replyGraph = new ReplyGraph();
+            replyGraph.add(postItem);
             postItems.add(postItem);
             PostItem[] postItems = postItem.getThreadLastPosts();
             if (postItems != null) {
-                for (int i = 0; i < postItems.length; i++) {
-                    postItem = postItems[i];
-                    this.postItems.add(postItem);
-                    HashSet<String> referencesTo = postItem.getReferencesTo();
-                    if (referencesTo != null) {
-                        for (String postNumber : referencesTo) {
-                            for (int j = 0; j < i + 1; j++) {
-                                PostItem foundPostItem = this.postItems.get(j);
-                                if (postNumber.equals(foundPostItem.getPostNumber())) {
-                                    foundPostItem.addReferenceFrom(postItem.getPostNumber());
-                                }
-                            }
-                        }
-                    }
+                for (PostItem lastPostItem : postItems) {
+                    replyGraph.add(lastPostItem);
+                    this.postItems.add(lastPostItem);
                 }
             }
             configurationSet.gallerySet.setThreadTitle(this.postItems.get(0).getSubjectOrComment());
@@ -444,13 +431,13 @@ public class DialogUnit implements DialogStack.Callback {
         public void onRequestUpdate() {
             super.onRequestUpdate();
             postItems.clear();
-            LinkedHashSet<String> referencesFrom = postItem.getReferencesFrom();
-            if (referencesFrom != null) {
-                for (PostItem postItem : configurationSet.postsProvider) {
-                    if (referencesFrom.contains(postItem.getPostNumber())) {
-                        postItems.add(postItem);
-                    }
-                }
+            // Post item could be replaced after refreshing
+            PostItem postItem = configurationSet.postsProvider.findPostItem(this.postItem.getPostNumber());
+            if (postItem == null) {
+                postItem = this.postItem;
+            }
+            for (int i = 0, count = postItem.getPostReplyCount(); i < count; i++) {
+                postItems.add(postItem.getPostReplyAt(i));
             }
         }
     }
@@ -21,11 +21,13 @@ import android.content.res.Resources;
 import com.mishiranu.dashchan.R;
 import com.mishiranu.dashchan.content.MainApplication;
 import com.mishiranu.dashchan.content.model.PostItem;
+import com.mishiranu.dashchan.content.storage.AutohideRuleSet;
 import com.mishiranu.dashchan.content.storage.AutohideStorage;
 import com.mishiranu.dashchan.text.SimilarTextEstimator;
 import com.mishiranu.dashchan.util.ToastUtils;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
@@ -45,6 +47,10 @@ public class HidePerformer implements PostItem.HidePerformer {
     private LinkedHashSet<String> names;
     private ArrayList<SimilarTextEstimator.WordsData> words;
 
+    // Hidden replies tree roots by post, empty string means post is not hidden by replies
+    private final HashMap<PostItem, String> repliesRoots = new HashMap<>();
+    private boolean repliesRootsValid = false;
+
     public HidePerformer() {
         autohidePrefix = MainApplication.getInstance().getString(R.string.preference_header_autohide) + ": ";
     }
@@ -70,23 +76,100 @@ public class HidePerformer implements PostItem.HidePerformer {
 
     private String checkHiddenByReplies(PostItem postItem) {
         if (replies != null && postsProvider != null) {
-            if (replies.contains(postItem.getPostNumber())) {
-                return "replies tree " + postItem.getPostNumber();
+            String root = findRepliesRoot(postItem);
+            if (!StringUtils.isEmpty(root)) {
+                return "replies tree " + root;
             }
-            HashSet<String> referencesTo = postItem.getReferencesTo();
-            if (referencesTo != null) {
-                for (String postNumber : referencesTo) {
-                    postItem = postsProvider.findPostItem(postNumber);
-                    if (postItem != null) {
-                        String message = checkHiddenByReplies(postItem);
-                        if (message != null) {
-                            return message;
-                        }
-                    }
+        }
+        return null;
+    }
+
+    private String findRepliesRoot(PostItem postItem) {
+        if (!repliesRootsValid) {
+            computeRepliesRoots();
+        }
+        String root = repliesRoots.get(postItem);
+        if (root == null) {
+            // Post was added after computing, so its result depends only on referenced posts
+            root = obtainRepliesRoot(postItem);
+            if (root == null) {
+                computeRepliesRoots();
+                root = repliesRoots.get(postItem);
+                if (root == null) {
+                    root = obtainRepliesRoot(postItem);
                 }
             }
+            if (root == null) {
+                root = "";
+            }
+            repliesRoots.put(postItem, root);
         }
-        return null;
+        return root;
+    }
+
+    // Returns null if result depends on posts which were not handled yet.
+    private String obtainRepliesRoot(PostItem postItem) {
+        String postNumber = postItem.getPostNumber();
+        if (replies.contains(postNumber)) {
+            return postNumber;
+        }
+        boolean complete = true;
+        for (int i = 0, count = postItem.getReferencedPostsCount(); i < count; i++) {
+            PostItem referencedPostItem = postItem.getReferencedPostAt(i);
+            if (referencedPostItem != null) {
+                String root = repliesRoots.get(referencedPostItem);
+                if (root == null) {
+                    complete = false;
+                } else if (!root.isEmpty()) {
+                    return root;
+                }
+            }
+        }
+        return complete ? "" : null;
+    }
+
+    private void computeRepliesRoots() {
+        repliesRoots.clear();
+        repliesRootsValid = true;
+        // Walk replies from hidden posts breadth first, every post is visited once even if replies are cyclic
+        ArrayList<PostItem> queue = new ArrayList<>();
+        for (PostItem postItem : postsProvider) {
+            String postNumber = postItem.getPostNumber();
+            if (replies.contains(postNumber)) {
+                repliesRoots.put(postItem, postNumber);
+                queue.add(postItem);
+            }
+        }
+        for (int i = 0; i < queue.size(); i++) {
+            PostItem postItem = queue.get(i);
+            String root = repliesRoots.get(postItem);
+            for (int j = 0, count = postItem.getPostReplyCount(); j < count; j++) {
+                PostItem replyPostItem = postItem.getPostReplyAt(j);
+                if (!repliesRoots.containsKey(replyPostItem)) {
+                    repliesRoots.put(replyPostItem, root);
+                    queue.add(replyPostItem);
+                }
+            }
+        }
+        for (PostItem postItem : postsProvider) {
+            if (!repliesRoots.containsKey(postItem)) {
+                repliesRoots.put(postItem, "");
+            }
+        }
+    }
+
+    private void invalidateRepliesRoots() {
+        repliesRoots.clear();
+        repliesRootsValid = false;
+    }
+
+    // Called by posts provider when its items are replaced or references between them are changed.
+    public void onPostItemsReset() {
+        invalidateRepliesRoots();
+    }
+
+    public void onPostItemRemoved(PostItem postItem) {
+        repliesRoots.remove(postItem);
     }
 
     private String checkHiddenByName(PostItem postItem) {
@@ -114,47 +197,38 @@ public class HidePerformer implements PostItem.HidePerformer {
     }
 
     private String checkHiddenGlobalAutohide(PostItem postItem) {
-        String chanName = postItem.getChanName();
-        String boardName = postItem.getBoardName();
-        String originalPostNumber = postItem.getOriginalPostNumber();
+        AutohideRuleSet ruleSet = autohideStorage.getRuleSet(postItem.getChanName(), postItem.getBoardName(),
+                postItem.getOriginalPostNumber());
+        if (ruleSet.isEmpty()) {
+            return null;
+        }
         boolean originalPost = postItem.getParentPostNumber() == null;
         boolean sage = postItem.isSage();
-        String subject = null;
-        String comment = null;
-        String name = null;
-        ArrayList<AutohideStorage.AutohideItem> autohideItems = autohideStorage.getItems();
-        for (int i = 0; i < autohideItems.size(); i++) {
-            AutohideStorage.AutohideItem autohideItem = autohideItems.get(i);
-            // AND selection (only if chan, board, thread, op and sage matches to rule)
-            if (autohideItem.chanNames == null || autohideItem.chanNames.contains(chanName)) {
-                if (StringUtils.isEmpty(autohideItem.boardName) || boardName == null
-                        || autohideItem.boardName.equals(boardName)) {
-                    if (StringUtils.isEmpty(autohideItem.threadNumber) || autohideItem.boardName != null &&
-                            autohideItem.threadNumber.equals(originalPostNumber)) {
-                        if ((!autohideItem.optionOriginalPost || autohideItem.optionOriginalPost == originalPost)
-                                && (!autohideItem.optionSage || autohideItem.optionSage == sage)) {
-                            String result;
-                            // OR selection (hide if subj, exp or name matches to rule)
-                            if (subject == null) {
-                                subject = postItem.getSubject();
-                            }
-                            if (autohideItem.optionSubject && (result = autohideItem.find(subject)) != null) {
-                                return autohideItem.getReason(true, false, comment, result);
-                            }
-                            if (comment == null) {
-                                comment = postItem.getComment().toString();
-                            }
-                            if (autohideItem.optionComment && (result = autohideItem.find(comment)) != null) {
-                                return autohideItem.getReason(false, false, comment, result);
-                            }
-                            if (name == null) {
-                                name = postItem.getFullName().toString();
-                            }
-                            if (autohideItem.optionName && (result = autohideItem.find(name)) != null) {
-                                return autohideItem.getReason(false, true, name, result);
-                            }
-                        }
-                    }
+        String[] texts = new String[3];
+        if (ruleSet.hasField(AutohideRuleSet.FIELD_SUBJECT)) {
+            texts[AutohideRuleSet.FIELD_SUBJECT] = postItem.getSubject();
+        }
+        if (ruleSet.hasField(AutohideRuleSet.FIELD_COMMENT)) {
+            texts[AutohideRuleSet.FIELD_COMMENT] = postItem.getComment().toString();
+        }
+        if (ruleSet.hasField(AutohideRuleSet.FIELD_NAME)) {
+            texts[AutohideRuleSet.FIELD_NAME] = postItem.getFullName().toString();
+        }
+        // OR selection (hide if subj, exp or name matches to rule)
+        AutohideRuleSet.Match match = ruleSet.find(originalPost, sage, texts);
+        if (match != null) {
+            switch (match.field) {
+                case AutohideRuleSet.FIELD_SUBJECT: {
+                    return match.autohideItem.getReason(true, false, texts[AutohideRuleSet.FIELD_COMMENT],
+                            match.result);
+                }
+                case AutohideRuleSet.FIELD_COMMENT: {
+                    return match.autohideItem.getReason(false, false, texts[AutohideRuleSet.FIELD_COMMENT],
+                            match.result);
+                }
+                case AutohideRuleSet.FIELD_NAME: {
+                    return match.autohideItem.getReason(false, true, texts[AutohideRuleSet.FIELD_NAME],
+                            match.result);
                 }
             }
         }
@@ -174,6 +248,7 @@ public class HidePerformer implements PostItem.HidePerformer {
             return ADD_EXISTS;
         }
         replies.add(postNumber);
+        invalidateRepliesRoots();
         return ADD_SUCCESS;
     }
 
@@ -264,6 +339,7 @@ public class HidePerformer implements PostItem.HidePerformer {
                 if (replies.isEmpty()) {
                     replies = null;
                 }
+                invalidateRepliesRoots();
                 return;
             }
         }
@@ -341,6 +417,7 @@ public class HidePerformer implements PostItem.HidePerformer {
                             replies = new LinkedHashSet<>();
                         }
                         replies.add(rule[1]);
+                        invalidateRepliesRoots();
                         break;
                     }
                     case TYPE_NAME: {
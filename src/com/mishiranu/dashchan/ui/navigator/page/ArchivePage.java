@@ -105,6 +105,7 @@ public class ArchivePage extends ListPage<ArchiveAdapter> implements ReadThreadS
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case OPTIONS_MENU_REFRESH: {
+                allowHostsProbe();
                 refreshThreads(!getAdapter().isEmpty(), false);
                 return true;
             }
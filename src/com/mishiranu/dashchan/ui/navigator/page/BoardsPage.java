@@ -108,6 +108,7 @@ public class BoardsPage extends ListPage<BoardsAdapter> implements ReadBoardsTas
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case OPTIONS_MENU_REFRESH: {
+                allowHostsProbe();
                 refreshBoards(!getAdapter().isEmpty());
                 return true;
             }
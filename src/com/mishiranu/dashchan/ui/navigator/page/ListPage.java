@@ -35,6 +35,7 @@ import com.mishiranu.dashchan.widget.callback.BusyScrollListener;
 
 import chan.content.ChanConfiguration;
 import chan.content.ChanLocator;
+import chan.http.HostHealth;
 
 public abstract class ListPage<Adapter extends BaseAdapter> implements PullableWrapper.PullCallback,
         BusyScrollListener.Callback {
@@ -122,6 +123,16 @@ public abstract class ListPage<Adapter extends BaseAdapter> implements PullableW
         return ChanLocator.get(pageHolder.chanName);
     }
 
+    // Explicit refresh is allowed to probe hosts which are known to be not responding.
+    public final void allowHostsProbe() {
+        ChanLocator locator = getChanLocator();
+        HostHealth hostHealth = HostHealth.getInstance();
+        hostHealth.allowProbe(locator.getPreferredHost());
+        for (String host : locator.getChanHosts(false)) {
+            hostHealth.allowProbe(host);
+        }
+    }
+
     protected final ChanConfiguration getChanConfiguration() {
         return ChanConfiguration.get(pageHolder.chanName);
     }
@@ -60,6 +60,7 @@ import com.mishiranu.dashchan.content.storage.StatisticsStorage;
 import com.mishiranu.dashchan.preference.Preferences;
 import com.mishiranu.dashchan.ui.SeekBarForm;
 import com.mishiranu.dashchan.ui.navigator.DrawerForm;
+import com.mishiranu.dashchan.ui.navigator.adapter.PostItemsPreparer;
 import com.mishiranu.dashchan.ui.navigator.adapter.PostsAdapter;
 import com.mishiranu.dashchan.ui.navigator.manager.HidePerformer;
 import com.mishiranu.dashchan.ui.navigator.manager.ThreadshotPerformer;
@@ -67,7 +68,6 @@ import com.mishiranu.dashchan.ui.navigator.manager.UiManager;
 import com.mishiranu.dashchan.ui.posting.Replyable;
 import com.mishiranu.dashchan.util.AndroidUtils;
 import com.mishiranu.dashchan.util.AsyncTimer;
-import com.mishiranu.dashchan.util.ConcurrentUtils;
 import com.mishiranu.dashchan.util.NavigationUtils;
 import com.mishiranu.dashchan.util.ResourceUtils;
 import com.mishiranu.dashchan.util.SearchHelper;
@@ -80,11 +80,10 @@ import com.mishiranu.dashchan.widget.PullableWrapper;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.Locale;
-import java.util.concurrent.CountDownLatch;
 
 import chan.content.ChanConfiguration;
 import chan.content.ChanLocator;
@@ -97,6 +96,9 @@ import chan.util.StringUtils;
 public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorage.Observer, UiManager.Observer,
         ImageLoader.Observer, DeserializePostsTask.Callback, ReadPostsTask.Callback, ActionMode.Callback {
     private DeserializePostsTask deserializeTask;
+    private boolean deserializePreviewDisplayed;
+    // Preview is never stored in extra, since it's only a part of the thread
+    private Posts previewPosts;
     private ReadPostsTask readTask;
 
     private Replyable replyable;
@@ -223,10 +225,12 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
         boolean hasNewPostDatas = handleNewPostDatas();
         extra.forceRefresh = hasNewPostDatas || !pageHolder.initialFromCache;
         if (extra.cachedPosts != null && extra.cachedPostItems.size() > 0) {
-            onDeserializePostsCompleteInternal(true, extra.cachedPosts, new ArrayList<>(extra.cachedPostItems), true);
+            onDeserializePostsCompleteInternal(true, extra.cachedPosts, new ArrayList<>(extra.cachedPostItems));
         } else {
+            int previewPosition = scrollToPostNumber == null && pageHolder.position != null
+                    && extra.cachedPosts == null ? pageHolder.position.position : -1;
             deserializeTask = new DeserializePostsTask(this, pageHolder.chanName, pageHolder.boardName,
-                    pageHolder.threadNumber, extra.cachedPosts);
+                    pageHolder.threadNumber, extra.cachedPosts, previewPosition);
             deserializeTask.executeOnExecutor(DeserializePostsTask.THREAD_POOL_EXECUTOR);
             getListView().getWrapper().startBusyState(PullableWrapper.Side.BOTH);
             switchView(ViewType.PROGRESS, null);
@@ -253,6 +257,8 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
             deserializeTask.cancel();
             deserializeTask = null;
         }
+        previewPosts = null;
+        deserializePreviewDisplayed = false;
         if (readTask != null) {
             readTask.cancel();
             readTask = null;
@@ -382,13 +388,14 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
         menu.findItem(OPTIONS_MENU_ADD_TO_FAVORITES_ICON).setVisible(iconFavorite && !isFavorite);
         menu.findItem(OPTIONS_MENU_REMOVE_FROM_FAVORITES_ICON).setVisible(iconFavorite && isFavorite);
         menu.findItem(OPTIONS_MENU_OPEN_ORIGINAL_THREAD).setVisible(originalThreadData != null);
+        boolean loaded = deserializeTask == null;
         menu.findItem(OPTIONS_MENU_ARCHIVE).setVisible(ChanManager.getInstance()
-                .canBeArchived(pageHolder.chanName));
+                .canBeArchived(pageHolder.chanName)).setEnabled(loaded);
         menu.findItem(THREAD_OPTIONS_MENU_AUTO_REFRESH).setVisible(Preferences.getAutoRefreshMode()
-                == Preferences.AUTO_REFRESH_MODE_SEPARATE).setEnabled(!getAdapter().isEmpty())
+                == Preferences.AUTO_REFRESH_MODE_SEPARATE).setEnabled(loaded && !getAdapter().isEmpty())
                 .setChecked(autoRefreshEnabled);
         menu.findItem(THREAD_OPTIONS_MENU_HIDDEN_POSTS).setEnabled(hidePerformer.hasLocalAutohide());
-        menu.findItem(THREAD_OPTIONS_MENU_CLEAR_DELETED).setEnabled(getAdapter().hasDeletedPosts());
+        menu.findItem(THREAD_OPTIONS_MENU_CLEAR_DELETED).setEnabled(loaded && getAdapter().hasDeletedPosts());
     }
 
     @Override
@@ -443,6 +450,7 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
                 return true;
             }
             case OPTIONS_MENU_REFRESH: {
+                allowHostsProbe();
                 refreshPosts(true, false);
                 return true;
             }
@@ -522,7 +530,7 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
                             if (hasDeleted) {
                                 adapter.invalidateHidden();
                                 notifyAllAdaptersChanged();
-                                hidePerformer.encodeLocalAutohide(getExtra().cachedPosts);
+                                encodeLocalAutohide();
                                 serializePosts();
                                 adapter.preloadPosts(getListView().getFirstVisiblePosition());
                             }
@@ -1110,47 +1118,70 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
 
     @Override
     public void onRequestPreloadPosts(ArrayList<ReadPostsTask.Patch> patches, int oldCount) {
+        // Called from background thread, prepare new posts here so main thread only evaluates hidden state
         int threshold = ListScroller.getJumpThreshold(getActivity());
-        ArrayList<PostItem> postItems = oldCount == 0 ? new ArrayList<>() : ConcurrentUtils.mainGet(() -> {
-            ArrayList<PostItem> buildPostItems = new ArrayList<>();
-            PostsAdapter adapter = getAdapter();
-            int count = adapter.getCount();
-            int handleOldCount = Math.min(threshold, count);
-            for (int i = 0; i < handleOldCount; i++) {
-                PostItem postItem = adapter.getItem(count - i - 1);
-                if (postItem != null) {
-                    buildPostItems.add(postItem);
-                }
-            }
-            return buildPostItems;
-        });
-        int handleNewCount = Math.min(threshold / 4, patches.size());
         int i = 0;
         for (ReadPostsTask.Patch patch : patches) {
-            if (!patch.replaceAtIndex && patch.index >= oldCount) {
-                postItems.add(patch.postItem);
-                if (++i == handleNewCount) {
+            if (patch.replaceAtIndex || patch.index >= oldCount) {
+                PostItemsPreparer.prepare(patch.postItem);
+                if (++i == threshold) {
                     break;
                 }
             }
         }
-        CountDownLatch latch = new CountDownLatch(1);
-        getAdapter().preloadPosts(postItems, latch::countDown);
-        while (true) {
-            try {
-                latch.await();
-                break;
-            } catch (InterruptedException e) {
-                // Uninterruptible wait, ignore exception
-            }
+    }
+
+    @Override
+    public void onDeserializePostsPreview(Posts posts, ArrayList<PostItem> postItems, int position) {
+        // Display posts around saved position until the whole thread is loaded
+        switchView(ViewType.LIST, null);
+        hidePerformer.decodeLocalAutohide(posts);
+        previewPosts = posts;
+        ArrayList<ReadPostsTask.Patch> patches = new ArrayList<>();
+        for (int i = 0; i < postItems.size(); i++) {
+            patches.add(new ReadPostsTask.Patch(postItems.get(i), i));
         }
+        PostsAdapter adapter = getAdapter();
+        adapter.setItems(patches);
+        PageHolder pageHolder = getPageHolder();
+        new ListPosition(Math.min(position, postItems.size() - 1), pageHolder.position.y).apply(getListView());
+        deserializePreviewDisplayed = true;
     }
 
     @Override
     public void onDeserializePostsComplete(boolean success, Posts posts, ArrayList<PostItem> postItems) {
         deserializeTask = null;
+        previewPosts = null;
         getListView().getWrapper().cancelBusyState();
         switchView(ViewType.LIST, null);
+        String previewPostNumber = null;
+        int previewY = 0;
+        boolean previewDisplayed = deserializePreviewDisplayed;
+        if (deserializePreviewDisplayed) {
+            deserializePreviewDisplayed = false;
+            PostsAdapter adapter = getAdapter();
+            ListPosition listPosition = ListPosition.obtain(getListView());
+            if (listPosition.position >= 0 && listPosition.position < adapter.getCount()) {
+                previewPostNumber = adapter.getItem(listPosition.position).getPostNumber();
+                previewY = listPosition.y;
+            }
+            if (success && postItems != null) {
+                // Keep changes made by user while preview was displayed
+                HashMap<String, PostItem> previewPostItems = new HashMap<>();
+                for (PostItem postItem : adapter) {
+                    previewPostItems.put(postItem.getPostNumber(), postItem);
+                }
+                for (PostItem postItem : postItems) {
+                    PostItem previewPostItem = previewPostItems.get(postItem.getPostNumber());
+                    if (previewPostItem != null) {
+                        postItem.copyUserMarks(previewPostItem);
+                    }
+                }
+                hidePerformer.encodeLocalAutohide(posts);
+            } else if (!success) {
+                adapter.setItems(new ArrayList<>());
+            }
+        }
         if (success && postItems != null) {
             PostsExtra extra = getExtra();
             extra.userPostNumbers.clear();
@@ -1160,11 +1191,20 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
                 }
             }
         }
-        onDeserializePostsCompleteInternal(success, posts, postItems, false);
+        onDeserializePostsCompleteInternal(success, posts, postItems);
+        if (success && previewDisplayed) {
+            serializePosts();
+        }
+        if (success && previewPostNumber != null) {
+            // Keep the post which was displayed in preview
+            int position = getAdapter().findPositionByPostNumber(previewPostNumber);
+            if (position >= 0) {
+                new ListPosition(position, previewY).apply(getListView());
+            }
+        }
     }
 
-    private void onDeserializePostsCompleteInternal(boolean success, Posts posts, ArrayList<PostItem> postItems,
-                                                    boolean isLoadedExplicitly) {
+    private void onDeserializePostsCompleteInternal(boolean success, Posts posts, ArrayList<PostItem> postItems) {
         PostsAdapter adapter = getAdapter();
         PostsExtra extra = getExtra();
         extra.cachedPosts = null;
@@ -1177,7 +1217,7 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
             for (int i = 0; i < postItems.size(); i++) {
                 patches.add(new ReadPostsTask.Patch(postItems.get(i), i));
             }
-            adapter.setItems(patches, isLoadedExplicitly);
+            adapter.setItems(patches);
             for (PostItem postItem : adapter) {
                 if (extra.expandedPosts.contains(postItem.getPostNumber())) {
                     postItem.setExpanded(true);
@@ -1230,7 +1270,7 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
                     extra.userPostNumbers.add(patch.newPost.getPostNumber());
                 }
             }
-            adapter.setItems(result.patches, false);
+            adapter.setItems(result.patches);
             boolean allowCache = CacheManager.getInstance().allowPagesCache(pageHolder.chanName);
             if (allowCache) {
                 for (PostItem postItem : extra.cachedPostItems) {
@@ -1447,7 +1487,7 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
                     postItem.resetHidden();
                     adapter.invalidateHidden();
                     notifyAllAdaptersChanged();
-                    hidePerformer.encodeLocalAutohide(getExtra().cachedPosts);
+                    encodeLocalAutohide();
                     serializePosts();
                 } else if (result == HidePerformer.ADD_EXISTS && !postItem.isHiddenUnchecked()) {
                     postItem.resetHidden();
@@ -1471,7 +1511,21 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
         getUiManager().view().displayLoadedThumbnailsForPosts(getListView(), key, bitmap, error);
     }
 
+    private void encodeLocalAutohide() {
+        Posts posts = getExtra().cachedPosts;
+        if (posts == null) {
+            posts = previewPosts;
+        }
+        if (posts != null) {
+            hidePerformer.encodeLocalAutohide(posts);
+        }
+    }
+
     private void serializePosts() {
+        if (deserializeTask != null) {
+            // Only preview is loaded
+            return;
+        }
         PageHolder pageHolder = getPageHolder();
         CacheManager.getInstance().serializePosts(pageHolder.chanName, pageHolder.boardName,
                 pageHolder.threadNumber, getExtra().cachedPosts);
@@ -1652,9 +1706,8 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
         HashSet<String> referencesToPosts = new HashSet<>();
         for (String postNumber : postNumbers) {
             PostItem post = getAdapter().findPostItem(postNumber);
-            LinkedHashSet<String> referencesFrom = post.getReferencesFrom();
-            if (referencesFrom != null) {
-                referencesToPosts.addAll(referencesFrom);
+            for (int i = 0, count = post.getPostReplyCount(); i < count; i++) {
+                referencesToPosts.add(post.getPostReplyAt(i).getPostNumber());
             }
         }
 
@@ -1690,6 +1743,10 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
      * Show dialog for clearing deleted posts.
      */
     protected void showClearDeletedPostsDialog() {
+        if (deserializeTask != null) {
+            // Only preview is loaded
+            return;
+        }
         new AlertDialog.Builder(getActivity()).setMessage(R.string.message_clear_deleted_posts_warning)
                 .setPositiveButton(android.R.string.ok, (dialog, which) -> {
                     PostsExtra extra = getExtra();
@@ -129,6 +129,7 @@ public class SearchPage extends ListPage<SearchAdapter> implements ReadSearchTas
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case OPTIONS_MENU_REFRESH: {
+                allowHostsProbe();
                 refreshSearch(!getAdapter().isEmpty(), false);
                 return true;
             }
@@ -227,6 +227,7 @@ public class ThreadsPage extends ListPage<ThreadsAdapter> implements FavoritesSt
         PageHolder pageHolder = getPageHolder();
         switch (item.getItemId()) {
             case OPTIONS_MENU_REFRESH: {
+                allowHostsProbe();
                 refreshThreads(RefreshPage.CURRENT);
                 return true;
             }
@@ -92,6 +92,7 @@ public class UserBoardsPage extends ListPage<UserBoardsAdapter> implements ReadU
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case OPTIONS_MENU_REFRESH: {
+                allowHostsProbe();
                 refreshBoards(!getAdapter().isEmpty());
                 return true;
             }
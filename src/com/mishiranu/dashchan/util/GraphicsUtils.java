@@ -30,6 +30,7 @@ import android.util.Pair;
 import android.view.Gravity;
 
 import com.mishiranu.dashchan.content.model.FileHolder;
+import com.mishiranu.dashchan.graphics.BitmapPool;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
@@ -151,7 +152,7 @@ public class GraphicsUtils {
         }
         Bitmap resizedBitmap = Bitmap.createScaledBitmap(bitmap, (int) (width * scale), (int) (height * scale), true);
         if (recycleOld && resizedBitmap != bitmap) {
-            bitmap.recycle();
+            BitmapPool.getInstance().put(bitmap);
         }
         return resizedBitmap;
     }